@@ -0,0 +1,50 @@
+package gabrielmendessc.com.vulkan.book.api.bench;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.Render;
+import gabrielmendessc.com.vulkan.book.api.eng.metrics.FrameMetrics;
+import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*A whole frame of the headless render, from waiting for the frame slot to the (skipped) present. The eng.properties
+* of this module make the engine headless, without validation, so this runs on CI with a software driver.*/
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameBenchmark {
+
+    private Render render;
+    private Scene scene;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scene = new Scene(null);
+        render = new Render(null, scene, new FrameMetrics());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        render.cleanUp();
+    }
+
+    @Benchmark
+    public void frame() {
+        render.render(null, scene, 0.0f);
+    }
+
+}
@@ -0,0 +1,73 @@
+package gabrielmendessc.com.vulkan.book.api.bench;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkSubmitInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.LongBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*The allocation patterns the engine uses for short lived native memory. Stack frames should cost a few nanoseconds
+* and no heap, anything else here is the baseline they are compared to.*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoryStackBenchmark {
+
+    @Benchmark
+    public long stackPushPop() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            LongBuffer lp = stack.mallocLong(1);
+            lp.put(0, 1L);
+            return lp.get(0);
+        }
+    }
+
+    @Benchmark
+    public long stackNestedPushPop() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            LongBuffer outer = stack.longs(1L, 2L);
+            try (MemoryStack inner = stack.push()) {
+                LongBuffer lp = inner.longs(outer.get(0), outer.get(1));
+                return lp.get(0) + lp.get(1);
+            }
+        }
+    }
+
+    @Benchmark
+    public long stackStructCalloc() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            return VkSubmitInfo.calloc(stack).address();
+        }
+    }
+
+    @Benchmark
+    public long heapStructCalloc() {
+        VkSubmitInfo submitInfo = VkSubmitInfo.calloc();
+        long address = submitInfo.address();
+        submitInfo.free();
+        return address;
+    }
+
+    @Benchmark
+    public long memAllocFree() {
+        LongBuffer lp = MemoryUtil.memAllocLong(1);
+        lp.put(0, 1L);
+        long value = lp.get(0);
+        MemoryUtil.memFree(lp);
+        return value;
+    }
+
+}
@@ -0,0 +1,90 @@
+package gabrielmendessc.com.vulkan.book.api.bench;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkSubmitInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.vulkan.VK11.VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT;
+import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_SUBMIT_INFO;
+
+/*Cost of filling the submit structs of a frame, without the driver: the way Queue.submit builds them on the stack
+* on every call against the reused native buffers of SubmitBatch. Handles are fake, nothing is submitted.*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SubmitInfoBenchmark {
+
+    private PointerBuffer commandBuffers;
+    private IntBuffer dstStageMasks;
+    private LongBuffer signalSemaphores;
+    private VkSubmitInfo submitInfo;
+    private LongBuffer waitSemaphores;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        commandBuffers = MemoryUtil.memAllocPointer(1);
+        waitSemaphores = MemoryUtil.memAllocLong(1);
+        dstStageMasks = MemoryUtil.memAllocInt(1);
+        signalSemaphores = MemoryUtil.memAllocLong(1);
+        submitInfo = VkSubmitInfo.calloc();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MemoryUtil.memFree(commandBuffers);
+        MemoryUtil.memFree(waitSemaphores);
+        MemoryUtil.memFree(dstStageMasks);
+        MemoryUtil.memFree(signalSemaphores);
+        submitInfo.free();
+    }
+
+    @Benchmark
+    public long stackSubmitInfo() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkSubmitInfo stackSubmitInfo = VkSubmitInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                    .pCommandBuffers(stack.pointers(1L))
+                    .pSignalSemaphores(stack.longs(2L))
+                    .waitSemaphoreCount(1)
+                    .pWaitSemaphores(stack.longs(3L))
+                    .pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT));
+            return stackSubmitInfo.address();
+        }
+    }
+
+    @Benchmark
+    public long reusedSubmitInfo() {
+        commandBuffers.put(0, 1L);
+        signalSemaphores.put(0, 2L);
+        waitSemaphores.put(0, 3L);
+        dstStageMasks.put(0, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
+        submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                .pCommandBuffers(commandBuffers)
+                .pSignalSemaphores(signalSemaphores)
+                .waitSemaphoreCount(1)
+                .pWaitSemaphores(waitSemaphores)
+                .pWaitDstStageMask(dstStageMasks);
+        return submitInfo.address();
+    }
+
+}
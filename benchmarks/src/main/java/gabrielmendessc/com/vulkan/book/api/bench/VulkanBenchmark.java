@@ -0,0 +1,188 @@
+package gabrielmendessc.com.vulkan.book.api.bench;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandBuffer;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandPool;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Device;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Fence;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Instance;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PhysicalDevice;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PresentModePolicy;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Queue;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Semaphore;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.SubmitBatch;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Surface;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.SwapChain;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkImageMemoryBarrier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.tinylog.Logger;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.vulkan.KHRSwapchain.VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
+import static org.lwjgl.vulkan.VK11.VK_IMAGE_ASPECT_COLOR_BIT;
+import static org.lwjgl.vulkan.VK11.VK_IMAGE_LAYOUT_UNDEFINED;
+import static org.lwjgl.vulkan.VK11.VK_PIPELINE_STAGE_ALL_COMMANDS_BIT;
+import static org.lwjgl.vulkan.VK11.VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT;
+import static org.lwjgl.vulkan.VK11.VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT;
+import static org.lwjgl.vulkan.VK11.VK_QUEUE_FAMILY_IGNORED;
+import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER;
+import static org.lwjgl.vulkan.VK11.vkCmdPipelineBarrier;
+
+/*Engine side cost of the per frame Vulkan calls on a headless device: an empty command buffer goes through both
+* submit paths and waits for its fence, and a real swap chain on a VK_EXT_headless_surface surface acquires and
+* presents an image, with the submit that hands it over in between. A software driver makes the numbers comparable
+* between machines, the driver time is part of them. Without the extension acquirePresent does nothing, the reason is
+* logged at setup.*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VulkanBenchmark {
+
+    private static final int SURFACE_HEIGHT = 720;
+    private static final int SURFACE_WIDTH = 1280;
+    private static final int REQUESTED_IMAGES = 3;
+
+    private CommandBuffer commandBuffer;
+    private PointerBuffer commandBuffers;
+    private CommandPool commandPool;
+    private Device device;
+    private Fence fence;
+    private Queue.GraphicsQueue graphQueue;
+    private Semaphore imgAcquisitionSemaphore;
+    private Instance instance;
+    private PhysicalDevice physicalDevice;
+    // Moves each swap chain image to the present layout, by image index
+    private CommandBuffer[] presentCommandBuffers;
+    private Queue.PresentQueue presentQueue;
+    private SubmitBatch submitBatch;
+    private Surface surface;
+    private SwapChain swapChain;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        instance = new Instance(false, true);
+        physicalDevice = PhysicalDevice.createPhysicalDevice(instance, null, true);
+        device = new Device(physicalDevice);
+        graphQueue = new Queue.GraphicsQueue(device, 0);
+        commandPool = new CommandPool(device, graphQueue.getQueueFamilyIndex());
+        commandBuffer = new CommandBuffer(commandPool, true, false);
+        commandBuffer.beginRecording();
+        commandBuffer.endRecording();
+        commandBuffers = MemoryUtil.memAllocPointer(1).put(0, commandBuffer.getVkCommandBuffer());
+        fence = new Fence(device, false);
+        submitBatch = new SubmitBatch(device);
+        if (instance.isHeadlessSurfaceSupported()) {
+            setUpSwapChain();
+        } else {
+            Logger.warn("VK_EXT_headless_surface is not supported, acquirePresent is skipped");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        device.waitIdle();
+        if (Objects.nonNull(swapChain)) {
+            for (CommandBuffer presentCommandBuffer : presentCommandBuffers) {
+                presentCommandBuffer.cleanUp();
+            }
+            imgAcquisitionSemaphore.cleanUp();
+            swapChain.cleanUp();
+            surface.cleanUp();
+        }
+        submitBatch.cleanUp();
+        fence.cleanUp();
+        MemoryUtil.memFree(commandBuffers);
+        commandBuffer.cleanUp();
+        commandPool.cleanUp();
+        device.cleanUp();
+        physicalDevice.cleanUp();
+        instance.cleanUp();
+    }
+
+    @Benchmark
+    public boolean acquirePresent() {
+        if (Objects.isNull(swapChain)) {
+            return false;
+        }
+        boolean outdated = swapChain.acquireNextImage(imgAcquisitionSemaphore);
+        submitBatch.nextSubmit()
+                .addCommandBuffer(presentCommandBuffers[swapChain.getCurrentImage()])
+                .addWaitSemaphore(imgAcquisitionSemaphore, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
+                .addSignalSemaphore(swapChain.getRenderCompleteSemaphore(), VK_PIPELINE_STAGE_ALL_COMMANDS_BIT);
+        submitBatch.submit(graphQueue, fence);
+        outdated |= swapChain.presentImage(presentQueue);
+        // The acquisition semaphore is reused, the next acquire must not signal it before this submit waited for it
+        fence.fenceWait();
+        fence.reset();
+        return outdated;
+    }
+
+    @Benchmark
+    public void queueSubmit() {
+        graphQueue.submit(commandBuffers, null, null, null, fence);
+        fence.fenceWait();
+        fence.reset();
+    }
+
+    @Benchmark
+    public void submitBatch() {
+        submitBatch.nextSubmit().addCommandBuffer(commandBuffer);
+        submitBatch.submit(graphQueue, fence);
+        fence.fenceWait();
+        fence.reset();
+    }
+
+    private void setUpSwapChain() {
+        surface = new Surface(physicalDevice);
+        presentQueue = new Queue.PresentQueue(device, surface, 0);
+        // Present modes that do not wait for a refresh, what is measured is the overhead of the calls
+        swapChain = new SwapChain(device, surface, SURFACE_WIDTH, SURFACE_HEIGHT, REQUESTED_IMAGES, PresentModePolicy.LOW_LATENCY,
+                presentQueue, new Queue[]{graphQueue}, null);
+        imgAcquisitionSemaphore = new Semaphore(device);
+
+        int numImages = swapChain.getImageViews().length;
+        presentCommandBuffers = new CommandBuffer[numImages];
+        for (int i = 0; i < numImages; i++) {
+            CommandBuffer presentCommandBuffer = new CommandBuffer(commandPool, true, false);
+            presentCommandBuffer.beginRecording();
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                // Contents are discarded, nothing is drawn
+                VkImageMemoryBarrier.Buffer barrier = VkImageMemoryBarrier.calloc(1, stack)
+                        .sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+                        .oldLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+                        .newLayout(VK_IMAGE_LAYOUT_PRESENT_SRC_KHR)
+                        .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                        .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                        .image(swapChain.getImageViews()[i].getVkImage())
+                        .subresourceRange(r -> r
+                                .aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+                                .levelCount(1)
+                                .layerCount(1));
+                vkCmdPipelineBarrier(presentCommandBuffer.getVkCommandBuffer(), VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT,
+                        VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0, null, null, barrier);
+            }
+            presentCommandBuffer.endRecording();
+            presentCommandBuffers[i] = presentCommandBuffer;
+        }
+    }
+
+}
@@ -1,22 +1,39 @@
 package gabrielmendessc.com.vulkan.book.api.eng;
 
 import gabrielmendessc.com.vulkan.book.api.eng.graph.Render;
+import gabrielmendessc.com.vulkan.book.api.eng.metrics.FrameMetrics;
+import gabrielmendessc.com.vulkan.book.api.eng.metrics.FramePhase;
 import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
+import org.tinylog.Logger;
+
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
 
 public class Engine {
 
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long SPIN_THRESHOLD_NANOS = 2 * NANOS_PER_MILLI;
+
     private final IAppLogic appLogic;
+    private final FrameMetrics frameMetrics;
     private final Render render;
     private final Scene scene;
     private final Window window;
-    private boolean running;
+    private volatile boolean running;
+    private volatile long snapshotTime;
 
     public Engine(String windowTitle, IAppLogic appLogic) {
 
         this.appLogic = appLogic;
-        window = new Window(windowTitle);
+        //Headless engines have no window, they run until stop is called
+        window = EngineProperties.getInstance().isHeadless() ? null : new Window(windowTitle);
         scene = new Scene(window);
-        render = new Render(window, scene);
+        frameMetrics = new FrameMetrics();
+        if (EngineProperties.getInstance().isFrameMetricsJmx()) {
+            frameMetrics.register();
+        }
+        render = new Render(window, scene, frameMetrics);
 
         appLogic.init(window, scene, render);
 
@@ -25,44 +42,210 @@ public class Engine {
     private void cleanup() {
         appLogic.cleanUp();
         render.cleanUp();
-        window.cleanUp();
+        if (Objects.nonNull(window)) {
+            window.cleanUp();
+        }
+        frameMetrics.cleanUp();
     }
 
     public void run() {
 
+        if (EngineProperties.getInstance().isMultiThreadedUpdate()) {
+            runMultiThreaded();
+        } else {
+            runSingleThreaded();
+        }
+
+        cleanup();
+
+    }
+
+    /*Fixed timestep loop: the simulation always advances in steps of 1/ups seconds, while rendering runs as
+    * fast as allowed. The transforms are saved before each step, and the leftover time that is not enough for a
+    * whole step is handed to the render as the factor to interpolate between them and the current ones. If updates fall behind, at most
+    * maxUpdatesPerFrame steps are run per frame and the remaining backlog is dropped to avoid a spiral of death.*/
+    private void runSingleThreaded() {
+
         EngineProperties engineProperties = EngineProperties.getInstance();
-        long initialTime = System.currentTimeMillis();
-        float timeU = 1000.0f / engineProperties.getUps();
-        double deltaUpdate = 0;
+        long updateStepNanos = NANOS_PER_SECOND / engineProperties.getUps();
+        MillisCounter inputMillis = new MillisCounter();
+        MillisCounter updateMillis = new MillisCounter();
+        long frameStepNanos = engineProperties.getFps() > 0 ? NANOS_PER_SECOND / engineProperties.getFps() : 0;
+        int maxUpdatesPerFrame = Math.max(engineProperties.getMaxUpdatesPerFrame(), 1);
+
+        long previousTime = System.nanoTime();
+        long nextFrameTime = previousTime + frameStepNanos;
+        long accumulator = 0;
+        while (running && (Objects.isNull(window) || !window.shouldClose())) {
+
+            long frameStart = System.nanoTime();
+            if (Objects.nonNull(window)) {
+                window.pollEvents();
+            }
+
+            long now = System.nanoTime();
+            frameMetrics.record(FramePhase.POLL_EVENTS, now - frameStart);
+            long elapsed = now - previousTime;
+            previousTime = now;
+
+            if (Objects.nonNull(window)) {
+                window.acquireInput();
+            }
+            appLogic.input(window, scene, inputMillis.toMillis(elapsed));
 
-        long updateTime = initialTime;
-        while (running && !window.shouldClose()) {
+            long inputEnd = System.nanoTime();
+            frameMetrics.record(FramePhase.INPUT, inputEnd - now);
+            accumulator += elapsed;
+            int updates = 0;
+            while (accumulator >= updateStepNanos && updates < maxUpdatesPerFrame) {
 
-            window.pollEvents();
+                scene.savePreviousTransforms();
+                appLogic.update(window, scene, updateMillis.toMillis(updateStepNanos));
 
-            long now = System.currentTimeMillis();
-            deltaUpdate += (now - initialTime) / timeU;
+                accumulator -= updateStepNanos;
+                updates++;
 
-            appLogic.input(window, scene, now - initialTime);
+            }
+            if (accumulator >= updateStepNanos) {
+                Logger.debug("Update loop is falling behind, dropping [{}] updates", accumulator / updateStepNanos);
+                accumulator %= updateStepNanos;
+            }
+            frameMetrics.record(FramePhase.UPDATE, System.nanoTime() - inputEnd);
+
+            render.render(window, scene, (float) accumulator / updateStepNanos);
+
+            if (frameStepNanos > 0) {
 
-            if (deltaUpdate >= 1) {
+                waitUntil(nextFrameTime);
+                // Keep a steady cadence, unless the frame was late: then start counting from now
+                nextFrameTime = Math.max(nextFrameTime + frameStepNanos, System.nanoTime());
 
-                long diffTimeMilis = now - updateTime;
+            }
+            frameMetrics.record(FramePhase.FRAME, System.nanoTime() - frameStart);
+
+        }
 
-                appLogic.update(window, scene, diffTimeMilis);
+    }
 
-                updateTime = now;
-                deltaUpdate--;
+    /*Update and render overlap: input and update run on their own thread against the simulation scene, which is
+    * copied into a triple buffered snapshot after each batch of steps. The render thread always picks the latest
+    * snapshot without locking, so a frame costs max(update, render) instead of their sum. Snapshots carry the
+    * transforms from before their last step too, the render shows the simulation one step late and interpolates
+    * between both by the time elapsed since the snapshot was due. GLFW events are still
+    * polled on the main thread, which publishes the key and mouse state left by them for input to acquire, input never
+    * calls into GLFW itself.*/
+    private void runMultiThreaded() {
 
+        EngineProperties engineProperties = EngineProperties.getInstance();
+        long updateStepNanos = NANOS_PER_SECOND / engineProperties.getUps();
+        long frameStepNanos = engineProperties.getFps() > 0 ? NANOS_PER_SECOND / engineProperties.getFps() : 0;
+
+        TripleBuffer<Scene> snapshots = new TripleBuffer<>(() -> new Scene(window));
+        scene.copyTo(snapshots.getWriteBuffer());
+        snapshots.publish();
+        snapshotTime = System.nanoTime();
+        Thread updateThread = new Thread(() -> runUpdateLoop(snapshots, updateStepNanos), "update");
+        updateThread.start();
+
+        long nextFrameTime = System.nanoTime() + frameStepNanos;
+        while (running && (Objects.isNull(window) || !window.shouldClose())) {
+
+            long frameStart = System.nanoTime();
+            if (Objects.nonNull(window)) {
+                window.pollEvents();
             }
+            frameMetrics.record(FramePhase.POLL_EVENTS, System.nanoTime() - frameStart);
+
+            Scene snapshot = snapshots.getReadBuffer();
+            float alpha = Math.min((float) (System.nanoTime() - snapshotTime) / updateStepNanos, 1.0f);
+            render.render(window, snapshot, alpha);
 
-            render.render(window, scene);
+            if (frameStepNanos > 0) {
 
-            initialTime = now;
+                waitUntil(nextFrameTime);
+                nextFrameTime = Math.max(nextFrameTime + frameStepNanos, System.nanoTime());
+
+            }
+            frameMetrics.record(FramePhase.FRAME, System.nanoTime() - frameStart);
 
         }
 
-        cleanup();
+        running = false;
+        try {
+            updateThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    private void runUpdateLoop(TripleBuffer<Scene> snapshots, long updateStepNanos) {
+
+        MillisCounter inputMillis = new MillisCounter();
+        MillisCounter updateMillis = new MillisCounter();
+        int maxUpdatesPerFrame = Math.max(EngineProperties.getInstance().getMaxUpdatesPerFrame(), 1);
+        long previousTime = System.nanoTime();
+        long nextUpdateTime = previousTime + updateStepNanos;
+        try {
+
+            while (running) {
+
+                long now = System.nanoTime();
+                if (Objects.nonNull(window)) {
+                    window.acquireInput();
+                }
+                appLogic.input(window, scene, inputMillis.toMillis(now - previousTime));
+                previousTime = now;
+                long inputEnd = System.nanoTime();
+                frameMetrics.record(FramePhase.INPUT, inputEnd - now);
+
+                int updates = 0;
+                while (now - nextUpdateTime >= 0 && updates < maxUpdatesPerFrame) {
+
+                    scene.savePreviousTransforms();
+                    appLogic.update(window, scene, updateMillis.toMillis(updateStepNanos));
+
+                    nextUpdateTime += updateStepNanos;
+                    updates++;
+
+                }
+                if (updates > 0) {
+                    frameMetrics.record(FramePhase.UPDATE, System.nanoTime() - inputEnd);
+                }
+                if (now - nextUpdateTime >= 0) {
+                    Logger.debug("Update thread is falling behind, dropping [{}] updates", (now - nextUpdateTime) / updateStepNanos + 1);
+                    nextUpdateTime = now + updateStepNanos;
+                }
+
+                if (updates > 0) {
+                    scene.copyTo(snapshots.getWriteBuffer());
+                    snapshots.publish();
+                    snapshotTime = nextUpdateTime - updateStepNanos;
+                }
+
+                waitUntil(nextUpdateTime);
+
+            }
+
+        } catch (RuntimeException e) {
+
+            Logger.error("Update thread failed, stopping engine", e);
+            running = false;
+
+        }
+
+    }
+
+    /*Sleeps while the deadline is far away, since sleeping is imprecise, and spins for the last stretch.*/
+    private static void waitUntil(long deadline) {
+
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_THRESHOLD_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
 
     }
 
@@ -80,4 +263,18 @@ public class Engine {
 
     }
 
+    /*Converts time deltas to whole milliseconds, carrying the remainder to the next one so no time is lost: a 33.3 ms
+    * step is reported as 33, 33 and 34 ms, and loops shorter than a millisecond add up instead of reporting 0.*/
+    private static class MillisCounter {
+
+        private long remainderNanos;
+
+        private long toMillis(long nanos) {
+            long total = nanos + remainderNanos;
+            remainderNanos = total % NANOS_PER_MILLI;
+            return total / NANOS_PER_MILLI;
+        }
+
+    }
+
 }
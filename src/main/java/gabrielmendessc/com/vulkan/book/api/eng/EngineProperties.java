@@ -1,5 +1,7 @@
 package gabrielmendessc.com.vulkan.book.api.eng;
 
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PresentModePolicy;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.QueueTopology;
 import lombok.Getter;
 import org.tinylog.Logger;
 
@@ -11,14 +13,77 @@ import java.util.Properties;
 public class EngineProperties {
 
     private static final int DEFAULT_UPS = 30;
+    private static final int DEFAULT_FPS = 0;
+    private static final int DEFAULT_FRAMES_IN_FLIGHT = 2;
+    private static final int DEFAULT_GPU_PROFILING_WINDOW = 120;
+    private static final int DEFAULT_HEADLESS_HEIGHT = 720;
+    private static final int DEFAULT_HEADLESS_WIDTH = 1280;
+    private static final int DEFAULT_MAX_UPDATES_PER_FRAME = 5;
+    private static final int DEFAULT_RECORDING_THREADS = 0;
     private static final int DEFAULT_REQUESTED_IMAGES = 3;
+    private static final long DEFAULT_STAGING_RING_SIZE = 16L * 1024 * 1024;
+    private static final String DEFAULT_MESH_CACHE_DIR = "cache/meshes";
+    private static final String DEFAULT_PIPELINE_CACHE_FILE = "cache/pipeline.cache";
+    private static final String DEFAULT_SHADER_CACHE_DIR = "cache/shaders";
     private static final String FILENAME = "eng.properties";
     private static EngineProperties instance;
     @Getter
+    private float computeQueuePriority;
+    @Getter
+    private boolean dynamicRendering;
+    @Getter
+    private int fps;
+    @Getter
+    private boolean frameMetricsJmx;
+    @Getter
+    private int framesInFlight;
+    @Getter
+    private boolean headless;
+    @Getter
+    private boolean gpuProfiling;
+    @Getter
+    private int gpuProfilingWindow;
+    @Getter
+    private float graphicsQueuePriority;
+    @Getter
+    private int headlessHeight;
+    @Getter
+    private int headlessWidth;
+    @Getter
     private int ups;
     @Getter
+    private int maxUpdatesPerFrame;
+    @Getter
+    private String meshCacheDir;
+    @Getter
+    private int modelLoadThreads;
+    @Getter
+    private boolean multiThreadedUpdate;
+    @Getter
+    private int pipelineBuildThreads;
+    @Getter
+    private String pipelineCacheFile;
+    @Getter
+    private PresentModePolicy presentModePolicy;
+    @Getter
+    private int recordingThreads;
+    @Getter
     private int requestedImages;
     @Getter
+    private String shaderCacheDir;
+    @Getter
+    private int shaderCompileThreads;
+    @Getter
+    private boolean shaderDebug;
+    @Getter
+    private boolean shaderHotReload;
+    @Getter
+    private long stagingRingSize;
+    @Getter
+    private boolean timelineSemaphores;
+    @Getter
+    private float transferQueuePriority;
+    @Getter
     private boolean validate;
     @Getter
     private boolean vSync;
@@ -34,10 +99,40 @@ public class EngineProperties {
             properties.load(inputStream);
 
             ups = Integer.parseInt(properties.getOrDefault("ups", DEFAULT_UPS).toString());
+            fps = Integer.parseInt(properties.getOrDefault("fps", DEFAULT_FPS).toString());
+            multiThreadedUpdate = Boolean.parseBoolean(properties.getOrDefault("multiThreadedUpdate", false).toString());
+            maxUpdatesPerFrame = Integer.parseInt(properties.getOrDefault("maxUpdatesPerFrame", DEFAULT_MAX_UPDATES_PER_FRAME).toString());
             validate = Boolean.parseBoolean(properties.getOrDefault("vkValidate", false).toString());
             physDeviceName = properties.getProperty("physDeviceName");
+            recordingThreads = Integer.parseInt(properties.getOrDefault("recordingThreads", DEFAULT_RECORDING_THREADS).toString());
             requestedImages = Integer.parseInt(properties.getOrDefault("requestedImages", DEFAULT_REQUESTED_IMAGES).toString());
             vSync = Boolean.parseBoolean(properties.getOrDefault("vsync", true).toString());
+            //When no policy is set, vsync picks the closest one
+            PresentModePolicy defaultPresentModePolicy = vSync ? PresentModePolicy.POWER_SAVING : PresentModePolicy.LOW_LATENCY;
+            presentModePolicy = PresentModePolicy.valueOf(properties.getOrDefault("presentModePolicy", defaultPresentModePolicy).toString());
+            framesInFlight = Integer.parseInt(properties.getOrDefault("framesInFlight", DEFAULT_FRAMES_IN_FLIGHT).toString());
+            headless = Boolean.parseBoolean(properties.getOrDefault("headless", false).toString());
+            headlessWidth = Integer.parseInt(properties.getOrDefault("headlessWidth", DEFAULT_HEADLESS_WIDTH).toString());
+            headlessHeight = Integer.parseInt(properties.getOrDefault("headlessHeight", DEFAULT_HEADLESS_HEIGHT).toString());
+            graphicsQueuePriority = Float.parseFloat(properties.getOrDefault("graphicsQueuePriority", QueueTopology.DEFAULT_PRIORITY).toString());
+            computeQueuePriority = Float.parseFloat(properties.getOrDefault("computeQueuePriority", QueueTopology.DEFAULT_PRIORITY).toString());
+            transferQueuePriority = Float.parseFloat(properties.getOrDefault("transferQueuePriority", QueueTopology.DEFAULT_PRIORITY).toString());
+            gpuProfiling = Boolean.parseBoolean(properties.getOrDefault("gpuProfiling", false).toString());
+            gpuProfilingWindow = Integer.parseInt(properties.getOrDefault("gpuProfilingWindow", DEFAULT_GPU_PROFILING_WINDOW).toString());
+            dynamicRendering = Boolean.parseBoolean(properties.getOrDefault("dynamicRendering", true).toString());
+            timelineSemaphores = Boolean.parseBoolean(properties.getOrDefault("timelineSemaphores", true).toString());
+            frameMetricsJmx = Boolean.parseBoolean(properties.getOrDefault("frameMetricsJmx", true).toString());
+            pipelineCacheFile = properties.getOrDefault("pipelineCacheFile", DEFAULT_PIPELINE_CACHE_FILE).toString();
+            meshCacheDir = properties.getOrDefault("meshCacheDir", DEFAULT_MESH_CACHE_DIR).toString();
+            shaderCacheDir = properties.getOrDefault("shaderCacheDir", DEFAULT_SHADER_CACHE_DIR).toString();
+            // Leave a core for the main thread, shaders, pipelines and models are built while the engine starts
+            int defaultWorkerThreads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+            shaderCompileThreads = Integer.parseInt(properties.getOrDefault("shaderCompileThreads", defaultWorkerThreads).toString());
+            modelLoadThreads = Integer.parseInt(properties.getOrDefault("modelLoadThreads", defaultWorkerThreads).toString());
+            pipelineBuildThreads = Integer.parseInt(properties.getOrDefault("pipelineBuildThreads", defaultWorkerThreads).toString());
+            shaderDebug = Boolean.parseBoolean(properties.getOrDefault("shaderDebug", false).toString());
+            shaderHotReload = Boolean.parseBoolean(properties.getOrDefault("shaderHotReload", false).toString());
+            stagingRingSize = Long.parseLong(properties.getOrDefault("stagingRingSize", DEFAULT_STAGING_RING_SIZE).toString());
 
         } catch (IOException e) {
 
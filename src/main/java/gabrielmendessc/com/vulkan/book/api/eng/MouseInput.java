@@ -14,6 +14,10 @@ public class MouseInput {
     private boolean leftButtonPressed;
     private boolean rightButtonPressed;
 
+    /*Not connected to any window, it holds the state copied from the one that is.*/
+    MouseInput() {
+    }
+
     public MouseInput(long windowHandle) {
 
         GLFW.glfwSetCursorPosCallback(windowHandle, (handle, xpos, ypos) -> {
@@ -28,6 +32,14 @@ public class MouseInput {
 
     }
 
+    /*Copies what the callbacks track, the displacement is computed by input on the target.*/
+    void copyStateTo(MouseInput target) {
+        target.currentPos.set(currentPos);
+        target.inWindow = inWindow;
+        target.leftButtonPressed = leftButtonPressed;
+        target.rightButtonPressed = rightButtonPressed;
+    }
+
     public void input() {
 
         getDisplayVec().x = 0;
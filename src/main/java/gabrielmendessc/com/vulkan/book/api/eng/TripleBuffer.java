@@ -0,0 +1,49 @@
+package gabrielmendessc.com.vulkan.book.api.eng;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*Lock free single producer / single consumer triple buffer. The writer fills the back buffer and publishes it,
+* swapping it with the middle one. The reader takes the middle buffer, if something new was published, by swapping
+* it with the front one. Neither side ever waits for the other and the reader always sees the latest published state.*/
+public class TripleBuffer<T> {
+
+    private static final int DIRTY_BIT = 0b100;
+    private static final int INDEX_MASK = 0b011;
+
+    private final Object[] buffers;
+    private final AtomicInteger middle;
+    private int back;
+    private int front;
+
+    public TripleBuffer(Supplier<T> factory) {
+        buffers = new Object[]{factory.get(), factory.get(), factory.get()};
+        front = 0;
+        middle = new AtomicInteger(1);
+        back = 2;
+    }
+
+    public boolean hasPublished() {
+        return (middle.get() & DIRTY_BIT) != 0;
+    }
+
+    /*Reader side. Returns the most recently published buffer, which stays valid until the next call.*/
+    @SuppressWarnings("unchecked")
+    public T getReadBuffer() {
+        if (hasPublished()) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return (T) buffers[front];
+    }
+
+    /*Writer side. The returned buffer is owned by the writer until it is published.*/
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) buffers[back];
+    }
+
+    public void publish() {
+        back = middle.getAndSet(back | DIRTY_BIT) & INDEX_MASK;
+    }
+
+}
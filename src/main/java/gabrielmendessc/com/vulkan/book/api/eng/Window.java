@@ -1,5 +1,6 @@
 package gabrielmendessc.com.vulkan.book.api.eng;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.lwjgl.glfw.Callbacks;
@@ -14,9 +15,19 @@ import java.util.Objects;
 @Getter
 public class Window {
 
+    @Getter(AccessLevel.NONE)
+    private final TripleBuffer<InputState> inputStates;
+    // Seen by input, taken from the published states by acquireInput
     private final MouseInput mouseInput;
+    // Written by the callbacks while polling events, on the main thread only
+    @Getter(AccessLevel.NONE)
+    private final MouseInput polledMouseInput;
+    @Getter(AccessLevel.NONE)
+    private final boolean[] polledKeys;
     private final long windowHandle;
     private int height;
+    @Getter(AccessLevel.NONE)
+    private boolean[] keys;
     @Setter
     private boolean resized;
     private int width;
@@ -59,8 +70,15 @@ public class Window {
 
         GLFW.glfwSetFramebufferSizeCallback(windowHandle, (window, w, h) -> resize(w, h));
 
+        polledKeys = new boolean[GLFW.GLFW_KEY_LAST + 1];
         GLFW.glfwSetKeyCallback(windowHandle, (window, key, scancode, action, mods) -> {
 
+            if (key >= 0 && key < polledKeys.length) {
+
+                polledKeys[key] = action != GLFW.GLFW_RELEASE;
+
+            }
+
             if (key == GLFW.GLFW_KEY_ESCAPE && action == GLFW.GLFW_RELEASE) {
 
                 GLFW.glfwSetWindowShouldClose(window, true);
@@ -75,7 +93,21 @@ public class Window {
 
         });
 
-        mouseInput = new MouseInput(windowHandle);
+        polledMouseInput = new MouseInput(windowHandle);
+        mouseInput = new MouseInput();
+        inputStates = new TripleBuffer<>(InputState::new);
+        keys = inputStates.getReadBuffer().keys;
+
+    }
+
+    /*Takes the input published by the last pollEvents, which isKeyPressed and getMouseInput report until the next
+    * call. Meant for the thread running the input of the application, which may not be the one polling events.*/
+    public void acquireInput() {
+
+        InputState inputState = inputStates.getReadBuffer();
+        keys = inputState.keys;
+        inputState.mouseInput.copyStateTo(mouseInput);
+        mouseInput.input();
 
     }
 
@@ -89,14 +121,19 @@ public class Window {
     }
 
     public boolean isKeyPressed(int keyCode) {
-        return GLFW.glfwGetKey(windowHandle, keyCode) == GLFW.GLFW_PRESS;
+        return keyCode >= 0 && keyCode < keys.length && keys[keyCode];
     }
 
+    /*GLFW only allows polling from the main thread, so the state left by the callbacks is published here for
+    * acquireInput instead of being queried by input.*/
     public void pollEvents() {
 
         GLFW.glfwPollEvents();
 
-        mouseInput.input();
+        InputState inputState = inputStates.getWriteBuffer();
+        System.arraycopy(polledKeys, 0, inputState.keys, 0, polledKeys.length);
+        polledMouseInput.copyStateTo(inputState.mouseInput);
+        inputStates.publish();
 
     }
 
@@ -118,4 +155,11 @@ public class Window {
         return GLFW.glfwWindowShouldClose(windowHandle);
     }
 
+    private static class InputState {
+
+        private final boolean[] keys = new boolean[GLFW.GLFW_KEY_LAST + 1];
+        private final MouseInput mouseInput = new MouseInput();
+
+    }
+
 }
@@ -0,0 +1,20 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandBuffer;
+import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
+
+/*Records the draw commands of a scene inside the forward render pass. Draws are identified by an index so
+* the work can be split in ranges and recorded from several threads at once: record must only touch the
+* given command buffer and must be safe to call concurrently for disjoint ranges. By default there is a draw
+* per entity and the index is its slot in the scene, so a range reads a contiguous run of every component.
+* Alpha is how far the frame is between the previous and the current simulation state, to be handed to
+* Scene.writeModelMatrices so draws blend both.*/
+public interface DrawRecorder {
+
+    default int getDrawCount(Scene scene) {
+        return scene.getEntityCount();
+    }
+
+    void record(CommandBuffer commandBuffer, Scene scene, int first, int last, float alpha);
+
+}
@@ -1,103 +1,351 @@
 package gabrielmendessc.com.vulkan.book.api.eng.graph;
 
+import gabrielmendessc.com.vulkan.book.api.eng.graph.rendergraph.RenderGraph;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.rendergraph.ResourceUsage;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandBuffer;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandPool;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.DeletionQueue;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Device;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Fence;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.FrameBuffer;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.ImageView;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PipelineDescription;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Queue;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Semaphore;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.SubmitBatch;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.SwapChain;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.SwapChainRenderPass;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.TimelineSemaphore;
+import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
+import lombok.Setter;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.VkClearValue;
 import org.lwjgl.vulkan.VkExtent2D;
 import org.lwjgl.vulkan.VkRenderPassBeginInfo;
+import org.lwjgl.vulkan.VkRenderingAttachmentInfoKHR;
+import org.lwjgl.vulkan.VkRenderingInfoKHR;
 
 import java.nio.LongBuffer;
+import java.util.Objects;
 
+import static org.lwjgl.vulkan.KHRDynamicRendering.*;
+import static org.lwjgl.vulkan.KHRSwapchain.VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
 import static org.lwjgl.vulkan.VK11.*;
 
+/*Frames in flight and swap chain images are independent: each frame in flight owns its command buffer,
+* fence and acquisition semaphore, while frame buffers belong to the swap chain images. The command buffer
+* of a frame is recorded every frame against the frame buffer of the image acquired for it.
+* The frame is declared to a render graph: the forward pass writes the acquired image and any passes added by the
+* graph setup run around it, the graph places the layout transitions and barriers between them.
+* With dynamic rendering there are no render pass nor frame buffers: the forward pass renders straight to the image
+* view, nothing has to be rebuilt on resize, and secondary command buffers only depend on the image format so they
+* are started before the image is acquired.*/
 public class ForwardRenderActivity {
 
     private final CommandBuffer[] commandBuffers;
+    private final CommandPool[] commandPools;
+    private final boolean dynamicRendering;
     private final Fence[] fences;
-    private final FrameBuffer[] frameBuffers;
-    private final SwapChainRenderPass renderPass;
-    private final SwapChain swapChain;
+    private final long[] frameValues;
+    private final TimelineSemaphore frameTimeline;
+    private final Semaphore[] imgAcquisitionSemaphores;
+    private final ParallelCommandRecorder parallelCommandRecorder;
+    private final RenderGraph.PassExecutor forwardPass;
+    private final RenderGraph renderGraph;
+    private float alpha;
+    private int currentFrame;
+    @Setter
+    private DrawRecorder drawRecorder;
+    @Setter
+    private GpuProfiler gpuProfiler;
+    @Setter
+    private GraphSetup graphSetup;
+    private FrameBuffer frameBuffer;
+    private FrameBuffer[] frameBuffers;
+    private ImageView imageView;
+    // Inheritance of the secondary command buffers drawing to each frame buffer, built along with them so frames do not allocate
+    private CommandBuffer.InheritanceInfo[] inheritanceInfos;
+    private CommandBuffer.InheritanceInfo renderingInheritanceInfo;
+    private SwapChainRenderPass renderPass;
+    private Scene scene;
+    private boolean secondaryBuffersStarted;
+    private SwapChain swapChain;
 
-    public ForwardRenderActivity(SwapChain swapChain, CommandPool commandPool) {
+    /*The parallel command recorder is optional, when null draws are recorded inline in the primary command buffer.
+    * So is the frame timeline: with it each frame signals the next value of the timeline instead of a fence. Dynamic
+    * rendering requires the device to support it.*/
+    public ForwardRenderActivity(SwapChain swapChain, int queueFamilyIndex, int framesInFlight, ParallelCommandRecorder parallelCommandRecorder,
+                                 TimelineSemaphore frameTimeline, RenderGraph renderGraph, boolean dynamicRendering) {
         this.swapChain = swapChain;
+        this.dynamicRendering = dynamicRendering;
+        this.renderGraph = renderGraph;
+        // Created once, the frame buffer and scene of the frame are read from fields so declaring a frame does not allocate
+        forwardPass = (commandBuffer, graph) -> recordForwardPass(commandBuffer);
+        this.frameTimeline = frameTimeline;
+        this.parallelCommandRecorder = parallelCommandRecorder;
+        Device device = swapChain.getDevice();
+        if (dynamicRendering) {
+            renderingInheritanceInfo = new CommandBuffer.InheritanceInfo(swapChain.getSurfaceFormat().imageFormat());
+        } else {
+            renderPass = new SwapChainRenderPass(swapChain);
+            frameBuffers = createFrameBuffers(swapChain, renderPass);
+            inheritanceInfos = createInheritanceInfos(renderPass, frameBuffers);
+        }
+
+        int numFrames = Math.max(framesInFlight, 1);
+        commandBuffers = new CommandBuffer[numFrames];
+        commandPools = new CommandPool[numFrames];
+        fences = Objects.isNull(frameTimeline) ? new Fence[numFrames] : null;
+        frameValues = new long[numFrames];
+        imgAcquisitionSemaphores = new Semaphore[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            commandPools[i] = new CommandPool(device, queueFamilyIndex, true);
+            if (Objects.nonNull(fences)) {
+                fences[i] = new Fence(device, true);
+            }
+            imgAcquisitionSemaphores[i] = new Semaphore(device);
+        }
+        currentFrame = 0;
+    }
+
+    /*Adds passes to the graph of a frame once the forward pass has been declared. The back buffer is the handle of
+    * the acquired image, passes that write it after the forward pass draw on top of the scene.*/
+    public interface GraphSetup {
+
+        void setup(RenderGraph renderGraph, int backBuffer, Scene scene);
+
+    }
+
+    public void cleanUp() {
+
+        if (Objects.nonNull(renderPass)) {
+            for (FrameBuffer frameBuffer : frameBuffers) {
+                frameBuffer.cleanUp();
+            }
+            renderPass.cleanUp();
+        }
+        for(CommandPool commandPool : commandPools) {
+            commandPool.cleanUp();
+        }
+        if (Objects.nonNull(fences)) {
+            for (Fence fence : fences) {
+                fence.cleanUp();
+            }
+        }
+        for(Semaphore semaphore : imgAcquisitionSemaphores) {
+            semaphore.cleanUp();
+        }
+    }
+
+    /*Sets what pipelines drawing in the forward pass render into: its render pass, or the formats of its attachments
+    * with dynamic rendering. Both may change when the swap chain is recreated.*/
+    public PipelineDescription describeTarget(PipelineDescription description) {
+        if (dynamicRendering) {
+            return description.renderPass(VK_NULL_HANDLE, 0)
+                    .colorAttachmentFormats(getColorFormat())
+                    .depthAttachmentFormat(VK_FORMAT_UNDEFINED)
+                    .stencilAttachmentFormat(VK_FORMAT_UNDEFINED);
+        }
+        return description.renderPass(renderPass.getVkRenderPass(), 0)
+                .colorAttachmentFormats()
+                .colorAttachmentCount(1);
+    }
+
+    public int getColorFormat() {
+        return swapChain.getSurfaceFormat().imageFormat();
+    }
+
+    public Semaphore getImgAcquisitionSemaphore() {
+        return imgAcquisitionSemaphores[currentFrame];
+    }
+
+    /*VK_NULL_HANDLE with dynamic rendering.*/
+    public long getVkRenderPass() {
+        return dynamicRendering ? VK_NULL_HANDLE : renderPass.getVkRenderPass();
+    }
+
+    /*Must be called before acquiring the next image: once the previous submit of the current frame has completed,
+    * its command buffers and acquisition semaphore are no longer in use by the GPU.*/
+    public void waitForFrame() {
+        if (Objects.nonNull(frameTimeline)) {
+            frameTimeline.waitValue(frameValues[currentFrame]);
+        } else {
+            fences[currentFrame].fenceWait();
+        }
+    }
+
+    /*With dynamic rendering, starts recording the draws of the frame into secondary command buffers on the workers, to
+    * be called between waitForFrame and acquiring the image so both overlap. Does nothing otherwise.*/
+    public void prepareCommandBuffers(Scene scene, float alpha) {
+        if (dynamicRendering && Objects.nonNull(drawRecorder) && Objects.nonNull(parallelCommandRecorder)) {
+            parallelCommandRecorder.start(currentFrame, renderingInheritanceInfo, drawRecorder, scene, alpha);
+            secondaryBuffersStarted = true;
+        }
+    }
+
+    public void recordCommandBuffer(Scene scene, float alpha) {
+        VkExtent2D swapChainExtent = swapChain.getSwapChainExtent();
+        // Everything recorded for this frame last time has completed, release it all at once
+        CommandPool commandPool = commandPools[currentFrame];
+        commandPool.reset();
+        CommandBuffer commandBuffer = commandPool.obtainCommandBuffer(true);
+        commandBuffers[currentFrame] = commandBuffer;
+        int currentImage = swapChain.getCurrentImage();
+        ImageView imageView = swapChain.getImageViews()[currentImage];
+        int width = swapChainExtent.width();
+        int height = swapChainExtent.height();
+        this.frameBuffer = dynamicRendering ? null : frameBuffers[currentImage];
+        this.imageView = imageView;
+        this.alpha = alpha;
+        this.scene = scene;
+
+        commandBuffer.beginRecording();
+        if (Objects.nonNull(gpuProfiler)) {
+            gpuProfiler.beginFrame(commandBuffer, currentFrame);
+        }
+        renderGraph.reset();
+        // Contents of the previous frame are cleared, the image waits for the acquire semaphore only
+        int backBuffer = renderGraph.importImage("backBuffer", imageView.getVkImage(), imageView.getVkImageView(), width, height,
+                swapChain.getSurfaceFormat().imageFormat(), VK_IMAGE_LAYOUT_UNDEFINED, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT,
+                swapChain.isHeadless() ? VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL : VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+        renderGraph.addPass("forward", forwardPass)
+                .write(backBuffer, ResourceUsage.COLOR_ATTACHMENT);
+        if (Objects.nonNull(graphSetup)) {
+            graphSetup.setup(renderGraph, backBuffer, scene);
+        }
+        renderGraph.execute(commandBuffer, gpuProfiler);
+        commandBuffer.endRecording();
+        this.scene = null;
+    }
+
+    /*Frame buffers and render pass of the previous swap chain may still be used by frames in flight,
+    * so they are retired instead of being destroyed right away.*/
+    public void resize(SwapChain swapChain, DeletionQueue deletionQueue) {
+        this.swapChain = swapChain;
+        if (dynamicRendering) {
+            renderingInheritanceInfo = new CommandBuffer.InheritanceInfo(swapChain.getSurfaceFormat().imageFormat());
+            return;
+        }
+        FrameBuffer[] oldFrameBuffers = frameBuffers;
+        SwapChainRenderPass oldRenderPass = renderPass;
+        renderPass = new SwapChainRenderPass(swapChain);
+        frameBuffers = createFrameBuffers(swapChain, renderPass);
+        inheritanceInfos = createInheritanceInfos(renderPass, frameBuffers);
+        deletionQueue.retire(() -> {
+            for (FrameBuffer frameBuffer : oldFrameBuffers) {
+                frameBuffer.cleanUp();
+            }
+            oldRenderPass.cleanUp();
+        });
+    }
+
+    /*Appends the submit of the current frame to the batch, after any submit already queued in it (other passes),
+    * and flushes the whole batch, signaling the fence or the timeline value of the frame.*/
+    public void submit(Queue queue, SubmitBatch submitBatch) {
+        CommandBuffer commandBuffer = commandBuffers[currentFrame];
+        submitBatch.nextSubmit().addCommandBuffer(commandBuffer);
+        if (!swapChain.isHeadless()) {
+            submitBatch.addWaitSemaphore(imgAcquisitionSemaphores[currentFrame], VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
+                    .addSignalSemaphore(swapChain.getRenderCompleteSemaphore(), VK_PIPELINE_STAGE_ALL_COMMANDS_BIT);
+        }
+        if (Objects.nonNull(frameTimeline)) {
+            frameValues[currentFrame] = frameTimeline.nextValue();
+            submitBatch.addSignalSemaphore(frameTimeline, frameValues[currentFrame], VK_PIPELINE_STAGE_ALL_COMMANDS_BIT);
+            submitBatch.submit(queue, null);
+        } else {
+            Fence currentFence = fences[currentFrame];
+            currentFence.reset();
+            submitBatch.submit(queue, currentFence);
+        }
+        currentFrame = (currentFrame + 1) % frameValues.length;
+    }
+
+    private static FrameBuffer[] createFrameBuffers(SwapChain swapChain, SwapChainRenderPass renderPass) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             Device device = swapChain.getDevice();
             VkExtent2D swapChainExtent = swapChain.getSwapChainExtent();
             ImageView[] imageViews = swapChain.getImageViews();
             int numImages = imageViews.length;
 
-            renderPass = new SwapChainRenderPass(swapChain);
-
             LongBuffer pAttachments = stack.mallocLong(1);
-            frameBuffers = new FrameBuffer[numImages];
+            FrameBuffer[] result = new FrameBuffer[numImages];
             for (int i = 0; i < numImages; i++) {
                 pAttachments.put(0, imageViews[i].getVkImageView());
-                frameBuffers[i] = new FrameBuffer(device, swapChainExtent.width(), swapChainExtent.height(), pAttachments, renderPass.getVkRenderPass());
+                result[i] = new FrameBuffer(device, swapChainExtent.width(), swapChainExtent.height(), pAttachments, renderPass.getVkRenderPass());
             }
+            return result;
+        }
+    }
 
-            commandBuffers = new CommandBuffer[numImages];
-            fences = new Fence[numImages];
-            for (int i = 0; i < numImages; i++) {
-                commandBuffers[i] = new CommandBuffer(commandPool, true, false);
-                fences[i] = new Fence(device, true);
-                recordCommandBuffer(commandBuffers[i], frameBuffers[i], swapChainExtent.width(), swapChainExtent.height());
-            }
+    private static CommandBuffer.InheritanceInfo[] createInheritanceInfos(SwapChainRenderPass renderPass, FrameBuffer[] frameBuffers) {
+        CommandBuffer.InheritanceInfo[] result = new CommandBuffer.InheritanceInfo[frameBuffers.length];
+        for (int i = 0; i < frameBuffers.length; i++) {
+            result[i] = new CommandBuffer.InheritanceInfo(renderPass.getVkRenderPass(), frameBuffers[i].getVkFrameBuffer(), 0);
         }
+        return result;
     }
 
-    public void cleanUp() {
+    private void beginRenderPass(MemoryStack stack, CommandBuffer commandBuffer, int width, int height, boolean useSecondaryBuffers) {
+        VkClearValue.Buffer clearValues = VkClearValue.calloc(1, stack);
+        clearValues.apply(0, v -> v.color().float32(0, 0.5f).float32(1, 0.7f).float32(2, 0.9f).float32(3, 1));
+        VkRenderPassBeginInfo renderPassBeginInfo = VkRenderPassBeginInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO)
+                .renderPass(renderPass.getVkRenderPass())
+                .pClearValues(clearValues)
+                .renderArea(a -> a.extent().set(width, height))
+                .framebuffer(frameBuffer.getVkFrameBuffer());
 
-        for(FrameBuffer frameBuffer : frameBuffers) {
-            frameBuffer.cleanUp();
-        }
-        renderPass.cleanUp();
-        for(CommandBuffer commandBuffer : commandBuffers) {
-            commandBuffer.cleanUp();
-        }
-        for(Fence fence : fences) {
-            fence.cleanUp();
-        }
+        vkCmdBeginRenderPass(commandBuffer.getVkCommandBuffer(), renderPassBeginInfo,
+                useSecondaryBuffers ? VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS : VK_SUBPASS_CONTENTS_INLINE);
     }
 
-    public void submit(Queue queue) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            int idx = swapChain.getCurrentFrame();
-            CommandBuffer commandBuffer = commandBuffers[idx];
-            Fence currentFence = fences[idx];
-            currentFence.fenceWait();
-            currentFence.reset();
-            SwapChain.SyncSemaphores syncSemaphores = swapChain.getSyncSemaphoresList()[idx];
-            queue.submit(stack.pointers(commandBuffer.getVkCommandBuffer()),
-                    stack.longs(syncSemaphores.imgAcquisitionSemaphore().getVkSemaphore()),
-                    stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT),
-                    stack.longs(syncSemaphores.renderCompleteSemaphore().getVkSemaphore()), currentFence);
+    private void beginRendering(MemoryStack stack, CommandBuffer commandBuffer, int width, int height, boolean useSecondaryBuffers) {
+        VkRenderingAttachmentInfoKHR.Buffer colorAttachments = VkRenderingAttachmentInfoKHR.calloc(1, stack)
+                .sType(VK_STRUCTURE_TYPE_RENDERING_ATTACHMENT_INFO_KHR)
+                .imageView(imageView.getVkImageView())
+                .imageLayout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL)
+                .loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR)
+                .storeOp(VK_ATTACHMENT_STORE_OP_STORE)
+                .clearValue(v -> v.color().float32(0, 0.5f).float32(1, 0.7f).float32(2, 0.9f).float32(3, 1));
+        VkRenderingInfoKHR renderingInfo = VkRenderingInfoKHR.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_RENDERING_INFO_KHR)
+                .flags(useSecondaryBuffers ? VK_RENDERING_CONTENTS_SECONDARY_COMMAND_BUFFERS_BIT_KHR : 0)
+                .renderArea(a -> a.extent().set(width, height))
+                .layerCount(1)
+                .pColorAttachments(colorAttachments);
 
-        }
+        vkCmdBeginRenderingKHR(commandBuffer.getVkCommandBuffer(), renderingInfo);
     }
 
-    private void recordCommandBuffer(CommandBuffer commandBuffer, FrameBuffer frameBuffer, int width, int height) {
+    private void recordForwardPass(CommandBuffer commandBuffer) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkClearValue.Buffer clearValues = VkClearValue.calloc(1, stack);
-            clearValues.apply(0, v -> v.color().float32(0, 0.5f).float32(1, 0.7f).float32(2, 0.9f).float32(3, 1));
-            VkRenderPassBeginInfo renderPassBeginInfo = VkRenderPassBeginInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO)
-                    .renderPass(renderPass.getVkRenderPass())
-                    .pClearValues(clearValues)
-                    .renderArea(a -> a.extent().set(width, height))
-                    .framebuffer(frameBuffer.getVkFrameBuffer());
-
-            commandBuffer.beginRecording();
-            vkCmdBeginRenderPass(commandBuffer.getVkCommandBuffer(), renderPassBeginInfo, VK_SUBPASS_CONTENTS_INLINE);
-            vkCmdEndRenderPass(commandBuffer.getVkCommandBuffer());
-            commandBuffer.endRecording();
+            VkExtent2D swapChainExtent = swapChain.getSwapChainExtent();
+            int width = swapChainExtent.width();
+            int height = swapChainExtent.height();
+            boolean useSecondaryBuffers = Objects.nonNull(drawRecorder) && Objects.nonNull(parallelCommandRecorder);
+
+            if (dynamicRendering) {
+                beginRendering(stack, commandBuffer, width, height, useSecondaryBuffers);
+            } else {
+                beginRenderPass(stack, commandBuffer, width, height, useSecondaryBuffers);
+            }
+            if (useSecondaryBuffers && dynamicRendering) {
+                if (!secondaryBuffersStarted) {
+                    parallelCommandRecorder.start(currentFrame, renderingInheritanceInfo, drawRecorder, scene, alpha);
+                }
+                parallelCommandRecorder.execute(commandBuffer);
+            } else if (useSecondaryBuffers) {
+                CommandBuffer.InheritanceInfo inheritanceInfo = inheritanceInfos[swapChain.getCurrentImage()];
+                parallelCommandRecorder.record(currentFrame, commandBuffer, inheritanceInfo, drawRecorder, scene, alpha);
+            } else if (Objects.nonNull(drawRecorder)) {
+                drawRecorder.record(commandBuffer, scene, 0, drawRecorder.getDrawCount(scene), alpha);
+            }
+            secondaryBuffersStarted = false;
+            if (dynamicRendering) {
+                vkCmdEndRenderingKHR(commandBuffer.getVkCommandBuffer());
+            } else {
+                vkCmdEndRenderPass(commandBuffer.getVkCommandBuffer());
+            }
         }
     }
 
@@ -0,0 +1,172 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandBuffer;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Device;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+import org.tinylog.Logger;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Measures how long named scopes of the recorded command buffers take on the GPU with timestamp queries. Each frame
+* in flight owns a query pool, so the results of a frame are read back when the frame comes around again, once its
+* fence or timeline value has been waited for: reading never stalls. Timings are kept in a rolling window per scope
+* and can be read from any thread.*/
+public class GpuProfiler {
+
+    private final Device device;
+    private final int maxScopes;
+    private final long[] queryPools;
+    private final LongBuffer results;
+    private final List<List<String>> scopeNames;
+    private final Map<String, RollingStatistics> statistics;
+    private final double timestampPeriod;
+    private final long timestampMask;
+    private final int windowSize;
+    private int currentFrame;
+
+    public GpuProfiler(Device device, int queueFamilyIndex, int framesInFlight, int maxScopes, int windowSize) {
+        Logger.debug("Creating GPU profiler with [{}] scopes per frame", maxScopes);
+        this.device = device;
+        this.maxScopes = maxScopes;
+        this.windowSize = Math.max(windowSize, 1);
+        // Nanoseconds per tick
+        timestampPeriod = device.getPhysicalDevice().getVkPhysicalDeviceProperties().limits().timestampPeriod();
+        int validBits = getTimestampValidBits(device, queueFamilyIndex);
+        if (validBits == 0) {
+            throw new RuntimeException("Queue family [" + queueFamilyIndex + "] does not support timestamps");
+        }
+        timestampMask = validBits >= Long.SIZE ? -1L : (1L << validBits) - 1;
+
+        int numFrames = Math.max(framesInFlight, 1);
+        queryPools = new long[numFrames];
+        scopeNames = new ArrayList<>(numFrames);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkQueryPoolCreateInfo queryPoolCreateInfo = VkQueryPoolCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO)
+                    .queryType(VK_QUERY_TYPE_TIMESTAMP)
+                    .queryCount(maxScopes * 2);
+            LongBuffer lp = stack.mallocLong(1);
+            for (int i = 0; i < numFrames; i++) {
+                vkCheck(vkCreateQueryPool(device.getVkDevice(), queryPoolCreateInfo, null, lp), "Failed to create query pool");
+                queryPools[i] = lp.get(0);
+                scopeNames.add(new ArrayList<>(maxScopes));
+            }
+        }
+        // Value and availability of each query
+        results = MemoryUtil.memAllocLong(maxScopes * 2 * 2);
+        statistics = new ConcurrentHashMap<>();
+    }
+
+    public record ScopeTiming(double lastMillis, double averageMillis, double minMillis, double maxMillis) {}
+
+    public static boolean isSupported(Device device, int queueFamilyIndex) {
+        return getTimestampValidBits(device, queueFamilyIndex) > 0;
+    }
+
+    /*Must be called once per frame, first thing in the command buffer of the frame and outside any render pass, after
+    * the previous submit of the frame has completed. Collects the timings of that submit and resets its queries.*/
+    public void beginFrame(CommandBuffer commandBuffer, int frame) {
+        currentFrame = frame;
+        List<String> frameScopeNames = scopeNames.get(frame);
+        int numScopes = frameScopeNames.size();
+        if (numScopes > 0) {
+            int result = vkGetQueryPoolResults(device.getVkDevice(), queryPools[frame], 0, numScopes * 2, results,
+                    2 * Long.BYTES, VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WITH_AVAILABILITY_BIT);
+            if (result == VK_SUCCESS || result == VK_NOT_READY) {
+                for (int i = 0; i < numScopes; i++) {
+                    boolean available = results.get(i * 4 + 1) != 0 && results.get(i * 4 + 3) != 0;
+                    if (available) {
+                        long ticks = (results.get(i * 4 + 2) - results.get(i * 4)) & timestampMask;
+                        statistics.computeIfAbsent(frameScopeNames.get(i), k -> new RollingStatistics(windowSize))
+                                .add(ticks * timestampPeriod / 1_000_000.0);
+                    }
+                }
+            }
+            frameScopeNames.clear();
+        }
+        vkCmdResetQueryPool(commandBuffer.getVkCommandBuffer(), queryPools[frame], 0, maxScopes * 2);
+    }
+
+    /*Returns the scope id to end it with, or -1 if the frame already has all the scopes it can hold.*/
+    public int beginScope(CommandBuffer commandBuffer, String name) {
+        List<String> frameScopeNames = scopeNames.get(currentFrame);
+        int scope = frameScopeNames.size();
+        if (scope == maxScopes) {
+            return -1;
+        }
+        frameScopeNames.add(name);
+        vkCmdWriteTimestamp(commandBuffer.getVkCommandBuffer(), VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, queryPools[currentFrame], scope * 2);
+        return scope;
+    }
+
+    public void cleanUp() {
+        for (long queryPool : queryPools) {
+            vkDestroyQueryPool(device.getVkDevice(), queryPool, null);
+        }
+        MemoryUtil.memFree(results);
+    }
+
+    public void endScope(CommandBuffer commandBuffer, int scope) {
+        if (scope < 0) {
+            return;
+        }
+        vkCmdWriteTimestamp(commandBuffer.getVkCommandBuffer(), VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, queryPools[currentFrame], scope * 2 + 1);
+    }
+
+    public Set<String> getScopeNames() {
+        return Collections.unmodifiableSet(statistics.keySet());
+    }
+
+    /*Timings of the scope over the rolling window, null if it has not been measured yet.*/
+    public ScopeTiming getTiming(String name) {
+        RollingStatistics rollingStatistics = statistics.get(name);
+        return rollingStatistics != null ? rollingStatistics.getTiming() : null;
+    }
+
+    private static int getTimestampValidBits(Device device, int queueFamilyIndex) {
+        return device.getPhysicalDevice().getVkQueueFamilyProps().get(queueFamilyIndex).timestampValidBits();
+    }
+
+    private static class RollingStatistics {
+
+        private final double[] samples;
+        private int count;
+        private int next;
+
+        private RollingStatistics(int windowSize) {
+            samples = new double[windowSize];
+        }
+
+        private synchronized void add(double sample) {
+            samples[next] = sample;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        private synchronized ScopeTiming getTiming() {
+            double sum = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (int i = 0; i < count; i++) {
+                sum += samples[i];
+                min = Math.min(min, samples[i]);
+                max = Math.max(max, samples[i]);
+            }
+            double last = samples[(next - 1 + samples.length) % samples.length];
+            return new ScopeTiming(last, sum / count, min, max);
+        }
+
+    }
+
+}
@@ -0,0 +1,161 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandBuffer;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandPool;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Device;
+import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.tinylog.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.vulkan.VK11.vkCmdExecuteCommands;
+
+/*Splits the draws of a frame in ranges that are recorded in parallel into secondary command buffers, which are
+* then executed by the primary one. Command pools can't be used from several threads at once, so each worker
+* slot owns a command pool (per frame in flight) and only the task assigned to that slot touches it.*/
+public class ParallelCommandRecorder {
+
+    private static final int MIN_DRAWS_PER_TASK = 64;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final CommandPool[][] commandPools;
+    private final ExecutorService executorService;
+    private final CommandBuffer[] secondaryCommandBuffers;
+    private final List<Future<Void>> pendingTasks;
+    private final List<Callable<Void>> tasks;
+    private final int numWorkers;
+
+    public ParallelCommandRecorder(Device device, int queueFamilyIndex, int numWorkers, int framesInFlight) {
+        Logger.debug("Creating parallel command recorder with [{}] workers", numWorkers);
+        this.numWorkers = numWorkers;
+        commandPools = new CommandPool[framesInFlight][numWorkers];
+        secondaryCommandBuffers = new CommandBuffer[numWorkers];
+        for (int i = 0; i < framesInFlight; i++) {
+            for (int j = 0; j < numWorkers; j++) {
+                commandPools[i][j] = new CommandPool(device, queueFamilyIndex, true);
+            }
+        }
+        tasks = new ArrayList<>(numWorkers);
+        pendingTasks = new ArrayList<>(numWorkers);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executorService = Executors.newFixedThreadPool(numWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "record-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*Waits for the recordings still running, a frame dropped after starting them may have left them behind, before
+    * destroying the pools they record into.*/
+    public void cleanUp() {
+        try {
+            awaitTasks();
+        } catch (RuntimeException e) {
+            Logger.warn("Recording of a dropped frame failed", e);
+        }
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.warn("Command recorders did not finish, their command pools are leaked");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.warn("Interrupted waiting for command recorders, their command pools are leaked");
+            return;
+        }
+        for (int i = 0; i < commandPools.length; i++) {
+            for (int j = 0; j < numWorkers; j++) {
+                commandPools[i][j].cleanUp();
+            }
+        }
+    }
+
+    /*Waits for the buffers started by the last call to start and executes them in the primary command buffer, which
+    * must be inside a render pass or rendering scope that takes secondary command buffers.*/
+    public void execute(CommandBuffer primaryCommandBuffer) {
+        int numTasks = pendingTasks.size();
+        if (numTasks == 0) {
+            return;
+        }
+        awaitTasks();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer pCommandBuffers = stack.mallocPointer(numTasks);
+            for (int i = 0; i < numTasks; i++) {
+                pCommandBuffers.put(i, secondaryCommandBuffers[i].getVkCommandBuffer());
+            }
+            vkCmdExecuteCommands(primaryCommandBuffer.getVkCommandBuffer(), pCommandBuffers);
+        }
+    }
+
+    /*Must be called while the primary command buffer is inside a render pass begun with
+    * VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS, once the fence of the frame has been waited for, since the
+    * pools of the frame are reset. Returns once all the secondary buffers have been executed.*/
+    public void record(int frame, CommandBuffer primaryCommandBuffer, CommandBuffer.InheritanceInfo inheritanceInfo,
+                       DrawRecorder drawRecorder, Scene scene, float alpha) {
+        start(frame, inheritanceInfo, drawRecorder, scene, alpha);
+        execute(primaryCommandBuffer);
+    }
+
+    /*Starts recording the draws of the frame on the workers and returns right away, execute collects them. Same as
+    * record, the fence of the frame must have been waited for. Inheritance infos without a render pass let this run
+    * before the image of the frame is acquired.*/
+    public void start(int frame, CommandBuffer.InheritanceInfo inheritanceInfo, DrawRecorder drawRecorder, Scene scene,
+                      float alpha) {
+        // A frame dropped after starting (outdated swap chain) may still be recording into the pools
+        awaitTasks();
+        int drawCount = drawRecorder.getDrawCount(scene);
+        if (drawCount <= 0) {
+            return;
+        }
+        int numTasks = Math.min(numWorkers, (drawCount + MIN_DRAWS_PER_TASK - 1) / MIN_DRAWS_PER_TASK);
+        int drawsPerTask = (drawCount + numTasks - 1) / numTasks;
+        tasks.clear();
+        for (int i = 0; i < numTasks; i++) {
+            CommandPool commandPool = commandPools[frame][i];
+            int worker = i;
+            int first = i * drawsPerTask;
+            int last = Math.min(first + drawsPerTask, drawCount);
+            tasks.add(() -> {
+                commandPool.reset();
+                CommandBuffer commandBuffer = commandPool.obtainCommandBuffer(false);
+                secondaryCommandBuffers[worker] = commandBuffer;
+                commandBuffer.beginRecording(inheritanceInfo);
+                drawRecorder.record(commandBuffer, scene, first, last, alpha);
+                commandBuffer.endRecording();
+                return null;
+            });
+        }
+
+        for (int i = 0; i < numTasks; i++) {
+            pendingTasks.add(executorService.submit(tasks.get(i)));
+        }
+    }
+
+    private void awaitTasks() {
+        try {
+            for (int i = 0; i < pendingTasks.size(); i++) {
+                pendingTasks.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while recording command buffers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to record command buffers", e.getCause());
+        } finally {
+            pendingTasks.clear();
+        }
+    }
+
+}
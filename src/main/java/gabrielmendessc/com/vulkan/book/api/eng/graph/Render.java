@@ -2,60 +2,264 @@ package gabrielmendessc.com.vulkan.book.api.eng.graph;
 
 import gabrielmendessc.com.vulkan.book.api.eng.EngineProperties;
 import gabrielmendessc.com.vulkan.book.api.eng.Window;
-import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandPool;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.model.MeshCache;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.model.ModelLoader;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.rendergraph.RenderGraph;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.DeletionQueue;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Device;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.HotSwapSlot;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Instance;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.MemoryAllocator;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PhysicalDevice;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PipelineCache;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PipelineDescription;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.PipelineStateCache;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Queue;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.QueueTopology;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.ShaderCompiler;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.ShaderWatcher;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.SubmitBatch;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Surface;
 import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.SwapChain;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.TimelineSemaphore;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.UploadManager;
+import gabrielmendessc.com.vulkan.book.api.eng.metrics.FrameMetrics;
+import gabrielmendessc.com.vulkan.book.api.eng.metrics.FramePhase;
 import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
 
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class Render {
 
-    private final CommandPool commandPool;
+    private static final int GPU_PROFILER_MAX_SCOPES = 32;
+
+    private final DeletionQueue deletionQueue;
     private final Queue.PresentQueue presentQueue;
     private final ForwardRenderActivity fwdRenderActivity;
+    private final FrameMetrics frameMetrics;
+    private final GpuProfiler gpuProfiler;
+    private final ParallelCommandRecorder parallelCommandRecorder;
     private final Instance instance;
     private final Device device;
     private final Queue.GraphicsQueue graphQueue;
+    private final List<HotSwapSlot<?>> hotSwapSlots;
+    private final MemoryAllocator memoryAllocator;
+    private final ModelLoader modelLoader;
     private final PhysicalDevice physicalDevice;
+    private final PipelineCache pipelineCache;
+    private final PipelineStateCache pipelineStateCache;
+    private final RenderGraph renderGraph;
+    private final ShaderCompiler shaderCompiler;
+    private final ShaderWatcher shaderWatcher;
+    private final SubmitBatch submitBatch;
     private final Surface surface;
+    private final TimelineSemaphore frameTimeline;
+    private final Queue.TransferQueue transferQueue;
+    private final UploadManager uploadManager;
     private SwapChain swapChain;
 
 
-    public Render(Window window, Scene scene) {
+    /*When running headless the window is null: there is no surface nor present queue and the swap chain
+    * renders into offscreen images, but frames still go through the same submit path.*/
+    public Render(Window window, Scene scene, FrameMetrics frameMetrics) {
+        this.frameMetrics = frameMetrics;
         EngineProperties engineProperties = EngineProperties.getInstance();
-        instance = new Instance(engineProperties.isValidate());
-        physicalDevice = PhysicalDevice.createPhysicalDevice(instance, engineProperties.getPhysDeviceName());
-        device = new Device(physicalDevice);
-        surface = new Surface(physicalDevice, window.getWindowHandle());
+        boolean headless = engineProperties.isHeadless();
+        instance = new Instance(engineProperties.isValidate(), headless);
+        physicalDevice = PhysicalDevice.createPhysicalDevice(instance, engineProperties.getPhysDeviceName(), headless);
+        device = new Device(physicalDevice, new QueueTopology(physicalDevice, engineProperties.getGraphicsQueuePriority(),
+                engineProperties.getComputeQueuePriority(), engineProperties.getTransferQueuePriority()));
+        memoryAllocator = new MemoryAllocator(instance, physicalDevice, device);
+        pipelineCache = new PipelineCache(device, Path.of(engineProperties.getPipelineCacheFile()));
+        pipelineStateCache = new PipelineStateCache(device, pipelineCache, engineProperties.getPipelineBuildThreads());
+        shaderCompiler = new ShaderCompiler(Path.of(engineProperties.getShaderCacheDir()), engineProperties.getShaderCompileThreads(),
+                engineProperties.isShaderDebug());
+        shaderWatcher = engineProperties.isShaderHotReload() ? new ShaderWatcher(shaderCompiler) : null;
+        hotSwapSlots = new CopyOnWriteArrayList<>();
         graphQueue = new Queue.GraphicsQueue(device, 0);
-        presentQueue = new Queue.PresentQueue(device, surface, 0);
-        swapChain = new SwapChain(device, surface, window, engineProperties.getRequestedImages(), engineProperties.isVSync(), presentQueue, new Queue[]{graphQueue});
-        commandPool = new CommandPool(device, graphQueue.getQueueFamilyIndex());
-        fwdRenderActivity = new ForwardRenderActivity(swapChain, commandPool);
+        // Frames, uploads and deferred deletions all track the progress of the graphics queue through one counter
+        frameTimeline = engineProperties.isTimelineSemaphores() && device.isTimelineSemaphore() ? new TimelineSemaphore(device) : null;
+        transferQueue = new Queue.TransferQueue(device, 0);
+        uploadManager = new UploadManager(device, memoryAllocator, transferQueue, graphQueue, engineProperties.getStagingRingSize(), frameTimeline);
+        modelLoader = new ModelLoader(memoryAllocator, uploadManager, new MeshCache(Path.of(engineProperties.getMeshCacheDir())),
+                engineProperties.getModelLoadThreads());
+        if (headless) {
+            surface = null;
+            presentQueue = null;
+            swapChain = new SwapChain(device, memoryAllocator, engineProperties.getHeadlessWidth(), engineProperties.getHeadlessHeight(), engineProperties.getRequestedImages());
+        } else {
+            surface = new Surface(physicalDevice, window.getWindowHandle());
+            presentQueue = new Queue.PresentQueue(device, surface, 0);
+            swapChain = new SwapChain(device, surface, window, engineProperties.getRequestedImages(), engineProperties.getPresentModePolicy(), presentQueue, new Queue[]{graphQueue});
+        }
+        deletionQueue = new DeletionQueue(engineProperties.getFramesInFlight(), frameTimeline);
+        submitBatch = new SubmitBatch(device);
+        renderGraph = new RenderGraph(device, memoryAllocator, deletionQueue);
+        parallelCommandRecorder = engineProperties.getRecordingThreads() > 0 ?
+                new ParallelCommandRecorder(device, graphQueue.getQueueFamilyIndex(), engineProperties.getRecordingThreads(), engineProperties.getFramesInFlight()) : null;
+        fwdRenderActivity = new ForwardRenderActivity(swapChain, graphQueue.getQueueFamilyIndex(), engineProperties.getFramesInFlight(), parallelCommandRecorder,
+                frameTimeline, renderGraph, engineProperties.isDynamicRendering() && device.isDynamicRendering());
+        if (engineProperties.isGpuProfiling() && GpuProfiler.isSupported(device, graphQueue.getQueueFamilyIndex())) {
+            gpuProfiler = new GpuProfiler(device, graphQueue.getQueueFamilyIndex(), engineProperties.getFramesInFlight(),
+                    GPU_PROFILER_MAX_SCOPES, engineProperties.getGpuProfilingWindow());
+            fwdRenderActivity.setGpuProfiler(gpuProfiler);
+        } else {
+            gpuProfiler = null;
+        }
     }
 
     public void cleanUp() {
-        presentQueue.waitIdle();
+        if (Objects.nonNull(presentQueue)) {
+            presentQueue.waitIdle();
+        }
         graphQueue.waitIdle();
         device.waitIdle();
+        deletionQueue.cleanUp();
+        modelLoader.cleanUp();
+        uploadManager.cleanUp();
         fwdRenderActivity.cleanUp();
-        commandPool.cleanUp();
+        if (Objects.nonNull(gpuProfiler)) {
+            gpuProfiler.cleanUp();
+        }
+        submitBatch.cleanUp();
+        if (Objects.nonNull(frameTimeline)) {
+            frameTimeline.cleanUp();
+        }
+        if (Objects.nonNull(parallelCommandRecorder)) {
+            parallelCommandRecorder.cleanUp();
+        }
         swapChain.cleanUp();
-        surface.cleanUp();
+        renderGraph.cleanUp();
+        memoryAllocator.cleanUp();
+        pipelineStateCache.cleanUp();
+        pipelineCache.save();
+        pipelineCache.cleanUp();
+        if (Objects.nonNull(shaderWatcher)) {
+            shaderWatcher.cleanUp();
+        }
+        shaderCompiler.cleanUp();
+        if (Objects.nonNull(surface)) {
+            surface.cleanUp();
+        }
         device.cleanUp();
         physicalDevice.cleanUp();
         instance.cleanUp();
     }
 
-    public void render(Window window, Scene scene) {
-        swapChain.acquireNextImage();
+    /*Alpha is how far, between 0 and 1, the frame is from the previous simulation state of the scene to its current
+    * one. It reaches the draw recorder, which blends both.*/
+    public void render(Window window, Scene scene, float alpha) {
+        long start = System.nanoTime();
+        fwdRenderActivity.waitForFrame();
+        long end = System.nanoTime();
+        frameMetrics.record(FramePhase.WAIT_FRAME, end - start);
+        deletionQueue.nextFrame();
+        modelLoader.processUploads();
+        uploadManager.flush();
+        // Indexed loop, iterating the list would allocate every frame
+        for (int i = 0; i < hotSwapSlots.size(); i++) {
+            hotSwapSlots.get(i).swap(deletionQueue);
+        }
+        fwdRenderActivity.prepareCommandBuffers(scene, alpha);
+
+        start = System.nanoTime();
+        boolean outdated = Objects.nonNull(window) && window.isResized() || swapChain.acquireNextImage(fwdRenderActivity.getImgAcquisitionSemaphore());
+        end = System.nanoTime();
+        frameMetrics.record(FramePhase.ACQUIRE, end - start);
+        if (outdated) {
+            resize(window);
+            return;
+        }
 
-        fwdRenderActivity.submit(graphQueue);
+        fwdRenderActivity.recordCommandBuffer(scene, alpha);
+        start = System.nanoTime();
+        frameMetrics.record(FramePhase.RECORD, start - end);
+        fwdRenderActivity.submit(graphQueue, submitBatch);
+        deletionQueue.frameSubmitted();
+        end = System.nanoTime();
+        frameMetrics.record(FramePhase.SUBMIT, end - start);
+
+        boolean presentOutdated = swapChain.presentImage(presentQueue);
+        frameMetrics.record(FramePhase.PRESENT, System.nanoTime() - end);
+        if (presentOutdated) {
+            window.setResized(true);
+        }
+    }
+
+    /*Replacements offered to the slot are swapped in at the start of a frame, before recording. The slot still has
+    * to be cleaned up by its owner.*/
+    public void addHotSwapSlot(HotSwapSlot<?> hotSwapSlot) {
+        hotSwapSlots.add(hotSwapSlot);
+    }
+
+    /*Sets the render pass or the attachment formats of pipelines drawing in the forward pass, which depend on whether
+    * it uses dynamic rendering. Pipelines have to be described again after a resize.*/
+    public PipelineDescription describeForwardTarget(PipelineDescription description) {
+        return fwdRenderActivity.describeTarget(description);
+    }
+
+    /*Null unless gpuProfiling is enabled and the graphics queue supports timestamps.*/
+    public GpuProfiler getGpuProfiler() {
+        return gpuProfiler;
+    }
+
+    public FrameMetrics getFrameMetrics() {
+        return frameMetrics;
+    }
+
+    public PipelineStateCache getPipelineStateCache() {
+        return pipelineStateCache;
+    }
+
+    public PipelineCache getPipelineCache() {
+        return pipelineCache;
+    }
 
-        swapChain.presentImage(presentQueue);
+    /*Null unless shaderHotReload is enabled.*/
+    public ShaderWatcher getShaderWatcher() {
+        return shaderWatcher;
+    }
+
+    public ShaderCompiler getShaderCompiler() {
+        return shaderCompiler;
+    }
+
+    public MemoryAllocator getMemoryAllocator() {
+        return memoryAllocator;
+    }
+
+    public ModelLoader getModelLoader() {
+        return modelLoader;
+    }
+
+    public UploadManager getUploadManager() {
+        return uploadManager;
+    }
+
+    public void setDrawRecorder(DrawRecorder drawRecorder) {
+        fwdRenderActivity.setDrawRecorder(drawRecorder);
+    }
+
+    public void setGraphSetup(ForwardRenderActivity.GraphSetup graphSetup) {
+        fwdRenderActivity.setGraphSetup(graphSetup);
+    }
+
+    private void resize(Window window) {
+        if (window.getWidth() == 0 || window.getHeight() == 0) {
+            // Minimized, keep the resize pending until there is something to render to
+            return;
+        }
+        window.resetResized();
+
+        EngineProperties engineProperties = EngineProperties.getInstance();
+        SwapChain oldSwapChain = swapChain;
+        swapChain = new SwapChain(device, surface, window, engineProperties.getRequestedImages(), engineProperties.getPresentModePolicy(), presentQueue,
+                new Queue[]{graphQueue}, oldSwapChain);
+        fwdRenderActivity.resize(swapChain, deletionQueue);
+        deletionQueue.retire(oldSwapChain::cleanUp);
     }
 
 }
@@ -0,0 +1,282 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.model;
+
+import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.vulkan.VK11.VK_FORMAT_R32G32B32_SFLOAT;
+import static org.lwjgl.vulkan.VK11.VK_FORMAT_R32G32_SFLOAT;
+
+/*Imported models saved in a binary form that is loaded by mapping the file: the vertex and index data of the meshes
+* are slices of the mapping and go from there to the staging ring in one copy, nothing is parsed per vertex. Entries
+* are named after the hash of the source file and the import flags, so an edited source simply misses the cache.
+* Files read by the import besides the source (materials, glTF buffers) are listed in the entry with their hash, an
+* entry whose files changed, appeared or disappeared is stale and is replaced by the next import.
+*
+* Layout, little endian header and blobs in native order:
+*   header, HEADER_SIZE bytes: magic, version, vertex size, number of attributes, number of meshes, number of
+*   dependencies and the source hash;
+*   attributes: offset and format of each vertex attribute;
+*   dependencies: length of the path, whether the file existed, its hash, zeros if not, and its UTF-8 path;
+*   meshes: material index, number of LODs, offset and size of the vertex blob, bounds, then offset and size of the
+*   index blob of each LOD, most detailed first;
+*   blobs, each aligned to BLOB_ALIGNMENT so it can be copied as is.*/
+public class MeshCache {
+
+    private static final long BLOB_ALIGNMENT = 256;
+    private static final int HASH_SIZE = 32;
+    private static final int DEPENDENCY_SIZE = 2 * Integer.BYTES + HASH_SIZE;
+    private static final int HEADER_SIZE = 24 + HASH_SIZE;
+    private static final int LOD_SIZE = 2 * Long.BYTES;
+    private static final int MAGIC = 0x534D4B56;
+    private static final int MESH_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + Scene.BOUNDS_SIZE * Float.BYTES;
+    private static final int VERSION = 2;
+    private static final int[][] VERTEX_ATTRIBUTES = {
+            {0, VK_FORMAT_R32G32B32_SFLOAT},
+            {ModelData.NORMAL_OFFSET, VK_FORMAT_R32G32B32_SFLOAT},
+            {ModelData.TEX_COORDS_OFFSET, VK_FORMAT_R32G32_SFLOAT}};
+
+    private final Path cacheDir;
+
+    public MeshCache(Path cacheDir) {
+        Logger.debug("Mesh cache in [{}]", cacheDir);
+        this.cacheDir = cacheDir;
+    }
+
+    static byte[] hashContent(ByteBuffer content) {
+        MessageDigest digest = newDigest();
+        digest.update(content.duplicate());
+        return digest.digest();
+    }
+
+    /*Returns null if the source can not be read, the import then reports the actual error.*/
+    public String hashSource(Path source, int flags) {
+        MessageDigest digest = newDigest();
+        digest.update(("version=" + VERSION + "\nflags=" + flags + "\n").getBytes());
+        try {
+            return HexFormat.of().formatHex(hashFile(source, digest));
+        } catch (IOException e) {
+            Logger.warn("Could not hash model [{}]", source, e);
+            return null;
+        }
+    }
+
+    /*Returns null if there is no valid entry for the hash.*/
+    public ModelData load(String modelId, String sourceHash) {
+        Path path = getPath(sourceHash);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ModelData modelData = read(modelId, mapping, HexFormat.of().parseHex(sourceHash));
+            if (modelData == null) {
+                Logger.debug("Discarding stale or invalid mesh cache entry [{}]", path);
+            } else {
+                Logger.debug("Loaded model [{}] from mesh cache [{}]", modelId, path);
+            }
+            return modelData;
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Could not read mesh cache entry [{}]", path, e);
+            return null;
+        }
+    }
+
+    /*Dependencies are the other files read by the import with the hash of their content, null for files it could not
+    * open. Failing to store only costs an import on the next load, so it is logged and not thrown.*/
+    public void store(ModelData modelData, String sourceHash, Map<Path, byte[]> dependencies) {
+        Path path = getPath(sourceHash);
+        List<ModelData.MeshData> meshes = modelData.getMeshes();
+        List<byte[]> dependencyPaths = new ArrayList<>(dependencies.size());
+        long dependenciesSize = 0;
+        for (Path dependency : dependencies.keySet()) {
+            byte[] dependencyPath = dependency.toString().getBytes(StandardCharsets.UTF_8);
+            dependencyPaths.add(dependencyPath);
+            dependenciesSize += DEPENDENCY_SIZE + dependencyPath.length;
+        }
+        long tableSize = HEADER_SIZE + (long) VERTEX_ATTRIBUTES.length * 2 * Integer.BYTES + dependenciesSize +
+                (long) meshes.size() * (MESH_SIZE + LOD_SIZE);
+        ByteBuffer table = ByteBuffer.allocate((int) tableSize).order(ByteOrder.LITTLE_ENDIAN);
+        table.putInt(MAGIC).putInt(VERSION).putInt(ModelData.VERTEX_SIZE).putInt(VERTEX_ATTRIBUTES.length).putInt(meshes.size())
+                .putInt(dependencies.size());
+        table.put(HexFormat.of().parseHex(sourceHash));
+        for (int[] attribute : VERTEX_ATTRIBUTES) {
+            table.putInt(attribute[0]).putInt(attribute[1]);
+        }
+        int dependencyIndex = 0;
+        for (byte[] hash : dependencies.values()) {
+            byte[] dependencyPath = dependencyPaths.get(dependencyIndex++);
+            table.putInt(dependencyPath.length).putInt(hash != null ? 1 : 0);
+            table.put(hash != null ? hash : new byte[HASH_SIZE]);
+            table.put(dependencyPath);
+        }
+        long[] blobOffsets = new long[meshes.size() * 2];
+        long offset = align(tableSize);
+        for (int i = 0; i < meshes.size(); i++) {
+            ModelData.MeshData meshData = meshes.get(i);
+            blobOffsets[i * 2] = offset;
+            offset = align(offset + meshData.vertices().remaining());
+            blobOffsets[i * 2 + 1] = offset;
+            offset = align(offset + meshData.indices().remaining());
+
+            table.putInt(meshData.materialIndex()).putInt(1);
+            table.putLong(blobOffsets[i * 2]).putLong(meshData.vertices().remaining());
+            for (float bound : meshData.bounds()) {
+                table.putFloat(bound);
+            }
+            table.putLong(blobOffsets[i * 2 + 1]).putLong(meshData.indices().remaining());
+        }
+        table.flip();
+
+        try {
+            Files.createDirectories(cacheDir);
+            // Unique per thread, two workers may import the same model at the same time
+            Path tmpPath = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().threadId() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(channel, table, 0);
+                for (int i = 0; i < meshes.size(); i++) {
+                    write(channel, meshes.get(i).vertices().duplicate(), blobOffsets[i * 2]);
+                    write(channel, meshes.get(i).indices().duplicate(), blobOffsets[i * 2 + 1]);
+                }
+            }
+            try {
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Logger.debug("Stored model [{}] in mesh cache [{}]", modelData.getModelId(), path);
+        } catch (IOException e) {
+            Logger.warn("Could not store model [{}] in mesh cache", modelData.getModelId(), e);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + BLOB_ALIGNMENT - 1) & -BLOB_ALIGNMENT;
+    }
+
+    /*Returns null if the header does not match this version and layout, a dependency changed or a blob is out of the
+    * file.*/
+    private static ModelData read(String modelId, MappedByteBuffer mapping, byte[] sourceHash) {
+        ByteBuffer table = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (table.remaining() < HEADER_SIZE || table.getInt() != MAGIC || table.getInt() != VERSION ||
+                table.getInt() != ModelData.VERTEX_SIZE || table.getInt() != VERTEX_ATTRIBUTES.length) {
+            return null;
+        }
+        int numMeshes = table.getInt();
+        int numDependencies = table.getInt();
+        byte[] hash = new byte[HASH_SIZE];
+        table.get(hash);
+        if (!Arrays.equals(hash, sourceHash)) {
+            return null;
+        }
+        for (int[] attribute : VERTEX_ATTRIBUTES) {
+            if (table.getInt() != attribute[0] || table.getInt() != attribute[1]) {
+                return null;
+            }
+        }
+        for (int i = 0; i < numDependencies; i++) {
+            int pathLength = table.getInt();
+            boolean existed = table.getInt() != 0;
+            table.get(hash);
+            byte[] dependencyPath = new byte[pathLength];
+            table.get(dependencyPath);
+            if (!isUnchanged(Path.of(new String(dependencyPath, StandardCharsets.UTF_8)), existed, hash)) {
+                return null;
+            }
+        }
+
+        List<ModelData.MeshData> meshes = new ArrayList<>(numMeshes);
+        for (int i = 0; i < numMeshes; i++) {
+            int materialIndex = table.getInt();
+            int numLods = table.getInt();
+            ByteBuffer vertices = slice(mapping, table.getLong(), table.getLong());
+            float[] bounds = new float[Scene.BOUNDS_SIZE];
+            for (int j = 0; j < bounds.length; j++) {
+                bounds[j] = table.getFloat();
+            }
+            ByteBuffer indices = null;
+            for (int lod = 0; lod < numLods; lod++) {
+                ByteBuffer lodIndices = slice(mapping, table.getLong(), table.getLong());
+                // Only the most detailed level is used for now
+                indices = lod == 0 ? lodIndices : indices;
+            }
+            if (vertices == null || indices == null) {
+                return null;
+            }
+            meshes.add(new ModelData.MeshData(vertices, indices, materialIndex, bounds));
+        }
+        return new ModelData(modelId, meshes, mapping);
+    }
+
+    private static byte[] hashFile(Path path, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static boolean isUnchanged(Path dependency, boolean existed, byte[] hash) {
+        if (!Files.isRegularFile(dependency)) {
+            return !existed;
+        }
+        try {
+            if (existed && Arrays.equals(hashFile(dependency, newDigest()), hash)) {
+                return true;
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not hash model dependency [{}]", dependency, e);
+        }
+        Logger.debug("Model dependency [{}] changed", dependency);
+        return false;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    private static ByteBuffer slice(MappedByteBuffer mapping, long offset, long size) {
+        if (offset < 0 || size < 0 || offset + size > mapping.capacity()) {
+            return null;
+        }
+        return mapping.slice((int) offset, (int) size).order(ByteOrder.nativeOrder());
+    }
+
+    private static void write(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    private Path getPath(String sourceHash) {
+        return cacheDir.resolve(sourceHash + ".mesh");
+    }
+
+}
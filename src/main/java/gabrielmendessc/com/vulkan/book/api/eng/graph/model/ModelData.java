@@ -0,0 +1,81 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.model;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/*Meshes of a model ready to be copied to the GPU, in off-heap buffers that are handed to the uploader as they are.
+* Vertices are interleaved, VERTEX_SIZE bytes each: position, normal and texture coordinates as floats. Indices are
+* 32 bit and relative to the first vertex of their mesh. Must be freed once uploaded. Models read from the mesh cache
+* point into the mapped file instead, which is released with the last reference to it.*/
+@Getter
+public class ModelData {
+
+    public static final int INDEX_SIZE = Integer.BYTES;
+    public static final int NORMAL_OFFSET = 3 * Float.BYTES;
+    public static final int TEX_COORDS_OFFSET = 6 * Float.BYTES;
+    public static final int VERTEX_SIZE = 8 * Float.BYTES;
+
+    @Getter(AccessLevel.NONE)
+    private final ByteBuffer mapping;
+    private final List<MeshData> meshes;
+    private final String modelId;
+
+    public ModelData(String modelId, List<MeshData> meshes) {
+        this(modelId, meshes, null);
+    }
+
+    /*Meshes are slices of the mapping, free does not release them.*/
+    public ModelData(String modelId, List<MeshData> meshes, ByteBuffer mapping) {
+        this.modelId = modelId;
+        this.meshes = meshes;
+        this.mapping = mapping;
+    }
+
+    /*Bounds are the local axis aligned box of the vertices, as in Scene: min x, y, z and max x, y, z.*/
+    public record MeshData(ByteBuffer vertices, ByteBuffer indices, int materialIndex, float[] bounds) {
+
+        public int getIndexCount() {
+            return indices.remaining() / INDEX_SIZE;
+        }
+
+        public int getVertexCount() {
+            return vertices.remaining() / VERTEX_SIZE;
+        }
+
+        public void free() {
+            MemoryUtil.memFree(vertices);
+            MemoryUtil.memFree(indices);
+        }
+
+    }
+
+    public void free() {
+        if (mapping != null) {
+            return;
+        }
+        for (MeshData meshData : meshes) {
+            meshData.free();
+        }
+    }
+
+    public long getIndicesSize() {
+        long size = 0;
+        for (MeshData meshData : meshes) {
+            size += meshData.indices().remaining();
+        }
+        return size;
+    }
+
+    public long getVerticesSize() {
+        long size = 0;
+        for (MeshData meshData : meshes) {
+            size += meshData.vertices().remaining();
+        }
+        return size;
+    }
+
+}
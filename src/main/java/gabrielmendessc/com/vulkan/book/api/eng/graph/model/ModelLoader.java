@@ -0,0 +1,270 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.model;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.MemoryAllocator;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.UploadManager;
+import gabrielmendessc.com.vulkan.book.api.eng.scene.Scene;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.system.MemoryUtil;
+import org.tinylog.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+/*Loads models without blocking the render loop. Files are imported by Assimp on a pool of workers and the meshes of
+* a model are then converted in parallel, each straight into its own off-heap vertex and index buffers. Converted
+* models wait in a queue until the render thread calls processUploads, which creates their device buffers and hands
+* the data to the upload manager, a few models per frame so the staging ring is not overrun.
+* With a mesh cache, imported models are saved to it and later loads of the same source map the cached file instead
+* of running Assimp at all.
+* Futures of load are completed on the render thread, dependent actions should be short. Work still queued when the
+* loader is cleaned up gives up, its futures fail.*/
+public class ModelLoader {
+
+    public static final int DEFAULT_FLAGS = aiProcess_Triangulate | aiProcess_JoinIdenticalVertices | aiProcess_GenSmoothNormals |
+            aiProcess_FixInfacingNormals | aiProcess_ImproveCacheLocality | aiProcess_SortByPType;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final ExecutorService executor;
+    private final RecordingFileIO fileIO;
+    private final MemoryAllocator memoryAllocator;
+    private final MeshCache meshCache;
+    private final Queue<PendingUpload> pendingUploads;
+    // Stages chained once the workers are shut down run on the thread completing them instead, where they find the
+    // loader closed and fail, so every future completes
+    private final Executor taskExecutor;
+    private final UploadManager uploadManager;
+    private volatile boolean closed;
+
+    /*The mesh cache is optional.*/
+    public ModelLoader(MemoryAllocator memoryAllocator, UploadManager uploadManager, MeshCache meshCache, int numThreads) {
+        Logger.debug("Creating model loader with [{}] threads", numThreads);
+        this.memoryAllocator = memoryAllocator;
+        this.meshCache = meshCache;
+        this.uploadManager = uploadManager;
+        pendingUploads = new ConcurrentLinkedQueue<>();
+        fileIO = new RecordingFileIO();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(numThreads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "model-loader-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        taskExecutor = runnable -> {
+            try {
+                executor.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                runnable.run();
+            }
+        };
+    }
+
+    private record PendingUpload(ModelData modelData, CompletableFuture<VulkanModel> future) {}
+
+    /*Waits for the workers, Assimp can not be interrupted, and only then frees the models they left waiting for upload,
+    * none can be added afterwards.*/
+    public void cleanUp() {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.warn("Model loads did not finish, their models are leaked");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.warn("Interrupted waiting for model loads, their models are leaked");
+        }
+        PendingUpload pendingUpload;
+        while ((pendingUpload = pendingUploads.poll()) != null) {
+            pendingUpload.modelData.free();
+            pendingUpload.future.cancel(false);
+        }
+        if (executor.isTerminated()) {
+            fileIO.cleanUp();
+        }
+    }
+
+    /*Imports the model and converts its meshes on the workers, without touching the GPU. The caller owns the result
+    * and has to free it.*/
+    public CompletableFuture<ModelData> importModel(String modelId, Path path, int flags) {
+        return CompletableFuture.supplyAsync(() -> {
+                    checkOpen(modelId);
+                    return meshCache != null ? meshCache.hashSource(path, flags) : null;
+                }, taskExecutor)
+                .thenComposeAsync(sourceHash -> {
+                    checkOpen(modelId);
+                    ModelData cached = sourceHash != null ? meshCache.load(modelId, sourceHash) : null;
+                    if (cached != null) {
+                        return CompletableFuture.completedFuture(cached);
+                    }
+                    Logger.debug("Importing model [{}] from [{}]", modelId, path);
+                    Map<Path, byte[]> dependencies = new LinkedHashMap<>();
+                    AIScene aiScene = fileIO.importFile(path, flags, dependencies);
+                    if (aiScene == null) {
+                        throw new RuntimeException("Error loading model [" + path + "]: " + aiGetErrorString());
+                    }
+                    // The source is already part of the hash
+                    dependencies.remove(path.toAbsolutePath().normalize());
+                    return convertMeshes(modelId, aiScene).thenApply(modelData -> {
+                        if (sourceHash != null) {
+                            meshCache.store(modelData, sourceHash, dependencies);
+                        }
+                        return modelData;
+                    });
+                }, taskExecutor);
+    }
+
+    public CompletableFuture<VulkanModel> load(String modelId, Path path) {
+        return load(modelId, path, DEFAULT_FLAGS);
+    }
+
+    /*The model can be used by commands recorded once the future completes.*/
+    public CompletableFuture<VulkanModel> load(String modelId, Path path, int flags) {
+        CompletableFuture<VulkanModel> future = new CompletableFuture<>();
+        importModel(modelId, path, flags).whenComplete((modelData, e) -> {
+            if (e != null) {
+                Logger.error("Could not load model [{}]", modelId, e);
+                future.completeExceptionally(e);
+            } else {
+                pendingUploads.add(new PendingUpload(modelData, future));
+            }
+        });
+        return future;
+    }
+
+    /*Must be called from the render thread before flushing the upload manager. Uploads queued models until the staging
+    * ring is filled once, always at least one.*/
+    public void processUploads() {
+        long budget = uploadManager.getRingSize();
+        long uploaded = 0;
+        PendingUpload pendingUpload;
+        while (uploaded < budget && (pendingUpload = pendingUploads.poll()) != null) {
+            ModelData modelData = pendingUpload.modelData;
+            try {
+                VulkanModel vulkanModel = new VulkanModel(memoryAllocator, uploadManager, modelData);
+                uploaded += modelData.getVerticesSize() + modelData.getIndicesSize();
+                pendingUpload.future.complete(vulkanModel);
+            } catch (RuntimeException e) {
+                pendingUpload.future.completeExceptionally(e);
+            } finally {
+                modelData.free();
+            }
+        }
+    }
+
+    private void checkOpen(String modelId) {
+        if (closed) {
+            throw new RuntimeException("Model loader cleaned up before loading model [" + modelId + "]");
+        }
+    }
+
+    private static ModelData.MeshData convertMesh(AIMesh aiMesh) {
+        int numVertices = aiMesh.mNumVertices();
+        int numFaces = aiMesh.mNumFaces();
+        ByteBuffer vertices = MemoryUtil.memAlloc(numVertices * ModelData.VERTEX_SIZE);
+        ByteBuffer indices = null;
+        try {
+            // Assimp vectors are tightly packed floats, read straight from its memory
+            long positions = aiMesh.mVertices().address();
+            long normals = aiMesh.mNormals() != null ? aiMesh.mNormals().address() : MemoryUtil.NULL;
+            long texCoords = aiMesh.mTextureCoords(0) != null ? aiMesh.mTextureCoords(0).address() : MemoryUtil.NULL;
+            long dst = MemoryUtil.memAddress(vertices);
+            float[] bounds = new float[Scene.BOUNDS_SIZE];
+            for (int i = 0; i < numVertices; i++) {
+                long src = i * 3L * Float.BYTES;
+                long vertex = dst + (long) i * ModelData.VERTEX_SIZE;
+                MemoryUtil.memCopy(positions + src, vertex, 3L * Float.BYTES);
+                for (int j = 0; j < 3; j++) {
+                    float value = MemoryUtil.memGetFloat(positions + src + (long) j * Float.BYTES);
+                    bounds[j] = i == 0 ? value : Math.min(bounds[j], value);
+                    bounds[j + 3] = i == 0 ? value : Math.max(bounds[j + 3], value);
+                }
+                if (normals != MemoryUtil.NULL) {
+                    MemoryUtil.memCopy(normals + src, vertex + ModelData.NORMAL_OFFSET, 3L * Float.BYTES);
+                } else {
+                    MemoryUtil.memSet(vertex + ModelData.NORMAL_OFFSET, 0, 3L * Float.BYTES);
+                }
+                if (texCoords != MemoryUtil.NULL) {
+                    // Vulkan has the origin of textures at the top
+                    MemoryUtil.memPutFloat(vertex + ModelData.TEX_COORDS_OFFSET, MemoryUtil.memGetFloat(texCoords + src));
+                    MemoryUtil.memPutFloat(vertex + ModelData.TEX_COORDS_OFFSET + Float.BYTES, 1 - MemoryUtil.memGetFloat(texCoords + src + Float.BYTES));
+                } else {
+                    MemoryUtil.memSet(vertex + ModelData.TEX_COORDS_OFFSET, 0, 2L * Float.BYTES);
+                }
+            }
+
+            // Faces are walked by address, a struct per face would mean millions of objects for big meshes
+            long faces = aiMesh.mFaces().address();
+            int numIndices = 0;
+            for (int i = 0; i < numFaces; i++) {
+                numIndices += AIFace.nmNumIndices(faces + (long) i * AIFace.SIZEOF);
+            }
+            indices = MemoryUtil.memAlloc(numIndices * ModelData.INDEX_SIZE);
+            long indexAddress = MemoryUtil.memAddress(indices);
+            for (int i = 0; i < numFaces; i++) {
+                long face = faces + (long) i * AIFace.SIZEOF;
+                long size = (long) AIFace.nmNumIndices(face) * ModelData.INDEX_SIZE;
+                MemoryUtil.memCopy(MemoryUtil.memGetAddress(face + AIFace.MINDICES), indexAddress, size);
+                indexAddress += size;
+            }
+            return new ModelData.MeshData(vertices, indices, aiMesh.mMaterialIndex(), bounds);
+        } catch (RuntimeException e) {
+            MemoryUtil.memFree(vertices);
+            MemoryUtil.memFree(indices);
+            throw e;
+        }
+    }
+
+    /*Each mesh is a task of its own. The scene is released once all of them are done, whatever happened.*/
+    private CompletableFuture<ModelData> convertMeshes(String modelId, AIScene aiScene) {
+        int numMeshes = aiScene.mNumMeshes();
+        PointerBuffer aiMeshes = aiScene.mMeshes();
+        List<CompletableFuture<ModelData.MeshData>> meshFutures = new ArrayList<>(numMeshes);
+        for (int i = 0; i < numMeshes; i++) {
+            AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
+            if ((aiMesh.mPrimitiveTypes() & aiPrimitiveType_TRIANGLE) == 0) {
+                // Points and lines, split apart by aiProcess_SortByPType
+                continue;
+            }
+            meshFutures.add(CompletableFuture.supplyAsync(() -> {
+                checkOpen(modelId);
+                return convertMesh(aiMesh);
+            }, taskExecutor));
+        }
+        return CompletableFuture.allOf(meshFutures.toArray(CompletableFuture[]::new)).handle((ignored, e) -> {
+            aiReleaseImport(aiScene);
+            List<ModelData.MeshData> meshes = new ArrayList<>(numMeshes);
+            for (CompletableFuture<ModelData.MeshData> meshFuture : meshFutures) {
+                if (!meshFuture.isCompletedExceptionally()) {
+                    meshes.add(meshFuture.join());
+                }
+            }
+            if (e != null) {
+                // Free the meshes that did convert
+                new ModelData(modelId, meshes).free();
+                throw new RuntimeException("Error converting meshes of model [" + modelId + "]", e);
+            }
+            Logger.debug("Imported model [{}] with [{}] meshes", modelId, meshes.size());
+            return new ModelData(modelId, meshes);
+        });
+    }
+
+}
@@ -0,0 +1,168 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.model;
+
+import org.lwjgl.assimp.AIFile;
+import org.lwjgl.assimp.AIFileCloseProc;
+import org.lwjgl.assimp.AIFileFlushProc;
+import org.lwjgl.assimp.AIFileIO;
+import org.lwjgl.assimp.AIFileOpenProc;
+import org.lwjgl.assimp.AIFileReadProc;
+import org.lwjgl.assimp.AIFileSeek;
+import org.lwjgl.assimp.AIFileTellProc;
+import org.lwjgl.assimp.AIFileWriteProc;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.system.MemoryUtil;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+/*File system handed to Assimp that reads files through Java and records every file an import opens, with the hash
+* of the content it read, or null if it could not be opened. Formats such as glTF and OBJ read their geometry and
+* materials from other files, the mesh cache needs them all to tell whether an entry is stale.
+* Files are read whole when opened. The callbacks are shared by every import, the state of an import or of an open
+* file is found by the address of its struct.*/
+class RecordingFileIO {
+
+    private final AIFileCloseProc closeProc;
+    private final AIFileFlushProc flushProc;
+    // Opened files of each import, by the address of its AIFileIO
+    private final Map<Long, Map<Path, byte[]>> imports;
+    private final AIFileOpenProc openProc;
+    private final Map<Long, OpenFile> openFiles;
+    private final AIFileReadProc readProc;
+    private final AIFileSeek seekProc;
+    private final AIFileTellProc sizeProc;
+    private final AIFileTellProc tellProc;
+    private final AIFileWriteProc writeProc;
+
+    RecordingFileIO() {
+        imports = new ConcurrentHashMap<>();
+        openFiles = new ConcurrentHashMap<>();
+        openProc = AIFileOpenProc.create((pFileIO, fileName, openMode) -> open(pFileIO, MemoryUtil.memUTF8(fileName), MemoryUtil.memUTF8(openMode)));
+        closeProc = AIFileCloseProc.create((pFileIO, pFile) -> close(pFile));
+        readProc = AIFileReadProc.create(this::read);
+        // Models are only read
+        writeProc = AIFileWriteProc.create((pFile, pBuffer, size, count) -> 0);
+        tellProc = AIFileTellProc.create(pFile -> openFiles.get(pFile).position);
+        sizeProc = AIFileTellProc.create(pFile -> openFiles.get(pFile).data.remaining());
+        seekProc = AIFileSeek.create(this::seek);
+        flushProc = AIFileFlushProc.create(pFile -> {});
+    }
+
+    private static class OpenFile {
+
+        private final ByteBuffer data;
+        private long position;
+
+        private OpenFile(ByteBuffer data) {
+            this.data = data;
+        }
+
+    }
+
+    /*Must not be called while imports are running.*/
+    void cleanUp() {
+        openProc.free();
+        closeProc.free();
+        readProc.free();
+        writeProc.free();
+        tellProc.free();
+        sizeProc.free();
+        seekProc.free();
+        flushProc.free();
+    }
+
+    /*Fills the opened files, the source included, keyed by their absolute path. Returns null if the import failed.*/
+    AIScene importFile(Path path, int flags, Map<Path, byte[]> openedFiles) {
+        AIFileIO fileIO = AIFileIO.calloc()
+                .OpenProc(openProc)
+                .CloseProc(closeProc);
+        imports.put(fileIO.address(), openedFiles);
+        try {
+            return aiImportFileEx(path.toString(), flags, fileIO);
+        } finally {
+            imports.remove(fileIO.address());
+            fileIO.free();
+        }
+    }
+
+    private void close(long pFile) {
+        OpenFile openFile = openFiles.remove(pFile);
+        if (openFile != null) {
+            MemoryUtil.memFree(openFile.data);
+        }
+        AIFile.create(pFile).free();
+    }
+
+    private long open(long pFileIO, String fileName, String openMode) {
+        Path path = Path.of(fileName).toAbsolutePath().normalize();
+        Map<Path, byte[]> openedFiles = imports.get(pFileIO);
+        if (openMode.contains("w")) {
+            Logger.warn("Model import tried to write [{}]", path);
+            return MemoryUtil.NULL;
+        }
+        ByteBuffer data = null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too big");
+            }
+            // Never empty, allocating zero bytes may fail
+            data = MemoryUtil.memAlloc((int) Math.max(size, 1)).limit((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    break;
+                }
+            }
+            data.flip();
+        } catch (IOException e) {
+            // Also how Assimp checks whether a file exists, recorded so the file appearing later is noticed
+            MemoryUtil.memFree(data);
+            openedFiles.putIfAbsent(path, null);
+            return MemoryUtil.NULL;
+        }
+        openedFiles.put(path, MeshCache.hashContent(data));
+
+        AIFile aiFile = AIFile.calloc()
+                .ReadProc(readProc)
+                .WriteProc(writeProc)
+                .TellProc(tellProc)
+                .FileSizeProc(sizeProc)
+                .SeekProc(seekProc)
+                .FlushProc(flushProc);
+        openFiles.put(aiFile.address(), new OpenFile(data));
+        return aiFile.address();
+    }
+
+    private long read(long pFile, long pBuffer, long size, long count) {
+        if (size <= 0) {
+            return 0;
+        }
+        OpenFile openFile = openFiles.get(pFile);
+        // Whole elements only, as fread does
+        long numElements = Math.min(count, (openFile.data.remaining() - openFile.position) / size);
+        long numBytes = numElements * size;
+        MemoryUtil.memCopy(MemoryUtil.memAddress(openFile.data) + openFile.position, pBuffer, numBytes);
+        openFile.position += numBytes;
+        return numElements;
+    }
+
+    private int seek(long pFile, long offset, int origin) {
+        OpenFile openFile = openFiles.get(pFile);
+        long base = origin == aiOrigin_SET ? 0 : origin == aiOrigin_CUR ? openFile.position : openFile.data.remaining();
+        long position = base + offset;
+        if (position < 0 || position > openFile.data.remaining()) {
+            return aiReturn_FAILURE;
+        }
+        openFile.position = position;
+        return aiReturn_SUCCESS;
+    }
+
+}
@@ -0,0 +1,71 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.model;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.MemoryAllocator;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.MemoryUsage;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.UploadManager;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VulkanBuffer;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Model in device local memory. All its meshes share a vertex buffer and an index buffer, each mesh is a range of
+* them, so a model is drawn binding both buffers once.*/
+@Getter
+public class VulkanModel {
+
+    private final VulkanBuffer indexBuffer;
+    private final String modelId;
+    private final List<VulkanMesh> meshes;
+    private final VulkanBuffer vertexBuffer;
+
+    /*Queues the copies of the data, which can be freed as soon as this returns. The buffers can be used by any command
+    * submitted to the graphics queue after the next flush of the upload manager.*/
+    public VulkanModel(MemoryAllocator memoryAllocator, UploadManager uploadManager, ModelData modelData) {
+        modelId = modelData.getModelId();
+        // Empty buffers are not allowed
+        vertexBuffer = new VulkanBuffer(memoryAllocator, Math.max(modelData.getVerticesSize(), 1),
+                VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT, MemoryUsage.GPU_ONLY);
+        indexBuffer = new VulkanBuffer(memoryAllocator, Math.max(modelData.getIndicesSize(), 1),
+                VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT, MemoryUsage.GPU_ONLY);
+
+        List<VulkanMesh> vulkanMeshes = new ArrayList<>(modelData.getMeshes().size());
+        long vertexOffset = 0;
+        long indexOffset = 0;
+        for (ModelData.MeshData meshData : modelData.getMeshes()) {
+            vulkanMeshes.add(new VulkanMesh((int) (vertexOffset / ModelData.VERTEX_SIZE), (int) (indexOffset / ModelData.INDEX_SIZE),
+                    meshData.getIndexCount(), meshData.materialIndex()));
+            upload(uploadManager, vertexBuffer, vertexOffset, meshData.vertices());
+            upload(uploadManager, indexBuffer, indexOffset, meshData.indices());
+            vertexOffset += meshData.vertices().remaining();
+            indexOffset += meshData.indices().remaining();
+        }
+        meshes = Collections.unmodifiableList(vulkanMeshes);
+    }
+
+    /*Arguments of vkCmdDrawIndexed for the mesh, the vertex offset is added to its indices.*/
+    public record VulkanMesh(int vertexOffset, int firstIndex, int indexCount, int materialIndex) {}
+
+    public void cleanUp() {
+        vertexBuffer.cleanUp();
+        indexBuffer.cleanUp();
+    }
+
+    private static void upload(UploadManager uploadManager, VulkanBuffer dstBuffer, long dstOffset, ByteBuffer data) {
+        // Meshes bigger than the staging ring go in several copies
+        long chunkSize = uploadManager.getRingSize();
+        int position = data.position();
+        int limit = data.limit();
+        int start = position;
+        while (start < limit) {
+            int end = (int) Math.min(start + chunkSize, limit);
+            uploadManager.upload(dstBuffer, dstOffset + start - position, data.slice(start, end - start));
+            start = end;
+        }
+    }
+
+}
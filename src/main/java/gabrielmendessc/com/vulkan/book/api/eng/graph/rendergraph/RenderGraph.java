@@ -0,0 +1,428 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.rendergraph;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.GpuProfiler;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.CommandBuffer;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.DeletionQueue;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Device;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.MemoryAllocator;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkImageMemoryBarrier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Frame graph: each frame the passes are declared again together with the images they read and write, and the graph
+* works out the rest when it is executed:
+* - Passes whose results are never used are culled. A pass is kept when it has side effects, writes an imported image
+*   (the swap chain one for instance) or writes something a kept pass uses.
+* - Layout transitions and barriers are placed right before the pass that needs them, with the exact stages and
+*   accesses involved, and imported images are left in their final layout after the last pass.
+* - Transient images only live between their first and last use, images whose lifetimes do not overlap share memory.
+*   They are kept from frame to frame and only recreated when the declared images or their lifetimes change.
+* Passes must use each image once: an image can not be both sampled and an attachment in the same pass.*/
+public class RenderGraph {
+
+    private final DeletionQueue deletionQueue;
+    private final Device device;
+    private final MemoryAllocator memoryAllocator;
+    private final List<Pass> passes;
+    private final List<Resource> resources;
+    private int dstStageMask;
+    private int numPasses;
+    private int numResources;
+    private int srcStageMask;
+    private TransientImagePool transientImagePool;
+
+    public RenderGraph(Device device, MemoryAllocator memoryAllocator, DeletionQueue deletionQueue) {
+        this.device = device;
+        this.memoryAllocator = memoryAllocator;
+        this.deletionQueue = deletionQueue;
+        passes = new ArrayList<>();
+        resources = new ArrayList<>();
+    }
+
+    /*Records the commands of a pass. Images are looked up by their handle through the graph.*/
+    public interface PassExecutor {
+
+        void execute(CommandBuffer commandBuffer, RenderGraph renderGraph);
+
+    }
+
+    public Pass addPass(String name, PassExecutor executor) {
+        if (numPasses == passes.size()) {
+            passes.add(new Pass());
+        }
+        Pass pass = passes.get(numPasses++);
+        pass.reset(name, executor);
+        return pass;
+    }
+
+    public void cleanUp() {
+        if (transientImagePool != null) {
+            transientImagePool.cleanUp();
+            transientImagePool = null;
+        }
+    }
+
+    /*Returns the handle of a transient image, its contents do not survive the frame.*/
+    public int createImage(String name, int width, int height, int format) {
+        Resource resource = nextResource();
+        resource.reset(name, false, width, height, format);
+        return resource.index;
+    }
+
+    /*Records the passes that are not culled, with their barriers, into the command buffer. Each pass gets a GPU
+    * profiler scope named after it when the profiler is not null.*/
+    public void execute(CommandBuffer commandBuffer, GpuProfiler gpuProfiler) {
+        cull();
+        allocateTransients();
+        for (int i = 0; i < numResources; i++) {
+            resources.get(i).beginFrame(transientImagePool);
+        }
+
+        for (int i = 0; i < numPasses; i++) {
+            Pass pass = passes.get(i);
+            if (!pass.alive) {
+                continue;
+            }
+            recordBarriers(commandBuffer, pass);
+            int scope = gpuProfiler != null ? gpuProfiler.beginScope(commandBuffer, pass.name) : -1;
+            pass.executor.execute(commandBuffer, this);
+            if (gpuProfiler != null) {
+                gpuProfiler.endScope(commandBuffer, scope);
+            }
+        }
+        recordFinalBarriers(commandBuffer);
+    }
+
+    public int getFormat(int resource) {
+        return resources.get(resource).format;
+    }
+
+    public int getHeight(int resource) {
+        return resources.get(resource).height;
+    }
+
+    public long getImage(int resource) {
+        return resources.get(resource).vkImage;
+    }
+
+    public long getImageView(int resource) {
+        return resources.get(resource).vkImageView;
+    }
+
+    public int getWidth(int resource) {
+        return resources.get(resource).width;
+    }
+
+    /*Returns the handle of an image owned outside the graph. Its first use waits for the initial stage, which for a
+    * swap chain image must be the stage the acquire semaphore is waited at, and it is left in the final layout.*/
+    public int importImage(String name, long vkImage, long vkImageView, int width, int height, int format, int initialLayout,
+                           int initialStage, int finalLayout) {
+        Resource resource = nextResource();
+        resource.reset(name, true, width, height, format);
+        resource.vkImage = vkImage;
+        resource.vkImageView = vkImageView;
+        resource.initialLayout = initialLayout;
+        resource.initialStage = initialStage;
+        resource.finalLayout = finalLayout;
+        return resource.index;
+    }
+
+    /*Must be called before declaring the passes of a new frame.*/
+    public void reset() {
+        numPasses = 0;
+        numResources = 0;
+    }
+
+    static int getAspectMask(int format) {
+        return switch (format) {
+            case VK_FORMAT_D16_UNORM, VK_FORMAT_X8_D24_UNORM_PACK32, VK_FORMAT_D32_SFLOAT -> VK_IMAGE_ASPECT_DEPTH_BIT;
+            case VK_FORMAT_D16_UNORM_S8_UINT, VK_FORMAT_D24_UNORM_S8_UINT, VK_FORMAT_D32_SFLOAT_S8_UINT ->
+                    VK_IMAGE_ASPECT_DEPTH_BIT | VK_IMAGE_ASPECT_STENCIL_BIT;
+            case VK_FORMAT_S8_UINT -> VK_IMAGE_ASPECT_STENCIL_BIT;
+            default -> VK_IMAGE_ASPECT_COLOR_BIT;
+        };
+    }
+
+    private void addBarrier(VkImageMemoryBarrier barrier, Resource resource, int newLayout, int srcStage, int srcAccess,
+                            int dstStage, int dstAccess) {
+        barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+                .oldLayout(resource.layout)
+                .newLayout(newLayout)
+                .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                .srcAccessMask(srcAccess)
+                .dstAccessMask(dstAccess)
+                .image(resource.vkImage)
+                .subresourceRange(it -> it
+                        .aspectMask(getAspectMask(resource.format))
+                        .baseMipLevel(0)
+                        .levelCount(VK_REMAINING_MIP_LEVELS)
+                        .baseArrayLayer(0)
+                        .layerCount(VK_REMAINING_ARRAY_LAYERS));
+        srcStageMask |= srcStage != 0 ? srcStage : VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
+        dstStageMask |= dstStage;
+    }
+
+    private void allocateTransients() {
+        for (int i = 0; i < numResources; i++) {
+            resources.get(i).clearLifetime();
+        }
+        for (int i = 0; i < numPasses; i++) {
+            Pass pass = passes.get(i);
+            if (!pass.alive) {
+                continue;
+            }
+            for (int j = 0; j < pass.numAccesses; j++) {
+                resources.get(pass.accessResources[j]).addUse(i, pass.accessUsages[j]);
+            }
+        }
+        if (transientImagePool != null && transientImagePool.matches(resources, numResources)) {
+            return;
+        }
+        if (transientImagePool != null) {
+            // Frames in flight may still use the previous images
+            TransientImagePool retiredPool = transientImagePool;
+            deletionQueue.retire(retiredPool::cleanUp);
+        }
+        transientImagePool = new TransientImagePool(device, memoryAllocator, resources, numResources);
+    }
+
+    private void cull() {
+        for (int i = 0; i < numResources; i++) {
+            resources.get(i).needed = false;
+        }
+        for (int i = numPasses - 1; i >= 0; i--) {
+            Pass pass = passes.get(i);
+            boolean alive = pass.sideEffect;
+            for (int j = 0; j < pass.numAccesses && !alive; j++) {
+                Resource resource = resources.get(pass.accessResources[j]);
+                alive = pass.accessUsages[j].isWrite() && (resource.imported || resource.needed);
+            }
+            pass.alive = alive;
+            if (alive) {
+                // Written images count too, a pass may load what earlier passes wrote
+                for (int j = 0; j < pass.numAccesses; j++) {
+                    resources.get(pass.accessResources[j]).needed = true;
+                }
+            }
+        }
+    }
+
+    private Resource nextResource() {
+        if (numResources == resources.size()) {
+            resources.add(new Resource(numResources));
+        }
+        return resources.get(numResources++);
+    }
+
+    private void recordBarriers(CommandBuffer commandBuffer, Pass pass) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkImageMemoryBarrier.Buffer barriers = VkImageMemoryBarrier.calloc(pass.numAccesses, stack);
+            int numBarriers = 0;
+            srcStageMask = 0;
+            dstStageMask = 0;
+            for (int i = 0; i < pass.numAccesses; i++) {
+                Resource resource = resources.get(pass.accessResources[i]);
+                ResourceUsage usage = pass.accessUsages[i];
+                resource.acquireSlot(transientImagePool);
+                boolean layoutChange = resource.layout != usage.getLayout();
+                if (layoutChange || usage.isWrite()) {
+                    // Transitions and writes wait for the last write and for every read since (WAR)
+                    addBarrier(barriers.get(numBarriers++), resource, usage.getLayout(), resource.writeStages | resource.readStages,
+                            resource.writeAccess, usage.getStageMask(), usage.getAccessMask());
+                    resource.layout = usage.getLayout();
+                    resource.writeStages = usage.getStageMask();
+                    resource.writeAccess = usage.getWriteAccessMask();
+                    resource.readStages = usage.isWrite() ? 0 : usage.getStageMask();
+                } else if ((resource.readStages & usage.getStageMask()) != usage.getStageMask()) {
+                    // First read at these stages since the last write
+                    addBarrier(barriers.get(numBarriers++), resource, usage.getLayout(), resource.writeStages,
+                            resource.writeAccess, usage.getStageMask(), usage.getAccessMask());
+                    resource.readStages |= usage.getStageMask();
+                }
+                resource.updateSlot(transientImagePool);
+            }
+            if (numBarriers > 0) {
+                vkCmdPipelineBarrier(commandBuffer.getVkCommandBuffer(), srcStageMask, dstStageMask, 0, null, null,
+                        barriers.limit(numBarriers));
+            }
+        }
+    }
+
+    private void recordFinalBarriers(CommandBuffer commandBuffer) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkImageMemoryBarrier.Buffer barriers = VkImageMemoryBarrier.calloc(Math.max(numResources, 1), stack);
+            int numBarriers = 0;
+            srcStageMask = 0;
+            dstStageMask = 0;
+            for (int i = 0; i < numResources; i++) {
+                Resource resource = resources.get(i);
+                if (resource.imported && resource.layout != resource.finalLayout) {
+                    addBarrier(barriers.get(numBarriers++), resource, resource.finalLayout, resource.writeStages | resource.readStages,
+                            resource.writeAccess, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0);
+                    resource.layout = resource.finalLayout;
+                }
+            }
+            if (numBarriers > 0) {
+                vkCmdPipelineBarrier(commandBuffer.getVkCommandBuffer(), srcStageMask, dstStageMask, 0, null, null,
+                        barriers.limit(numBarriers));
+            }
+        }
+    }
+
+    /*Declared by addPass. Passes and their accesses are reused from frame to frame, declaring a frame does not
+    * allocate once the graph has seen it.*/
+    public static class Pass {
+
+        private static final int INITIAL_ACCESSES = 4;
+
+        private int[] accessResources;
+        private ResourceUsage[] accessUsages;
+        private boolean alive;
+        private PassExecutor executor;
+        private String name;
+        private int numAccesses;
+        private boolean sideEffect;
+
+        private Pass() {
+            accessResources = new int[INITIAL_ACCESSES];
+            accessUsages = new ResourceUsage[INITIAL_ACCESSES];
+        }
+
+        public Pass read(int resource, ResourceUsage usage) {
+            if (usage.isWrite()) {
+                throw new RuntimeException("Usage [" + usage + "] of pass [" + name + "] is a write");
+            }
+            return addAccess(resource, usage);
+        }
+
+        /*The pass is never culled, for passes with effects the graph can not see (readbacks, for instance).*/
+        public Pass sideEffect() {
+            sideEffect = true;
+            return this;
+        }
+
+        public Pass write(int resource, ResourceUsage usage) {
+            if (!usage.isWrite()) {
+                throw new RuntimeException("Usage [" + usage + "] of pass [" + name + "] is a read");
+            }
+            return addAccess(resource, usage);
+        }
+
+        private Pass addAccess(int resource, ResourceUsage usage) {
+            if (numAccesses == accessResources.length) {
+                accessResources = Arrays.copyOf(accessResources, numAccesses * 2);
+                accessUsages = Arrays.copyOf(accessUsages, numAccesses * 2);
+            }
+            accessResources[numAccesses] = resource;
+            accessUsages[numAccesses] = usage;
+            numAccesses++;
+            return this;
+        }
+
+        private void reset(String name, PassExecutor executor) {
+            this.name = name;
+            this.executor = executor;
+            numAccesses = 0;
+            sideEffect = false;
+            alive = false;
+        }
+
+    }
+
+    static class Resource {
+
+        final int index;
+        int firstUse;
+        int format;
+        int height;
+        boolean imported;
+        int imageUsage;
+        int lastUse;
+        String name;
+        int width;
+        private int finalLayout;
+        private int initialLayout;
+        private int initialStage;
+        private int layout;
+        private boolean needed;
+        private boolean pendingSlot;
+        private int readStages;
+        private long vkImage;
+        private long vkImageView;
+        private int writeAccess;
+        private int writeStages;
+
+        private Resource(int index) {
+            this.index = index;
+        }
+
+        boolean isUsedTransient() {
+            return !imported && firstUse >= 0;
+        }
+
+        private void addUse(int pass, ResourceUsage usage) {
+            if (firstUse < 0) {
+                firstUse = pass;
+            }
+            lastUse = pass;
+            imageUsage |= usage.getImageUsage();
+        }
+
+        /*Transient images start undefined, after whatever used their memory last: an aliased image earlier in this
+        * frame or the last one of the previous frame. Known only once the passes before have been recorded.*/
+        private void acquireSlot(TransientImagePool transientImagePool) {
+            if (pendingSlot) {
+                writeStages = transientImagePool.getSlotStages(index);
+                writeAccess = transientImagePool.getSlotAccess(index);
+                pendingSlot = false;
+            }
+        }
+
+        private void beginFrame(TransientImagePool transientImagePool) {
+            readStages = 0;
+            writeAccess = 0;
+            writeStages = 0;
+            pendingSlot = false;
+            if (imported) {
+                layout = initialLayout;
+                writeStages = initialStage;
+            } else if (isUsedTransient()) {
+                layout = VK_IMAGE_LAYOUT_UNDEFINED;
+                vkImage = transientImagePool.getImage(index);
+                vkImageView = transientImagePool.getImageView(index);
+                pendingSlot = true;
+            }
+        }
+
+        private void clearLifetime() {
+            firstUse = -1;
+            lastUse = -1;
+            imageUsage = 0;
+        }
+
+        private void reset(String name, boolean imported, int width, int height, int format) {
+            this.name = name;
+            this.imported = imported;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            vkImage = VK_NULL_HANDLE;
+            vkImageView = VK_NULL_HANDLE;
+            clearLifetime();
+        }
+
+        private void updateSlot(TransientImagePool transientImagePool) {
+            if (!imported) {
+                transientImagePool.setSlotState(index, writeStages | readStages, writeAccess);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,235 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.rendergraph;
+
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.Device;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.ImageView;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.MemoryAllocator;
+import gabrielmendessc.com.vulkan.book.api.eng.graph.vk.MemoryUsage;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.vma.VmaAllocationCreateInfo;
+import org.lwjgl.vulkan.VkImageCreateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+import org.tinylog.Logger;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.system.MemoryUtil.memPutInt;
+import static org.lwjgl.system.MemoryUtil.memPutLong;
+import static org.lwjgl.util.vma.Vma.vmaAllocateMemory;
+import static org.lwjgl.util.vma.Vma.vmaBindImageMemory;
+import static org.lwjgl.util.vma.Vma.vmaFreeMemory;
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Images and memory of the transient images of a render graph. Images are placed in memory slots, each a single
+* allocation: an image goes to the first slot whose images are not used in any pass of its lifetime and that has a
+* compatible memory type, so the memory of a frame is bounded by its peak of live images instead of their sum. Each
+* slot remembers the stages and accesses that used it last, which the next image placed in it has to wait for.*/
+class TransientImagePool {
+
+    private final Device device;
+    private final int[] firstUses;
+    private final int[] formats;
+    private final int[] heights;
+    private final ImageView[] imageViews;
+    private final int[] imageUsages;
+    private final long[] images;
+    private final int[] lastUses;
+    private final MemoryAllocator memoryAllocator;
+    private final int[] resourceSlots;
+    private final long[] slotAllocations;
+    private final int[] slotAccess;
+    private final int[] slotStages;
+    private final int[] widths;
+
+    TransientImagePool(Device device, MemoryAllocator memoryAllocator, List<RenderGraph.Resource> resources, int numResources) {
+        this.device = device;
+        this.memoryAllocator = memoryAllocator;
+        firstUses = new int[numResources];
+        formats = new int[numResources];
+        heights = new int[numResources];
+        imageUsages = new int[numResources];
+        lastUses = new int[numResources];
+        widths = new int[numResources];
+        images = new long[numResources];
+        imageViews = new ImageView[numResources];
+        resourceSlots = new int[numResources];
+        Arrays.fill(resourceSlots, -1);
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkMemoryRequirements[] requirements = new VkMemoryRequirements[numResources];
+            List<Integer> transients = new ArrayList<>();
+            for (int i = 0; i < numResources; i++) {
+                RenderGraph.Resource resource = resources.get(i);
+                firstUses[i] = resource.firstUse;
+                lastUses[i] = resource.lastUse;
+                formats[i] = resource.format;
+                widths[i] = resource.width;
+                heights[i] = resource.height;
+                imageUsages[i] = resource.imageUsage;
+                if (!resource.isUsedTransient()) {
+                    firstUses[i] = -1;
+                    continue;
+                }
+                images[i] = createImage(stack, resource);
+                requirements[i] = VkMemoryRequirements.malloc(stack);
+                vkGetImageMemoryRequirements(device.getVkDevice(), images[i], requirements[i]);
+                transients.add(i);
+            }
+
+            // Largest first, so small images fill the gaps left in the slots of big ones
+            transients.sort((a, b) -> Long.compare(requirements[b].size(), requirements[a].size()));
+            List<List<Integer>> slots = new ArrayList<>();
+            List<long[]> slotRequirements = new ArrayList<>();
+            for (int resource : transients) {
+                int slot = findSlot(slots, slotRequirements, requirements[resource], resource);
+                if (slot < 0) {
+                    slot = slots.size();
+                    slots.add(new ArrayList<>());
+                    slotRequirements.add(new long[]{0, 1, 0xFFFFFFFFL});
+                }
+                slots.get(slot).add(resource);
+                long[] slotRequirement = slotRequirements.get(slot);
+                slotRequirement[0] = Math.max(slotRequirement[0], requirements[resource].size());
+                slotRequirement[1] = Math.max(slotRequirement[1], requirements[resource].alignment());
+                slotRequirement[2] &= requirements[resource].memoryTypeBits();
+                resourceSlots[resource] = slot;
+            }
+
+            slotAllocations = new long[slots.size()];
+            slotStages = new int[slots.size()];
+            slotAccess = new int[slots.size()];
+            long totalSize = 0;
+            for (int slot = 0; slot < slots.size(); slot++) {
+                long[] slotRequirement = slotRequirements.get(slot);
+                VkMemoryRequirements memoryRequirements = VkMemoryRequirements.calloc(stack);
+                // Returned only struct without setters, filled by hand
+                memPutLong(memoryRequirements.address() + VkMemoryRequirements.SIZE, slotRequirement[0]);
+                memPutLong(memoryRequirements.address() + VkMemoryRequirements.ALIGNMENT, slotRequirement[1]);
+                memPutInt(memoryRequirements.address() + VkMemoryRequirements.MEMORYTYPEBITS, (int) slotRequirement[2]);
+                VmaAllocationCreateInfo allocationCreateInfo = VmaAllocationCreateInfo.calloc(stack)
+                        .usage(MemoryUsage.GPU_ONLY.getVmaMemoryUsage())
+                        .flags(MemoryUsage.GPU_ONLY.getAllocationFlags());
+                PointerBuffer pAllocation = stack.mallocPointer(1);
+                vkCheck(vmaAllocateMemory(memoryAllocator.getVmaAllocator(), memoryRequirements, allocationCreateInfo, pAllocation, null),
+                        "Failed to allocate transient image memory");
+                slotAllocations[slot] = pAllocation.get(0);
+                slotStages[slot] = VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
+                totalSize += slotRequirement[0];
+                for (int resource : slots.get(slot)) {
+                    vkCheck(vmaBindImageMemory(memoryAllocator.getVmaAllocator(), slotAllocations[slot], images[resource]),
+                            "Failed to bind transient image memory");
+                    imageViews[resource] = new ImageView(device, images[resource], new ImageView.ImageViewData()
+                            .format(formats[resource])
+                            .aspectMask(RenderGraph.getAspectMask(formats[resource])));
+                }
+            }
+            Logger.debug("Created [{}] transient images in [{}] memory slots, [{}] bytes", transients.size(), slots.size(), totalSize);
+        }
+    }
+
+    void cleanUp() {
+        for (int i = 0; i < images.length; i++) {
+            if (imageViews[i] != null) {
+                imageViews[i].cleanUp();
+            }
+            if (images[i] != VK_NULL_HANDLE) {
+                vkDestroyImage(device.getVkDevice(), images[i], null);
+            }
+        }
+        for (long slotAllocation : slotAllocations) {
+            vmaFreeMemory(memoryAllocator.getVmaAllocator(), slotAllocation);
+        }
+    }
+
+    long getImage(int resource) {
+        return images[resource];
+    }
+
+    long getImageView(int resource) {
+        return imageViews[resource].getVkImageView();
+    }
+
+    int getSlotAccess(int resource) {
+        return slotAccess[resourceSlots[resource]];
+    }
+
+    int getSlotStages(int resource) {
+        return slotStages[resourceSlots[resource]];
+    }
+
+    /*True if the declared transient images and their lifetimes are the same ones the pool was created for.*/
+    boolean matches(List<RenderGraph.Resource> resources, int numResources) {
+        if (numResources != firstUses.length) {
+            return false;
+        }
+        for (int i = 0; i < numResources; i++) {
+            RenderGraph.Resource resource = resources.get(i);
+            if (!resource.isUsedTransient()) {
+                if (firstUses[i] >= 0) {
+                    return false;
+                }
+                continue;
+            }
+            if (firstUses[i] != resource.firstUse || lastUses[i] != resource.lastUse || formats[i] != resource.format ||
+                    widths[i] != resource.width || heights[i] != resource.height || imageUsages[i] != resource.imageUsage) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void setSlotState(int resource, int stages, int access) {
+        int slot = resourceSlots[resource];
+        if (slot >= 0) {
+            slotStages[slot] = stages;
+            slotAccess[slot] = access;
+        }
+    }
+
+    private long createImage(MemoryStack stack, RenderGraph.Resource resource) {
+        VkImageCreateInfo imageCreateInfo = VkImageCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+                .imageType(VK_IMAGE_TYPE_2D)
+                .format(resource.format)
+                .extent(it -> it
+                        .width(resource.width)
+                        .height(resource.height)
+                        .depth(1))
+                .mipLevels(1)
+                .arrayLayers(1)
+                .samples(VK_SAMPLE_COUNT_1_BIT)
+                .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+                .sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+                .tiling(VK_IMAGE_TILING_OPTIMAL)
+                .usage(resource.imageUsage);
+
+        LongBuffer lp = stack.mallocLong(1);
+        vkCheck(vkCreateImage(device.getVkDevice(), imageCreateInfo, null, lp), "Failed to create transient image [" + resource.name + "]");
+        return lp.get(0);
+    }
+
+    /*First slot with compatible memory types whose images are all used outside the lifetime of the resource.*/
+    private int findSlot(List<List<Integer>> slots, List<long[]> slotRequirements, VkMemoryRequirements requirements, int resource) {
+        for (int slot = 0; slot < slots.size(); slot++) {
+            if ((slotRequirements.get(slot)[2] & requirements.memoryTypeBits()) == 0) {
+                continue;
+            }
+            boolean overlaps = false;
+            for (int other : slots.get(slot)) {
+                if (firstUses[resource] <= lastUses[other] && firstUses[other] <= lastUses[resource]) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (!overlaps) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -7,15 +7,20 @@ import org.lwjgl.vulkan.VkCommandBuffer;
 import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
 import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
 import org.lwjgl.vulkan.VkCommandBufferInheritanceInfo;
+import org.lwjgl.vulkan.VkCommandBufferInheritanceRenderingInfoKHR;
 import org.lwjgl.vulkan.VkDevice;
 import org.tinylog.Logger;
 
 import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.vulkan.KHRDynamicRendering.VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_RENDERING_INFO_KHR;
 import static org.lwjgl.vulkan.VK11.VK_COMMAND_BUFFER_LEVEL_PRIMARY;
 import static org.lwjgl.vulkan.VK11.VK_COMMAND_BUFFER_LEVEL_SECONDARY;
 import static org.lwjgl.vulkan.VK11.VK_COMMAND_BUFFER_RESET_RELEASE_RESOURCES_BIT;
 import static org.lwjgl.vulkan.VK11.VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT;
 import static org.lwjgl.vulkan.VK11.VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT;
+import static org.lwjgl.vulkan.VK11.VK_FORMAT_UNDEFINED;
+import static org.lwjgl.vulkan.VK11.VK_NULL_HANDLE;
+import static org.lwjgl.vulkan.VK11.VK_SAMPLE_COUNT_1_BIT;
 import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO;
 import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO;
 import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO;
@@ -54,7 +59,19 @@ public class CommandBuffer {
         }
     }
 
-    public record InheritanceInfo(long vkRenderPass, long vkFrameBuffer, int subPass) {}
+    /*Secondary buffers continue either a render pass or a dynamic rendering scope. The latter only needs the format of
+    * the color attachment, so they can be recorded before the image they will draw to is known.*/
+    public record InheritanceInfo(long vkRenderPass, long vkFrameBuffer, int subPass, int colorAttachmentFormat) {
+
+        public InheritanceInfo(long vkRenderPass, long vkFrameBuffer, int subPass) {
+            this(vkRenderPass, vkFrameBuffer, subPass, VK_FORMAT_UNDEFINED);
+        }
+
+        public InheritanceInfo(int colorAttachmentFormat) {
+            this(VK_NULL_HANDLE, VK_NULL_HANDLE, 0, colorAttachmentFormat);
+        }
+
+    }
 
     public void beginRecording() {
         beginRecording(null);
@@ -76,8 +93,15 @@ public class CommandBuffer {
                         .renderPass(inheritanceInfo.vkRenderPass)
                         .subpass(inheritanceInfo.subPass)
                         .framebuffer(inheritanceInfo.vkFrameBuffer);
+                if (inheritanceInfo.vkRenderPass == VK_NULL_HANDLE) {
+                    VkCommandBufferInheritanceRenderingInfoKHR renderingInfo = VkCommandBufferInheritanceRenderingInfoKHR.calloc(stack)
+                            .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_RENDERING_INFO_KHR)
+                            .pColorAttachmentFormats(stack.ints(inheritanceInfo.colorAttachmentFormat))
+                            .rasterizationSamples(VK_SAMPLE_COUNT_1_BIT);
+                    vkInheritanceInfo.pNext(renderingInfo);
+                }
                 cmdBufInfo.pInheritanceInfo(vkInheritanceInfo);
-                cmdBufInfo.flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT);
+                cmdBufInfo.flags(cmdBufInfo.flags() | VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT);
             }
             vkCheck(vkBeginCommandBuffer(vkCommandBuffer, cmdBufInfo), "Failed to begin command buffer");
         }
@@ -6,24 +6,43 @@ import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
 import org.tinylog.Logger;
 
 import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
 import static org.lwjgl.vulkan.VK11.*;
 
-@Getter
 public class CommandPool {
 
+    @Getter
     private final Device device;
+    @Getter
+    private final boolean transientPool;
+    @Getter
     private final long vkCommandPool;
+    private final List<CommandBuffer> primaryCommandBuffers;
+    private final List<CommandBuffer> secondaryCommandBuffers;
+    private int usedPrimaryCommandBuffers;
+    private int usedSecondaryCommandBuffers;
 
     public CommandPool(Device device, int queueFamilyIndex) {
-        Logger.debug("Creating Vulkan CommandPool");
+        this(device, queueFamilyIndex, false);
+    }
+
+    /*Transient pools hold short-lived command buffers that are re-recorded every time they are used. Their buffers
+    * can't be reset one by one, instead the whole pool is reset at once when none of them is in use anymore, and
+    * the buffers it handed out are recycled.*/
+    public CommandPool(Device device, int queueFamilyIndex, boolean transientPool) {
+        Logger.debug("Creating Vulkan CommandPool, transient [{}]", transientPool);
 
         this.device = device;
+        this.transientPool = transientPool;
+        primaryCommandBuffers = new ArrayList<>();
+        secondaryCommandBuffers = new ArrayList<>();
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkCommandPoolCreateInfo cmdPoolInfo = VkCommandPoolCreateInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
-                    .flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT)
+                    .flags(transientPool ? VK_COMMAND_POOL_CREATE_TRANSIENT_BIT : VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT)
                     .queueFamilyIndex(queueFamilyIndex);
 
             LongBuffer lp = stack.mallocLong(1);
@@ -35,7 +54,26 @@ public class CommandPool {
     }
 
     public void cleanUp() {
+        // Destroying the pool frees the command buffers it handed out
         vkDestroyCommandPool(device.getVkDevice(), vkCommandPool, null);
     }
 
+    /*Returns a one time submit command buffer that stays valid until the next reset. Buffers freed by previous
+    * resets are reused before allocating new ones.*/
+    public CommandBuffer obtainCommandBuffer(boolean primary) {
+        List<CommandBuffer> commandBuffers = primary ? primaryCommandBuffers : secondaryCommandBuffers;
+        int used = primary ? usedPrimaryCommandBuffers++ : usedSecondaryCommandBuffers++;
+        if (used == commandBuffers.size()) {
+            commandBuffers.add(new CommandBuffer(this, primary, true));
+        }
+        return commandBuffers.get(used);
+    }
+
+    /*Resets all the command buffers allocated from this pool. None of them may be pending execution.*/
+    public void reset() {
+        vkCheck(vkResetCommandPool(device.getVkDevice(), vkCommandPool, 0), "Failed to reset command pool");
+        usedPrimaryCommandBuffers = 0;
+        usedSecondaryCommandBuffers = 0;
+    }
+
 }
@@ -0,0 +1,65 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import org.tinylog.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*Defers the destruction of resources that may still be referenced by frames in flight. A resource retired
+* while recording frame N is destroyed once frame N + framesInFlight starts, which is when the fence of
+* frame N has been waited for. This avoids stalling the whole device with vkDeviceWaitIdle.
+* Frames are counted when they are submitted, frames given up before submitting, while resizing or minimized, wait
+* for no fence and do not count.
+*
+* With a timeline semaphore, resources are instead destroyed once the GPU reaches the last value submitted when
+* they were retired, so they must not be referenced by work submitted after retiring them.*/
+public class DeletionQueue {
+
+    private final Deque<RetiredResource> retiredResources;
+    private final int framesInFlight;
+    private final TimelineSemaphore timeline;
+    private long submittedFrames;
+
+    public DeletionQueue(int framesInFlight) {
+        this(framesInFlight, null);
+    }
+
+    public DeletionQueue(int framesInFlight, TimelineSemaphore timeline) {
+        this.framesInFlight = Math.max(framesInFlight, 1);
+        this.timeline = timeline;
+        this.retiredResources = new ArrayDeque<>();
+        this.submittedFrames = 0;
+    }
+
+    // Release point is a frame number, or a timeline value when there is a timeline
+    private record RetiredResource(long releasePoint, Runnable cleanUp) {}
+
+    public void cleanUp() {
+        Logger.debug("Destroying [{}] retired resources", retiredResources.size());
+        while (!retiredResources.isEmpty()) {
+            retiredResources.poll().cleanUp().run();
+        }
+    }
+
+    /*Must be called once per frame submitted with a fence.*/
+    public void frameSubmitted() {
+        submittedFrames++;
+    }
+
+    /*Must be called once per frame, after waiting for the fence of the frame that is about to be recorded.*/
+    public void nextFrame() {
+        if (retiredResources.isEmpty()) {
+            return;
+        }
+        long releasePoint = timeline != null ? timeline.getCompletedValue() : submittedFrames;
+        while (!retiredResources.isEmpty() && retiredResources.peek().releasePoint() <= releasePoint) {
+            retiredResources.poll().cleanUp().run();
+        }
+    }
+
+    public void retire(Runnable cleanUp) {
+        long releasePoint = timeline != null ? timeline.getLastSubmittedValue() : submittedFrames + framesInFlight;
+        retiredResources.add(new RetiredResource(releasePoint, cleanUp));
+    }
+
+}
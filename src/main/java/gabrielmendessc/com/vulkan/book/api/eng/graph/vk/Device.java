@@ -1,62 +1,130 @@
 package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.KHRCreateRenderpass2;
+import org.lwjgl.vulkan.KHRDepthStencilResolve;
+import org.lwjgl.vulkan.KHRDynamicRendering;
 import org.lwjgl.vulkan.KHRSwapchain;
+import org.lwjgl.vulkan.KHRSynchronization2;
+import org.lwjgl.vulkan.KHRTimelineSemaphore;
 import org.lwjgl.vulkan.VkDevice;
 import org.lwjgl.vulkan.VkDeviceCreateInfo;
 import org.lwjgl.vulkan.VkDeviceQueueCreateInfo;
 import org.lwjgl.vulkan.VkExtensionProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceDynamicRenderingFeaturesKHR;
 import org.lwjgl.vulkan.VkPhysicalDeviceFeatures;
-import org.lwjgl.vulkan.VkQueueFamilyProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceFeatures2;
+import org.lwjgl.vulkan.VkPhysicalDeviceSynchronization2Features;
+import org.lwjgl.vulkan.VkPhysicalDeviceTimelineSemaphoreFeatures;
 import org.tinylog.Logger;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static org.lwjgl.vulkan.KHRPortabilitySubset.VK_KHR_PORTABILITY_SUBSET_EXTENSION_NAME;
 import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO;
 import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO;
+import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_FEATURES_2;
 import static org.lwjgl.vulkan.VK11.vkCreateDevice;
 import static org.lwjgl.vulkan.VK11.vkDestroyDevice;
 import static org.lwjgl.vulkan.VK11.vkDeviceWaitIdle;
 import static org.lwjgl.vulkan.VK11.vkEnumerateDeviceExtensionProperties;
+import static org.lwjgl.vulkan.VK11.vkGetPhysicalDeviceFeatures2;
+import static org.lwjgl.vulkan.VK12.VK_API_VERSION_1_2;
 
 @Getter
 public class Device {
 
+    private final boolean dynamicRendering;
     private final PhysicalDevice physicalDevice;
+    private final QueueTopology queueTopology;
+    private final boolean synchronization2;
+    private final boolean timelineSemaphore;
     private final VkDevice vkDevice;
+    @Getter(AccessLevel.NONE)
+    private final int[] nextQueueIndices;
+    @Getter(AccessLevel.NONE)
+    private final Object[][] queueLocks;
 
     public Device(PhysicalDevice physicalDevice) {
+        this(physicalDevice, new QueueTopology(physicalDevice));
+    }
+
+    public Device(PhysicalDevice physicalDevice, QueueTopology queueTopology) {
 
         Logger.debug("Creating logical device for [{}]", physicalDevice.getDeviceName());
 
         this.physicalDevice = physicalDevice;
+        this.queueTopology = queueTopology;
         try (MemoryStack memoryStack = MemoryStack.stackPush()) {
 
             //Getting required extensions
             Set<String> deviceExtension = getDeviceExtensionSet();
-            boolean usePortability = deviceExtension.contains(VK_KHR_PORTABILITY_SUBSET_EXTENSION_NAME) && VKUtils.OSType.MACOS.equals(VKUtils.getOS());
-            int numExtensions = usePortability ? 2 : 1;
-            PointerBuffer requiredExtensions = memoryStack.mallocPointer(numExtensions);
-            requiredExtensions.put(memoryStack.ASCII(KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME));
-            if (usePortability) {
-                requiredExtensions.put(memoryStack.ASCII(VK_KHR_PORTABILITY_SUBSET_EXTENSION_NAME));
+            List<String> enabledExtensions = new ArrayList<>();
+            //Headless devices may not expose presentation at all
+            if (deviceExtension.contains(KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME)) {
+                enabledExtensions.add(KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME);
+            }
+            if (deviceExtension.contains(VK_KHR_PORTABILITY_SUBSET_EXTENSION_NAME) && VKUtils.OSType.MACOS.equals(VKUtils.getOS())) {
+                enabledExtensions.add(VK_KHR_PORTABILITY_SUBSET_EXTENSION_NAME);
+            }
+            synchronization2 = deviceExtension.contains(KHRSynchronization2.VK_KHR_SYNCHRONIZATION_2_EXTENSION_NAME) && supportsSynchronization2();
+            if (synchronization2) {
+                enabledExtensions.add(KHRSynchronization2.VK_KHR_SYNCHRONIZATION_2_EXTENSION_NAME);
+            }
+            //Timeline semaphores are core in 1.2, older devices may still have the extension
+            int instanceApiVersion = physicalDevice.getVkPhysicalDevice().getInstance().getCapabilities().apiVersion;
+            boolean vulkan12 = instanceApiVersion >= VK_API_VERSION_1_2 &&
+                    physicalDevice.getVkPhysicalDeviceProperties().apiVersion() >= VK_API_VERSION_1_2;
+            boolean timelineSemaphoreCore = vulkan12;
+            boolean timelineSemaphoreExtension = !timelineSemaphoreCore && deviceExtension.contains(KHRTimelineSemaphore.VK_KHR_TIMELINE_SEMAPHORE_EXTENSION_NAME);
+            timelineSemaphore = (timelineSemaphoreCore || timelineSemaphoreExtension) && supportsTimelineSemaphore();
+            if (timelineSemaphore && timelineSemaphoreExtension) {
+                enabledExtensions.add(KHRTimelineSemaphore.VK_KHR_TIMELINE_SEMAPHORE_EXTENSION_NAME);
+            }
+            //Dynamic rendering depends on depth stencil resolve and render pass 2, which are core in 1.2
+            dynamicRendering = physicalDevice.hasKHRDynamicRenderingExtension() && supportsDynamicRendering() &&
+                    (vulkan12 || deviceExtension.contains(KHRDepthStencilResolve.VK_KHR_DEPTH_STENCIL_RESOLVE_EXTENSION_NAME) &&
+                            deviceExtension.contains(KHRCreateRenderpass2.VK_KHR_CREATE_RENDERPASS_2_EXTENSION_NAME));
+            if (dynamicRendering) {
+                if (!vulkan12) {
+                    enabledExtensions.add(KHRCreateRenderpass2.VK_KHR_CREATE_RENDERPASS_2_EXTENSION_NAME);
+                    enabledExtensions.add(KHRDepthStencilResolve.VK_KHR_DEPTH_STENCIL_RESOLVE_EXTENSION_NAME);
+                }
+                enabledExtensions.add(KHRDynamicRendering.VK_KHR_DYNAMIC_RENDERING_EXTENSION_NAME);
+            }
+            PointerBuffer requiredExtensions = memoryStack.mallocPointer(enabledExtensions.size());
+            for (String extension : enabledExtensions) {
+                requiredExtensions.put(memoryStack.ASCII(extension));
             }
             requiredExtensions.flip();
+            Logger.debug("Synchronization2 [{}], timeline semaphores [{}], dynamic rendering [{}]", synchronization2, timelineSemaphore,
+                    dynamicRendering);
 
             VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.calloc(memoryStack);
 
-            //Enable all the queue families
-            VkQueueFamilyProperties.Buffer queuePropertiesBuff = physicalDevice.getVkQueueFamilyProps();
-            int numQueuesFamilies = queuePropertiesBuff.capacity();
+            //Enable all the queues of all the families, with the priority the topology assigned to each family
+            int numQueuesFamilies = queueTopology.getNumQueueFamilies();
             VkDeviceQueueCreateInfo.Buffer queueCreationInfoBuff = VkDeviceQueueCreateInfo.calloc(numQueuesFamilies, memoryStack);
+            nextQueueIndices = new int[numQueuesFamilies];
+            queueLocks = new Object[numQueuesFamilies][];
             for (int i = 0; i < numQueuesFamilies; i++) {
-                FloatBuffer priorities = memoryStack.callocFloat(queuePropertiesBuff.get(i).queueCount());
+                int queueCount = queueTopology.getQueueCount(i);
+                FloatBuffer priorities = memoryStack.mallocFloat(queueCount);
+                for (int j = 0; j < queueCount; j++) {
+                    priorities.put(j, queueTopology.getPriority(i));
+                }
+                queueLocks[i] = new Object[queueCount];
+                Arrays.setAll(queueLocks[i], j -> new Object());
                 queueCreationInfoBuff.get(i)
                         .sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
                         .queueFamilyIndex(i)
@@ -68,6 +136,30 @@ public class Device {
                     .ppEnabledExtensionNames(requiredExtensions)
                     .pEnabledFeatures(features)
                     .pQueueCreateInfos(queueCreationInfoBuff);
+            //Optional features are chained through pNext
+            long pNext = MemoryUtil.NULL;
+            if (synchronization2) {
+                pNext = VkPhysicalDeviceSynchronization2Features.calloc(memoryStack)
+                        .sType(KHRSynchronization2.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_SYNCHRONIZATION_2_FEATURES_KHR)
+                        .pNext(pNext)
+                        .synchronization2(true)
+                        .address();
+            }
+            if (timelineSemaphore) {
+                pNext = VkPhysicalDeviceTimelineSemaphoreFeatures.calloc(memoryStack)
+                        .sType(KHRTimelineSemaphore.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_TIMELINE_SEMAPHORE_FEATURES_KHR)
+                        .pNext(pNext)
+                        .timelineSemaphore(true)
+                        .address();
+            }
+            if (dynamicRendering) {
+                pNext = VkPhysicalDeviceDynamicRenderingFeaturesKHR.calloc(memoryStack)
+                        .sType(KHRDynamicRendering.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_DYNAMIC_RENDERING_FEATURES_KHR)
+                        .pNext(pNext)
+                        .dynamicRendering(true)
+                        .address();
+            }
+            vkDeviceCreateInfo.pNext(pNext);
             PointerBuffer pointerBuffer = memoryStack.mallocPointer(1);
             VKUtils.vkCheck(vkCreateDevice(physicalDevice.getVkPhysicalDevice(), vkDeviceCreateInfo, null, pointerBuffer), "Failed to create device");
             vkDevice = new VkDevice(pointerBuffer.get(0), physicalDevice.getVkPhysicalDevice(), vkDeviceCreateInfo);
@@ -81,12 +173,76 @@ public class Device {
         vkDestroyDevice(vkDevice, null);
     }
 
+    /*Returns the lock that guards submissions to the given queue, shared by every Queue created for it.*/
+    public Object getQueueLock(int queueFamilyIndex, int queueIndex) {
+        return queueLocks[queueFamilyIndex][queueIndex];
+    }
+
+    /*Hands out the queues of a family one by one, so threads submitting concurrently get their own queue. Once
+    * they are exhausted queues are shared again, starting from the first one.*/
+    public synchronized int obtainQueueIndex(int queueFamilyIndex) {
+        int queueIndex = nextQueueIndices[queueFamilyIndex] % queueTopology.getQueueCount(queueFamilyIndex);
+        nextQueueIndices[queueFamilyIndex]++;
+        return queueIndex;
+    }
+
     public void waitIdle() {
 
         vkDeviceWaitIdle(vkDevice);
 
     }
 
+    private boolean supportsDynamicRendering() {
+
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VkPhysicalDeviceDynamicRenderingFeaturesKHR dynamicRenderingFeatures = VkPhysicalDeviceDynamicRenderingFeaturesKHR.calloc(memoryStack)
+                    .sType(KHRDynamicRendering.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_DYNAMIC_RENDERING_FEATURES_KHR);
+            VkPhysicalDeviceFeatures2 features2 = VkPhysicalDeviceFeatures2.calloc(memoryStack)
+                    .sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_FEATURES_2)
+                    .pNext(dynamicRenderingFeatures);
+            vkGetPhysicalDeviceFeatures2(physicalDevice.getVkPhysicalDevice(), features2);
+
+            return dynamicRenderingFeatures.dynamicRendering();
+
+        }
+
+    }
+
+    private boolean supportsSynchronization2() {
+
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VkPhysicalDeviceSynchronization2Features synchronization2Features = VkPhysicalDeviceSynchronization2Features.calloc(memoryStack)
+                    .sType(KHRSynchronization2.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_SYNCHRONIZATION_2_FEATURES_KHR);
+            VkPhysicalDeviceFeatures2 features2 = VkPhysicalDeviceFeatures2.calloc(memoryStack)
+                    .sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_FEATURES_2)
+                    .pNext(synchronization2Features);
+            vkGetPhysicalDeviceFeatures2(physicalDevice.getVkPhysicalDevice(), features2);
+
+            return synchronization2Features.synchronization2();
+
+        }
+
+    }
+
+    private boolean supportsTimelineSemaphore() {
+
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VkPhysicalDeviceTimelineSemaphoreFeatures timelineSemaphoreFeatures = VkPhysicalDeviceTimelineSemaphoreFeatures.calloc(memoryStack)
+                    .sType(KHRTimelineSemaphore.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_TIMELINE_SEMAPHORE_FEATURES_KHR);
+            VkPhysicalDeviceFeatures2 features2 = VkPhysicalDeviceFeatures2.calloc(memoryStack)
+                    .sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_FEATURES_2)
+                    .pNext(timelineSemaphoreFeatures);
+            vkGetPhysicalDeviceFeatures2(physicalDevice.getVkPhysicalDevice(), features2);
+
+            return timelineSemaphoreFeatures.timelineSemaphore();
+
+        }
+
+    }
+
     private Set<String> getDeviceExtensionSet() {
 
         Set<String> deviceExtensionSet = new HashSet<>();
@@ -37,6 +37,11 @@ public class Fence {
         vkWaitForFences(device.getVkDevice(), vkFence, true, Long.MAX_VALUE);
     }
 
+    /*Non blocking check of the fence state.*/
+    public boolean isSignaled() {
+        return vkGetFenceStatus(device.getVkDevice(), vkFence) == VK_SUCCESS;
+    }
+
     public void reset() {
         vkResetFences(device.getVkDevice(), vkFence);
     }
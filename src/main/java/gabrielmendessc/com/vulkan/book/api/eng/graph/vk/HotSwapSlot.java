@@ -0,0 +1,62 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/*Holds an object, typically a pipeline, that can be rebuilt in the background while frames keep using the current
+* one. The replacement is offered from any thread and only takes effect when the render thread swaps at a frame
+* boundary, the replaced object is retired to the deletion queue so frames in flight can still use it. Nothing waits
+* for the device to be idle.*/
+public class HotSwapSlot<T> {
+
+    private final Consumer<T> cleanUp;
+    private final AtomicReference<T> pending;
+    private T current;
+
+    public HotSwapSlot(T initial, Consumer<T> cleanUp) {
+        this.cleanUp = cleanUp;
+        current = initial;
+        pending = new AtomicReference<>();
+    }
+
+    /*Destroys the current and pending objects, the device must be idle.*/
+    public void cleanUp() {
+        T pendingValue = pending.getAndSet(null);
+        if (pendingValue != null) {
+            cleanUp.accept(pendingValue);
+        }
+        if (current != null) {
+            cleanUp.accept(current);
+            current = null;
+        }
+    }
+
+    /*Only to be used from the render thread, the value does not change until the next swap.*/
+    public T get() {
+        return current;
+    }
+
+    /*Can be called from any thread. A replacement that was offered but not swapped in yet was never used by the GPU,
+    * so it is destroyed right away.*/
+    public void offer(T replacement) {
+        T previous = pending.getAndSet(replacement);
+        if (previous != null) {
+            cleanUp.accept(previous);
+        }
+    }
+
+    /*Must be called from the render thread, between frames. Returns true if a replacement was swapped in.*/
+    public boolean swap(DeletionQueue deletionQueue) {
+        T replacement = pending.getAndSet(null);
+        if (replacement == null) {
+            return false;
+        }
+        T replaced = current;
+        current = replacement;
+        if (replaced != null) {
+            deletionQueue.retire(() -> cleanUp.accept(replaced));
+        }
+        return true;
+    }
+
+}
@@ -16,12 +16,15 @@ public class ImageView {
     private final int aspectMask;
     private final Device device;
     @Getter
+    private final long vkImage;
+    @Getter
     private final long vkImageView;
     private final int mipLevels;
 
-    public ImageView(Device device, long vkImageView, ImageViewData imageViewData) {
+    public ImageView(Device device, long vkImage, ImageViewData imageViewData) {
 
         this.device = device;
+        this.vkImage = vkImage;
         this.aspectMask = imageViewData.aspectMask;
         this.mipLevels = imageViewData.mipLevels;
         try (MemoryStack memoryStack = MemoryStack.stackPush()) {
@@ -29,7 +32,7 @@ public class ImageView {
             LongBuffer longBuffer = memoryStack.mallocLong(1);
             VkImageViewCreateInfo vkImageViewCreateInfo = VkImageViewCreateInfo.calloc(memoryStack)
                     .sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
-                    .image(vkImageView)
+                    .image(vkImage)
                     .format(imageViewData.format)
                     .viewType(imageViewData.viewType)
                     .format(imageViewData.format)
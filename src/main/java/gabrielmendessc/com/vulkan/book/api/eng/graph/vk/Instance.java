@@ -6,7 +6,9 @@ import org.lwjgl.glfw.GLFWVulkan;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.EXTDebugUtils;
-import org.lwjgl.vulkan.KHRPortabilitySubset;
+import org.lwjgl.vulkan.EXTHeadlessSurface;
+import org.lwjgl.vulkan.KHRSurface;
+import org.lwjgl.vulkan.VK;
 import org.lwjgl.vulkan.VkApplicationInfo;
 import org.lwjgl.vulkan.VkDebugUtilsMessengerCallbackDataEXT;
 import org.lwjgl.vulkan.VkDebugUtilsMessengerCreateInfoEXT;
@@ -35,6 +37,8 @@ import static org.lwjgl.vulkan.EXTDebugUtils.VK_STRUCTURE_TYPE_DEBUG_UTILS_MESSE
 import static org.lwjgl.vulkan.EXTDebugUtils.vkCreateDebugUtilsMessengerEXT;
 import static org.lwjgl.vulkan.EXTDebugUtils.vkDestroyDebugUtilsMessengerEXT;
 import static org.lwjgl.vulkan.VK11.VK_API_VERSION_1_1;
+import static org.lwjgl.vulkan.VK11.VK_API_VERSION_MAJOR;
+import static org.lwjgl.vulkan.VK11.VK_API_VERSION_MINOR;
 import static org.lwjgl.vulkan.VK11.VK_FALSE;
 import static org.lwjgl.vulkan.VK11.VK_NULL_HANDLE;
 import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_APPLICATION_INFO;
@@ -43,12 +47,16 @@ import static org.lwjgl.vulkan.VK11.vkCreateInstance;
 import static org.lwjgl.vulkan.VK11.vkDestroyInstance;
 import static org.lwjgl.vulkan.VK11.vkEnumerateInstanceExtensionProperties;
 import static org.lwjgl.vulkan.VK11.vkEnumerateInstanceLayerProperties;
+import static org.lwjgl.vulkan.VK12.VK_API_VERSION_1_2;
 
 public class Instance {
 
     public static final int MESSAGE_SEVERITY_BITMASK = VK_DEBUG_UTILS_MESSAGE_SEVERITY_ERROR_BIT_EXT | VK_DEBUG_UTILS_MESSAGE_SEVERITY_WARNING_BIT_EXT;
     public static final int MESSAGE_TYPE_BITMASK = VK_DEBUG_UTILS_MESSAGE_TYPE_GENERAL_BIT_EXT | VK_DEBUG_UTILS_MESSAGE_TYPE_VALIDATION_BIT_EXT | VK_DEBUG_UTILS_MESSAGE_TYPE_PERFORMANCE_BIT_EXT;
     private static final String PORTABILITY_EXTENSION = "VK_KHR_portability_enumeration";
+    // Whether surfaces with no display can be created, see Surface
+    @Getter
+    private final boolean headlessSurfaceSupported;
     @Getter
     private final VkInstance vkInstance;
 
@@ -57,9 +65,21 @@ public class Instance {
 
     public Instance(boolean validate) {
 
-        Logger.debug("Creating Vulkan Instance");
+        this(validate, false);
+
+    }
+
+    /*Headless instances don't ask GLFW for the platform surface extensions, so they can be created on
+    * machines without a display server, e.g. with a software ICD like lavapipe. They enable VK_EXT_headless_surface
+    * instead when the loader has it, for real swap chains that present nowhere.*/
+    public Instance(boolean validate, boolean headless) {
+
+        Logger.debug("Creating Vulkan Instance, headless [{}]", headless);
         try (MemoryStack memoryStack = MemoryStack.stackPush()) {
 
+            // 1.2 brings timeline semaphores to core, but keep working with 1.1 loaders
+            int apiVersion = VK.getInstanceVersionSupported() >= VK_API_VERSION_1_2 ? VK_API_VERSION_1_2 : VK_API_VERSION_1_1;
+            Logger.debug("Requesting Vulkan API version [{}.{}]", VK_API_VERSION_MAJOR(apiVersion), VK_API_VERSION_MINOR(apiVersion));
             ByteBuffer appShortName = memoryStack.UTF8("VulkanBook");
             VkApplicationInfo appInfo = VkApplicationInfo.calloc(memoryStack)
                     .sType(VK_STRUCTURE_TYPE_APPLICATION_INFO)
@@ -67,7 +87,7 @@ public class Instance {
                     .applicationVersion(1)
                     .pEngineName(appShortName)
                     .engineVersion(0)
-                    .apiVersion(VK_API_VERSION_1_1);
+                    .apiVersion(apiVersion);
 
             List<String> validationLayerList = getSupportedValidationLayers();
             boolean supportsValidation = validate;
@@ -95,34 +115,47 @@ public class Instance {
             }
 
             Set<String> instanceExtesionSet = getInstanceExtensions();
-            PointerBuffer glfwExtensions = GLFWVulkan.glfwGetRequiredInstanceExtensions();
-            if (Objects.isNull(glfwExtensions)) {
+            PointerBuffer glfwExtensions = null;
+            if (!headless) {
+
+                glfwExtensions = GLFWVulkan.glfwGetRequiredInstanceExtensions();
+                if (Objects.isNull(glfwExtensions)) {
 
-                throw new RuntimeException("Failed to find the GLFW platform surface extensions");
+                    throw new RuntimeException("Failed to find the GLFW platform surface extensions");
+
+                }
 
             }
 
-            PointerBuffer requiredExtension;
+            headlessSurfaceSupported = headless && instanceExtesionSet.contains(KHRSurface.VK_KHR_SURFACE_EXTENSION_NAME)
+                    && instanceExtesionSet.contains(EXTHeadlessSurface.VK_EXT_HEADLESS_SURFACE_EXTENSION_NAME);
+            Logger.debug("Headless surface supported [{}]", headlessSurfaceSupported);
+
             boolean usePoratability = instanceExtesionSet.contains(PORTABILITY_EXTENSION) && VKUtils.getOS() == VKUtils.OSType.MACOS;
+            int numExtensions = Objects.nonNull(glfwExtensions) ? glfwExtensions.remaining() : 0;
+            if (headlessSurfaceSupported) {
+                numExtensions += 2;
+            }
             if (supportsValidation) {
+                numExtensions++;
+            }
+            if (usePoratability) {
+                numExtensions++;
+            }
 
-                ByteBuffer vkDebugUtilsExtensions = memoryStack.UTF8(EXTDebugUtils.VK_EXT_DEBUG_UTILS_EXTENSION_NAME);
-                int numExtensions = usePoratability ? glfwExtensions.remaining() + 2 : glfwExtensions.remaining() + 1;
-                requiredExtension = memoryStack.mallocPointer(numExtensions);
-                requiredExtension.put(glfwExtensions).put(vkDebugUtilsExtensions);
-                if (usePoratability) {
-                    requiredExtension.put(memoryStack.UTF8(PORTABILITY_EXTENSION));
-                }
-
-            } else  {
-
-                int numExtensions = usePoratability ? glfwExtensions.remaining() + 1 : glfwExtensions.remaining();
-                requiredExtension = memoryStack.mallocPointer(numExtensions);
+            PointerBuffer requiredExtension = memoryStack.mallocPointer(numExtensions);
+            if (Objects.nonNull(glfwExtensions)) {
                 requiredExtension.put(glfwExtensions);
-                if (usePoratability) {
-                    requiredExtension.put(memoryStack.UTF8(KHRPortabilitySubset.VK_KHR_PORTABILITY_SUBSET_EXTENSION_NAME));
-                }
-
+            }
+            if (headlessSurfaceSupported) {
+                requiredExtension.put(memoryStack.UTF8(KHRSurface.VK_KHR_SURFACE_EXTENSION_NAME));
+                requiredExtension.put(memoryStack.UTF8(EXTHeadlessSurface.VK_EXT_HEADLESS_SURFACE_EXTENSION_NAME));
+            }
+            if (supportsValidation) {
+                requiredExtension.put(memoryStack.UTF8(EXTDebugUtils.VK_EXT_DEBUG_UTILS_EXTENSION_NAME));
+            }
+            if (usePoratability) {
+                requiredExtension.put(memoryStack.UTF8(PORTABILITY_EXTENSION));
             }
 
             requiredExtension.flip();
@@ -0,0 +1,79 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.vma.VmaAllocatorCreateInfo;
+import org.lwjgl.util.vma.VmaStatistics;
+import org.lwjgl.util.vma.VmaTotalStatistics;
+import org.lwjgl.util.vma.VmaVulkanFunctions;
+import org.tinylog.Logger;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.util.vma.Vma.vmaCalculateStatistics;
+import static org.lwjgl.util.vma.Vma.vmaCreateAllocator;
+import static org.lwjgl.util.vma.Vma.vmaDestroyAllocator;
+import static org.lwjgl.vulkan.VK11.VK_API_VERSION_1_1;
+
+/*Wraps the Vulkan Memory Allocator. Instead of calling vkAllocateMemory for each buffer or image, which is limited
+* by maxMemoryAllocationCount and fragments memory, VMA sub-allocates resources from big memory blocks.*/
+public class MemoryAllocator {
+
+    @Getter
+    private final Device device;
+    @Getter
+    private final long vmaAllocator;
+
+    public MemoryAllocator(Instance instance, PhysicalDevice physicalDevice, Device device) {
+
+        Logger.debug("Creating memory allocator");
+        this.device = device;
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VmaVulkanFunctions vmaVulkanFunctions = VmaVulkanFunctions.calloc(memoryStack)
+                    .set(instance.getVkInstance(), device.getVkDevice());
+
+            VmaAllocatorCreateInfo createInfo = VmaAllocatorCreateInfo.calloc(memoryStack)
+                    .instance(instance.getVkInstance())
+                    .vulkanApiVersion(VK_API_VERSION_1_1)
+                    .device(device.getVkDevice())
+                    .physicalDevice(physicalDevice.getVkPhysicalDevice())
+                    .pVulkanFunctions(vmaVulkanFunctions);
+
+            PointerBuffer pAllocator = memoryStack.mallocPointer(1);
+            vkCheck(vmaCreateAllocator(createInfo, pAllocator), "Failed to create VMA allocator");
+            vmaAllocator = pAllocator.get(0);
+
+        }
+
+    }
+
+    public record MemoryStatistics(int blockCount, long blockBytes, int allocationCount, long allocationBytes) {}
+
+    public void cleanUp() {
+
+        MemoryStatistics memoryStatistics = getStatistics();
+        if (memoryStatistics.allocationCount() > 0) {
+            Logger.warn("Destroying memory allocator with [{}] live allocations", memoryStatistics.allocationCount());
+        }
+        vmaDestroyAllocator(vmaAllocator);
+
+    }
+
+    /*Totals for all the memory heaps. Block bytes is the device memory allocated from the driver, allocation bytes
+    * is the part of it actually used by resources.*/
+    public MemoryStatistics getStatistics() {
+
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VmaTotalStatistics totalStatistics = VmaTotalStatistics.calloc(memoryStack);
+            vmaCalculateStatistics(vmaAllocator, totalStatistics);
+            VmaStatistics statistics = totalStatistics.total().statistics();
+
+            return new MemoryStatistics(statistics.blockCount(), statistics.blockBytes(), statistics.allocationCount(), statistics.allocationBytes());
+
+        }
+
+    }
+
+}
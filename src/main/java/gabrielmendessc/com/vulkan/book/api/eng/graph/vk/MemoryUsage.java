@@ -0,0 +1,32 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+
+import static org.lwjgl.util.vma.Vma.VMA_ALLOCATION_CREATE_HOST_ACCESS_RANDOM_BIT;
+import static org.lwjgl.util.vma.Vma.VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT;
+import static org.lwjgl.util.vma.Vma.VMA_ALLOCATION_CREATE_MAPPED_BIT;
+import static org.lwjgl.util.vma.Vma.VMA_MEMORY_USAGE_AUTO;
+import static org.lwjgl.util.vma.Vma.VMA_MEMORY_USAGE_AUTO_PREFER_DEVICE;
+import static org.lwjgl.util.vma.Vma.VMA_MEMORY_USAGE_AUTO_PREFER_HOST;
+
+/*How a resource is accessed, which drives the memory type VMA picks for it:
+*   GPU_ONLY, device local memory, not visible from the CPU. Filled through transfers;
+*   CPU_TO_GPU, host visible memory written sequentially by the CPU and read by the GPU (staging, per frame data);
+*   GPU_TO_CPU, host visible memory written by the GPU and read back by the CPU, preferably cached.
+* Host visible allocations are persistently mapped.*/
+@Getter
+public enum MemoryUsage {
+
+    GPU_ONLY(VMA_MEMORY_USAGE_AUTO_PREFER_DEVICE, 0),
+    CPU_TO_GPU(VMA_MEMORY_USAGE_AUTO, VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT | VMA_ALLOCATION_CREATE_MAPPED_BIT),
+    GPU_TO_CPU(VMA_MEMORY_USAGE_AUTO_PREFER_HOST, VMA_ALLOCATION_CREATE_HOST_ACCESS_RANDOM_BIT | VMA_ALLOCATION_CREATE_MAPPED_BIT);
+
+    private final int allocationFlags;
+    private final int vmaMemoryUsage;
+
+    MemoryUsage(int vmaMemoryUsage, int allocationFlags) {
+        this.vmaMemoryUsage = vmaMemoryUsage;
+        this.allocationFlags = allocationFlags;
+    }
+
+}
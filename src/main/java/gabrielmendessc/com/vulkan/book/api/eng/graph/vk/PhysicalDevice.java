@@ -3,6 +3,7 @@ package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
 import lombok.Getter;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.KHRDynamicRendering;
 import org.lwjgl.vulkan.KHRSwapchain;
 import org.lwjgl.vulkan.VkExtensionProperties;
 import org.lwjgl.vulkan.VkPhysicalDevice;
@@ -72,6 +73,12 @@ public class PhysicalDevice {
 
     public static PhysicalDevice createPhysicalDevice(Instance instance, String prefferredDeviceName) {
 
+        return createPhysicalDevice(instance, prefferredDeviceName, false);
+
+    }
+
+    public static PhysicalDevice createPhysicalDevice(Instance instance, String prefferredDeviceName, boolean headless) {
+
         Logger.debug("Selecting physical device");
         PhysicalDevice selectedPhysicalDevice = null;
         try (MemoryStack memoryStack = MemoryStack.stackPush()) {
@@ -89,7 +96,7 @@ public class PhysicalDevice {
                 PhysicalDevice physicalDevice = new PhysicalDevice(vkPhysicalDevice);
 
                 String deviceName = physicalDevice.getDeviceName();
-                if (physicalDevice.hasGraphicsQueueFamily() && physicalDevice.hasKHRSwapChainExtension()) {
+                if (physicalDevice.hasGraphicsQueueFamily() && (headless || physicalDevice.hasKHRSwapChainExtension())) {
                     Logger.debug("Device [{}] supports required extensions", deviceName);
                     if (Objects.nonNull(prefferredDeviceName) && prefferredDeviceName.equals(deviceName)) {
                         selectedPhysicalDevice = physicalDevice;
@@ -154,14 +161,26 @@ public class PhysicalDevice {
 
     }
 
-    private boolean hasKHRSwapChainExtension() {
+    public boolean hasKHRDynamicRenderingExtension() {
+
+        return hasExtension(KHRDynamicRendering.VK_KHR_DYNAMIC_RENDERING_EXTENSION_NAME);
+
+    }
+
+    public boolean hasKHRSwapChainExtension() {
+
+        return hasExtension(KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME);
+
+    }
+
+    private boolean hasExtension(String extension) {
 
         int numExtensions = vkDeviceExtensions != null ? vkDeviceExtensions.capacity() : 0;
         for (int i = 0; i < numExtensions; i++) {
 
             String extensionName = vkDeviceExtensions.get(i).extensionNameString();
 
-            if (KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME.equals(extensionName)) {
+            if (extension.equals(extensionName)) {
 
                 return true;
 
@@ -0,0 +1,135 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkPipelineCacheCreateInfo;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Pipeline cache that survives restarts: the data of the previous run is fed back to the driver, so pipelines it
+* already compiled are not compiled again. The data only works on the same device and driver, the header is checked
+* against the physical device and any mismatch (new GPU, driver update) or a corrupt file starts an empty cache.
+* The file is replaced atomically when saved, a crash while writing never leaves a half written cache behind.*/
+public class PipelineCache {
+
+    private static final int HEADER_SIZE = 16 + VK_UUID_SIZE;
+
+    private final Device device;
+    private final Path path;
+    @Getter
+    private final long vkPipelineCache;
+
+    public PipelineCache(Device device, Path path) {
+        this.device = device;
+        this.path = path;
+        ByteBuffer initialData = loadData(device.getPhysicalDevice(), path);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkPipelineCacheCreateInfo pipelineCacheCreateInfo = VkPipelineCacheCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO)
+                    .pInitialData(initialData);
+
+            LongBuffer lp = stack.mallocLong(1);
+            vkCheck(vkCreatePipelineCache(device.getVkDevice(), pipelineCacheCreateInfo, null, lp),
+                    "Failed to create pipeline cache");
+            vkPipelineCache = lp.get(0);
+        } finally {
+            MemoryUtil.memFree(initialData);
+        }
+    }
+
+    public void cleanUp() {
+        vkDestroyPipelineCache(device.getVkDevice(), vkPipelineCache, null);
+    }
+
+    /*Writes the current cache data to disk. Failing to save only costs compile time on the next start, so it is
+    * logged and not thrown.*/
+    public void save() {
+        ByteBuffer data = null;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer size = stack.mallocPointer(1);
+            vkCheck(vkGetPipelineCacheData(device.getVkDevice(), vkPipelineCache, size, null),
+                    "Failed to get pipeline cache data size");
+            data = MemoryUtil.memAlloc((int) size.get(0));
+            vkCheck(vkGetPipelineCacheData(device.getVkDevice(), vkPipelineCache, size, data),
+                    "Failed to get pipeline cache data");
+            data.limit((int) size.get(0));
+
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            Files.write(tmpPath, bytes);
+            try {
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Logger.debug("Saved [{}] bytes of pipeline cache to [{}]", bytes.length, path);
+        } catch (IOException e) {
+            Logger.warn("Could not save pipeline cache to [{}]", path, e);
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+    }
+
+    /*Returns the saved data if it was created by this same device and driver, null otherwise.*/
+    private static ByteBuffer loadData(PhysicalDevice physicalDevice, Path path) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            Logger.warn("Could not read pipeline cache [{}]", path, e);
+            return null;
+        }
+        if (!isCompatible(physicalDevice.getVkPhysicalDeviceProperties(), bytes)) {
+            Logger.info("Pipeline cache [{}] was created by another device or driver, ignoring it", path);
+            return null;
+        }
+        Logger.debug("Loaded [{}] bytes of pipeline cache from [{}]", bytes.length, path);
+        return MemoryUtil.memAlloc(bytes.length).put(bytes).flip();
+    }
+
+    private static boolean isCompatible(VkPhysicalDeviceProperties properties, byte[] data) {
+        if (data.length < HEADER_SIZE) {
+            return false;
+        }
+        // Header fields are always written least significant byte first
+        ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int headerLength = header.getInt();
+        int headerVersion = header.getInt();
+        int vendorId = header.getInt();
+        int deviceId = header.getInt();
+        if (headerLength < HEADER_SIZE || headerVersion != VK_PIPELINE_CACHE_HEADER_VERSION_ONE ||
+                vendorId != properties.vendorID() || deviceId != properties.deviceID()) {
+            return false;
+        }
+        ByteBuffer pipelineCacheUUID = properties.pipelineCacheUUID();
+        for (int i = 0; i < VK_UUID_SIZE; i++) {
+            if (header.get() != pipelineCacheUUID.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
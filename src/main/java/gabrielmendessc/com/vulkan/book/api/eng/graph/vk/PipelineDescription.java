@@ -0,0 +1,277 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Everything that goes into a graphics pipeline, compared and hashed by value so materials that describe the same
+* state end up with the same pipeline. Viewport and scissor are always dynamic, a resize does not change the
+* description. The hash is computed once per change, lookups only compare it and then the fields.
+* Pipelines for dynamic rendering have no render pass, they declare the formats of the attachments they draw to
+* instead.*/
+@Getter
+public class PipelineDescription {
+
+    private BlendState blendState;
+    private int colorAttachmentCount;
+    @Getter(AccessLevel.NONE)
+    private int[] colorAttachmentFormats;
+    private int cullMode;
+    private int depthAttachmentFormat;
+    private int depthCompareOp;
+    private boolean depthTest;
+    private boolean depthWrite;
+    private int frontFace;
+    private long pipelineLayout;
+    private int polygonMode;
+    private long renderPass;
+    private int sampleCount;
+    @Getter(AccessLevel.NONE)
+    private final List<ShaderStage> shaderStages;
+    private int stencilAttachmentFormat;
+    private int subpass;
+    private int topology;
+    @Getter(AccessLevel.NONE)
+    private final List<VertexAttribute> vertexAttributes;
+    @Getter(AccessLevel.NONE)
+    private final List<VertexBinding> vertexBindings;
+    @Getter(AccessLevel.NONE)
+    private int hash;
+
+    public PipelineDescription() {
+        blendState = BlendState.OPAQUE;
+        colorAttachmentCount = 1;
+        colorAttachmentFormats = new int[0];
+        cullMode = VK_CULL_MODE_BACK_BIT;
+        depthCompareOp = VK_COMPARE_OP_LESS_OR_EQUAL;
+        frontFace = VK_FRONT_FACE_COUNTER_CLOCKWISE;
+        polygonMode = VK_POLYGON_MODE_FILL;
+        sampleCount = VK_SAMPLE_COUNT_1_BIT;
+        shaderStages = new ArrayList<>();
+        topology = VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST;
+        vertexAttributes = new ArrayList<>();
+        vertexBindings = new ArrayList<>();
+    }
+
+    public PipelineDescription(PipelineDescription other) {
+        blendState = other.blendState;
+        colorAttachmentCount = other.colorAttachmentCount;
+        colorAttachmentFormats = other.colorAttachmentFormats;
+        cullMode = other.cullMode;
+        depthAttachmentFormat = other.depthAttachmentFormat;
+        depthCompareOp = other.depthCompareOp;
+        depthTest = other.depthTest;
+        depthWrite = other.depthWrite;
+        frontFace = other.frontFace;
+        pipelineLayout = other.pipelineLayout;
+        polygonMode = other.polygonMode;
+        renderPass = other.renderPass;
+        sampleCount = other.sampleCount;
+        shaderStages = new ArrayList<>(other.shaderStages);
+        stencilAttachmentFormat = other.stencilAttachmentFormat;
+        subpass = other.subpass;
+        topology = other.topology;
+        vertexAttributes = new ArrayList<>(other.vertexAttributes);
+        vertexBindings = new ArrayList<>(other.vertexBindings);
+        hash = other.hash;
+    }
+
+    /*Same blend state for every color attachment.*/
+    public record BlendState(boolean enabled, int srcColorFactor, int dstColorFactor, int colorOp, int srcAlphaFactor,
+                             int dstAlphaFactor, int alphaOp) {
+
+        public static final BlendState OPAQUE = new BlendState(false, VK_BLEND_FACTOR_ONE, VK_BLEND_FACTOR_ZERO, VK_BLEND_OP_ADD,
+                VK_BLEND_FACTOR_ONE, VK_BLEND_FACTOR_ZERO, VK_BLEND_OP_ADD);
+        public static final BlendState ALPHA = new BlendState(true, VK_BLEND_FACTOR_SRC_ALPHA, VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA,
+                VK_BLEND_OP_ADD, VK_BLEND_FACTOR_ONE, VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA, VK_BLEND_OP_ADD);
+
+    }
+
+    public record ShaderStage(int stage, long vkShaderModule) {}
+
+    public record VertexAttribute(int location, int binding, int format, int offset) {}
+
+    public record VertexBinding(int binding, int stride, int inputRate) {}
+
+    public PipelineDescription addShaderStage(ShaderModule shaderModule) {
+        shaderStages.add(new ShaderStage(shaderModule.getShaderStage(), shaderModule.getVkShaderModule()));
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription addVertexAttribute(int location, int binding, int format, int offset) {
+        vertexAttributes.add(new VertexAttribute(location, binding, format, offset));
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription addVertexBinding(int binding, int stride, int inputRate) {
+        vertexBindings.add(new VertexBinding(binding, stride, inputRate));
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription blendState(BlendState blendState) {
+        this.blendState = blendState;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription colorAttachmentCount(int colorAttachmentCount) {
+        this.colorAttachmentCount = colorAttachmentCount;
+        hash = 0;
+        return this;
+    }
+
+    /*For dynamic rendering, also sets the color attachment count.*/
+    public PipelineDescription colorAttachmentFormats(int... colorAttachmentFormats) {
+        // Copied, the array is never changed afterwards so copies of the description can share it
+        this.colorAttachmentFormats = colorAttachmentFormats.clone();
+        colorAttachmentCount = colorAttachmentFormats.length;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription cullMode(int cullMode) {
+        this.cullMode = cullMode;
+        hash = 0;
+        return this;
+    }
+
+    /*For dynamic rendering, VK_FORMAT_UNDEFINED when there is no depth attachment.*/
+    public PipelineDescription depthAttachmentFormat(int depthAttachmentFormat) {
+        this.depthAttachmentFormat = depthAttachmentFormat;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription depthCompareOp(int depthCompareOp) {
+        this.depthCompareOp = depthCompareOp;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription depthTest(boolean depthTest) {
+        this.depthTest = depthTest;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription depthWrite(boolean depthWrite) {
+        this.depthWrite = depthWrite;
+        hash = 0;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PipelineDescription that) || hashCode() != that.hashCode()) {
+            return false;
+        }
+        return colorAttachmentCount == that.colorAttachmentCount && cullMode == that.cullMode &&
+                depthAttachmentFormat == that.depthAttachmentFormat && stencilAttachmentFormat == that.stencilAttachmentFormat &&
+                Arrays.equals(colorAttachmentFormats, that.colorAttachmentFormats) && depthCompareOp == that.depthCompareOp && depthTest == that.depthTest && depthWrite == that.depthWrite &&
+                frontFace == that.frontFace && pipelineLayout == that.pipelineLayout && polygonMode == that.polygonMode &&
+                renderPass == that.renderPass && sampleCount == that.sampleCount && subpass == that.subpass &&
+                topology == that.topology && blendState.equals(that.blendState) && shaderStages.equals(that.shaderStages) &&
+                vertexAttributes.equals(that.vertexAttributes) && vertexBindings.equals(that.vertexBindings);
+    }
+
+    public PipelineDescription frontFace(int frontFace) {
+        this.frontFace = frontFace;
+        hash = 0;
+        return this;
+    }
+
+    public int getColorAttachmentFormat(int index) {
+        return colorAttachmentFormats[index];
+    }
+
+    public int getNumColorAttachmentFormats() {
+        return colorAttachmentFormats.length;
+    }
+
+    public List<ShaderStage> getShaderStages() {
+        return Collections.unmodifiableList(shaderStages);
+    }
+
+    public List<VertexAttribute> getVertexAttributes() {
+        return Collections.unmodifiableList(vertexAttributes);
+    }
+
+    public List<VertexBinding> getVertexBindings() {
+        return Collections.unmodifiableList(vertexBindings);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = hash;
+        if (result == 0) {
+            result = Objects.hash(blendState, colorAttachmentCount, Arrays.hashCode(colorAttachmentFormats), cullMode,
+                    depthAttachmentFormat, depthCompareOp, depthTest, depthWrite, frontFace, pipelineLayout, polygonMode,
+                    renderPass, sampleCount, shaderStages, stencilAttachmentFormat, subpass, topology, vertexAttributes,
+                    vertexBindings);
+            // Zero means not computed
+            hash = result != 0 ? result : 1;
+        }
+        return hash;
+    }
+
+    public PipelineDescription pipelineLayout(long pipelineLayout) {
+        this.pipelineLayout = pipelineLayout;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription polygonMode(int polygonMode) {
+        this.polygonMode = polygonMode;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription renderPass(long renderPass, int subpass) {
+        this.renderPass = renderPass;
+        this.subpass = subpass;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription sampleCount(int sampleCount) {
+        this.sampleCount = sampleCount;
+        hash = 0;
+        return this;
+    }
+
+    /*For dynamic rendering, VK_FORMAT_UNDEFINED when there is no stencil attachment.*/
+    public PipelineDescription stencilAttachmentFormat(int stencilAttachmentFormat) {
+        this.stencilAttachmentFormat = stencilAttachmentFormat;
+        hash = 0;
+        return this;
+    }
+
+    public PipelineDescription topology(int topology) {
+        this.topology = topology;
+        hash = 0;
+        return this;
+    }
+
+    public boolean usesShaderModule(long vkShaderModule) {
+        for (ShaderStage shaderStage : shaderStages) {
+            if (shaderStage.vkShaderModule() == vkShaderModule) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
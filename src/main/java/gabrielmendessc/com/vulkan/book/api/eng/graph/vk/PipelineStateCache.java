@@ -0,0 +1,305 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkGraphicsPipelineCreateInfo;
+import org.lwjgl.vulkan.VkPipelineColorBlendAttachmentState;
+import org.lwjgl.vulkan.VkPipelineColorBlendStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineDepthStencilStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineDynamicStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineInputAssemblyStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineMultisampleStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineRasterizationStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineRenderingCreateInfoKHR;
+import org.lwjgl.vulkan.VkPipelineShaderStageCreateInfo;
+import org.lwjgl.vulkan.VkPipelineVertexInputStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineViewportStateCreateInfo;
+import org.lwjgl.vulkan.VkVertexInputAttributeDescription;
+import org.lwjgl.vulkan.VkVertexInputBindingDescription;
+import org.tinylog.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.vulkan.KHRDynamicRendering.VK_STRUCTURE_TYPE_PIPELINE_RENDERING_CREATE_INFO_KHR;
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Hands out one VkPipeline per distinct PipelineDescription: materials that describe the same state share it instead
+* of each compiling their own. Lookups and builds can come from any thread, a description that is already being built
+* is waited for rather than built twice. Missing pipelines requested together are split among the worker threads and
+* each share is created with a single vkCreateGraphicsPipelines call through the persistent pipeline cache.
+* Descriptions without a render pass are built for dynamic rendering, with the attachment formats they declare.*/
+public class PipelineStateCache {
+
+    // Bounds the create infos filled on the stack by a single call
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final Device device;
+    private final ExecutorService executor;
+    private final int numThreads;
+    private final PipelineCache pipelineCache;
+    private final Map<PipelineDescription, CompletableFuture<Long>> pipelines;
+
+    public PipelineStateCache(Device device, PipelineCache pipelineCache, int numThreads) {
+        this.device = device;
+        this.pipelineCache = pipelineCache;
+        this.numThreads = Math.max(numThreads, 1);
+        pipelines = new ConcurrentHashMap<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(this.numThreads, runnable -> {
+            Thread thread = new Thread(runnable, "pipeline-builder-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*Destroys every pipeline, the device must be idle. Batches already submitted are waited for first, shutting the
+    * workers down does not stop them inside vkCreateGraphicsPipelines and their pipelines must be destroyed too.*/
+    public void cleanUp() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.warn("Pipeline builds did not finish, their pipelines are leaked");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.warn("Interrupted waiting for pipeline builds, their pipelines are leaked");
+        }
+        for (CompletableFuture<Long> pipeline : pipelines.values()) {
+            if (pipeline.isDone() && !pipeline.isCompletedExceptionally()) {
+                vkDestroyPipeline(device.getVkDevice(), pipeline.join(), null);
+            }
+        }
+        pipelines.clear();
+    }
+
+    /*Removes the pipelines built with the shader module and returns them, for the caller to retire once the frames
+    * in flight no longer use them. Used when a shader is reloaded, waits for matching pipelines still being built,
+    * outside of the map so other lookups are not held up. Builds that fail leave nothing to evict.*/
+    public List<Long> evict(long vkShaderModule) {
+        List<Map.Entry<PipelineDescription, CompletableFuture<Long>>> matching = new ArrayList<>();
+        for (Map.Entry<PipelineDescription, CompletableFuture<Long>> entry : pipelines.entrySet()) {
+            if (entry.getKey().usesShaderModule(vkShaderModule)) {
+                matching.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+        }
+        List<Long> evicted = new ArrayList<>(matching.size());
+        for (Map.Entry<PipelineDescription, CompletableFuture<Long>> entry : matching) {
+            if (!pipelines.remove(entry.getKey(), entry.getValue())) {
+                // Evicted by someone else, or failed and removed by its build
+                continue;
+            }
+            try {
+                evicted.add(entry.getValue().join());
+            } catch (CompletionException | CancellationException e) {
+                Logger.debug("Evicted pipeline failed to build, nothing to destroy");
+            }
+        }
+        return evicted;
+    }
+
+    /*Blocks until the pipeline exists.*/
+    public long getPipeline(PipelineDescription description) {
+        return getPipelineAsync(description).join();
+    }
+
+    public CompletableFuture<Long> getPipelineAsync(PipelineDescription description) {
+        return getPipelinesAsync(List.of(description)).get(0);
+    }
+
+    /*One future per description, in the same order. Identical descriptions get the same future.*/
+    public List<CompletableFuture<Long>> getPipelinesAsync(List<PipelineDescription> descriptions) {
+        List<CompletableFuture<Long>> result = new ArrayList<>(descriptions.size());
+        List<PipelineDescription> missing = new ArrayList<>();
+        List<CompletableFuture<Long>> missingFutures = new ArrayList<>();
+        for (PipelineDescription description : descriptions) {
+            CompletableFuture<Long> pipeline = pipelines.get(description);
+            if (pipeline == null) {
+                // The key is a copy, the caller may keep changing its description
+                PipelineDescription key = new PipelineDescription(description);
+                CompletableFuture<Long> created = new CompletableFuture<>();
+                pipeline = pipelines.putIfAbsent(key, created);
+                if (pipeline == null) {
+                    pipeline = created;
+                    missing.add(key);
+                    missingFutures.add(created);
+                }
+            }
+            result.add(pipeline);
+        }
+
+        if (!missing.isEmpty()) {
+            int batchSize = Math.min(Math.ceilDiv(missing.size(), numThreads), MAX_BATCH_SIZE);
+            for (int start = 0; start < missing.size(); start += batchSize) {
+                int end = Math.min(start + batchSize, missing.size());
+                List<PipelineDescription> batch = missing.subList(start, end);
+                List<CompletableFuture<Long>> batchFutures = missingFutures.subList(start, end);
+                executor.execute(() -> buildBatch(batch, batchFutures));
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return pipelines.size();
+    }
+
+    private void buildBatch(List<PipelineDescription> batch, List<CompletableFuture<Long>> batchFutures) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            ByteBuffer main = stack.UTF8("main");
+            VkGraphicsPipelineCreateInfo.Buffer createInfos = VkGraphicsPipelineCreateInfo.calloc(batch.size(), stack);
+            for (int i = 0; i < batch.size(); i++) {
+                fillCreateInfo(stack, main, batch.get(i), createInfos.get(i));
+            }
+
+            LongBuffer pipelineHandles = stack.callocLong(batch.size());
+            int result = vkCreateGraphicsPipelines(device.getVkDevice(), pipelineCache.getVkPipelineCache(), createInfos, null, pipelineHandles);
+            if (result != VK_SUCCESS) {
+                // Some pipelines of the batch may have been created anyway
+                for (int i = 0; i < batch.size(); i++) {
+                    if (pipelineHandles.get(i) != VK_NULL_HANDLE) {
+                        vkDestroyPipeline(device.getVkDevice(), pipelineHandles.get(i), null);
+                    }
+                }
+                vkCheck(result, "Failed to create graphics pipelines");
+            }
+            Logger.debug("Created [{}] graphics pipelines", batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                batchFutures.get(i).complete(pipelineHandles.get(i));
+            }
+        } catch (RuntimeException e) {
+            // Failed descriptions are removed so they can be requested again, fixed shaders for instance
+            for (int i = 0; i < batch.size(); i++) {
+                pipelines.remove(batch.get(i), batchFutures.get(i));
+                batchFutures.get(i).completeExceptionally(e);
+            }
+        }
+    }
+
+    private static void fillCreateInfo(MemoryStack stack, ByteBuffer main, PipelineDescription description,
+                                       VkGraphicsPipelineCreateInfo createInfo) {
+        List<PipelineDescription.ShaderStage> shaderStages = description.getShaderStages();
+        VkPipelineShaderStageCreateInfo.Buffer shaderStageInfos = VkPipelineShaderStageCreateInfo.calloc(shaderStages.size(), stack);
+        for (int i = 0; i < shaderStages.size(); i++) {
+            shaderStageInfos.get(i)
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+                    .stage(shaderStages.get(i).stage())
+                    .module(shaderStages.get(i).vkShaderModule())
+                    .pName(main);
+        }
+
+        List<PipelineDescription.VertexBinding> vertexBindings = description.getVertexBindings();
+        VkVertexInputBindingDescription.Buffer bindingDescriptions = VkVertexInputBindingDescription.calloc(vertexBindings.size(), stack);
+        for (int i = 0; i < vertexBindings.size(); i++) {
+            bindingDescriptions.get(i)
+                    .binding(vertexBindings.get(i).binding())
+                    .stride(vertexBindings.get(i).stride())
+                    .inputRate(vertexBindings.get(i).inputRate());
+        }
+        List<PipelineDescription.VertexAttribute> vertexAttributes = description.getVertexAttributes();
+        VkVertexInputAttributeDescription.Buffer attributeDescriptions = VkVertexInputAttributeDescription.calloc(vertexAttributes.size(), stack);
+        for (int i = 0; i < vertexAttributes.size(); i++) {
+            attributeDescriptions.get(i)
+                    .location(vertexAttributes.get(i).location())
+                    .binding(vertexAttributes.get(i).binding())
+                    .format(vertexAttributes.get(i).format())
+                    .offset(vertexAttributes.get(i).offset());
+        }
+        VkPipelineVertexInputStateCreateInfo vertexInputStateInfo = VkPipelineVertexInputStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO)
+                .pVertexBindingDescriptions(bindingDescriptions)
+                .pVertexAttributeDescriptions(attributeDescriptions);
+
+        VkPipelineInputAssemblyStateCreateInfo inputAssemblyStateInfo = VkPipelineInputAssemblyStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO)
+                .topology(description.getTopology());
+
+        // Viewport and scissor are dynamic, only their count is part of the pipeline
+        VkPipelineViewportStateCreateInfo viewportStateInfo = VkPipelineViewportStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO)
+                .viewportCount(1)
+                .scissorCount(1);
+
+        VkPipelineRasterizationStateCreateInfo rasterizationStateInfo = VkPipelineRasterizationStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_RASTERIZATION_STATE_CREATE_INFO)
+                .polygonMode(description.getPolygonMode())
+                .cullMode(description.getCullMode())
+                .frontFace(description.getFrontFace())
+                .lineWidth(1.0f);
+
+        VkPipelineMultisampleStateCreateInfo multisampleStateInfo = VkPipelineMultisampleStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_MULTISAMPLE_STATE_CREATE_INFO)
+                .rasterizationSamples(description.getSampleCount());
+
+        VkPipelineDepthStencilStateCreateInfo depthStencilStateInfo = VkPipelineDepthStencilStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_DEPTH_STENCIL_STATE_CREATE_INFO)
+                .depthTestEnable(description.isDepthTest())
+                .depthWriteEnable(description.isDepthWrite())
+                .depthCompareOp(description.getDepthCompareOp());
+
+        PipelineDescription.BlendState blendState = description.getBlendState();
+        VkPipelineColorBlendAttachmentState.Buffer blendAttachmentStates = VkPipelineColorBlendAttachmentState.calloc(
+                description.getColorAttachmentCount(), stack);
+        for (int i = 0; i < description.getColorAttachmentCount(); i++) {
+            blendAttachmentStates.get(i)
+                    .colorWriteMask(VK_COLOR_COMPONENT_R_BIT | VK_COLOR_COMPONENT_G_BIT | VK_COLOR_COMPONENT_B_BIT | VK_COLOR_COMPONENT_A_BIT)
+                    .blendEnable(blendState.enabled())
+                    .srcColorBlendFactor(blendState.srcColorFactor())
+                    .dstColorBlendFactor(blendState.dstColorFactor())
+                    .colorBlendOp(blendState.colorOp())
+                    .srcAlphaBlendFactor(blendState.srcAlphaFactor())
+                    .dstAlphaBlendFactor(blendState.dstAlphaFactor())
+                    .alphaBlendOp(blendState.alphaOp());
+        }
+        VkPipelineColorBlendStateCreateInfo colorBlendStateInfo = VkPipelineColorBlendStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO)
+                .pAttachments(blendAttachmentStates);
+
+        VkPipelineDynamicStateCreateInfo dynamicStateInfo = VkPipelineDynamicStateCreateInfo.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_PIPELINE_DYNAMIC_STATE_CREATE_INFO)
+                .pDynamicStates(stack.ints(VK_DYNAMIC_STATE_VIEWPORT, VK_DYNAMIC_STATE_SCISSOR));
+
+        createInfo.sType(VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO)
+                .pStages(shaderStageInfos)
+                .pVertexInputState(vertexInputStateInfo)
+                .pInputAssemblyState(inputAssemblyStateInfo)
+                .pViewportState(viewportStateInfo)
+                .pRasterizationState(rasterizationStateInfo)
+                .pMultisampleState(multisampleStateInfo)
+                .pDepthStencilState(depthStencilStateInfo)
+                .pColorBlendState(colorBlendStateInfo)
+                .pDynamicState(dynamicStateInfo)
+                .layout(description.getPipelineLayout())
+                .renderPass(description.getRenderPass())
+                .subpass(description.getSubpass());
+
+        if (description.getRenderPass() == VK_NULL_HANDLE) {
+            // Dynamic rendering, the attachments come from the description instead of a render pass
+            IntBuffer colorAttachmentFormats = stack.mallocInt(description.getNumColorAttachmentFormats());
+            for (int i = 0; i < description.getNumColorAttachmentFormats(); i++) {
+                colorAttachmentFormats.put(i, description.getColorAttachmentFormat(i));
+            }
+            VkPipelineRenderingCreateInfoKHR renderingCreateInfo = VkPipelineRenderingCreateInfoKHR.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_RENDERING_CREATE_INFO_KHR)
+                    .colorAttachmentCount(description.getNumColorAttachmentFormats())
+                    .pColorAttachmentFormats(colorAttachmentFormats)
+                    .depthAttachmentFormat(description.getDepthAttachmentFormat())
+                    .stencilAttachmentFormat(description.getStencilAttachmentFormat());
+            createInfo.pNext(renderingCreateInfo);
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import static org.lwjgl.vulkan.KHRSurface.VK_PRESENT_MODE_FIFO_KHR;
+import static org.lwjgl.vulkan.KHRSurface.VK_PRESENT_MODE_FIFO_RELAXED_KHR;
+import static org.lwjgl.vulkan.KHRSurface.VK_PRESENT_MODE_IMMEDIATE_KHR;
+import static org.lwjgl.vulkan.KHRSurface.VK_PRESENT_MODE_MAILBOX_KHR;
+
+/*Present modes to try, in order of preference. FIFO is always the last resort since it is the only
+* mode every surface is required to support.*/
+public enum PresentModePolicy {
+
+    LOW_LATENCY(VK_PRESENT_MODE_MAILBOX_KHR, VK_PRESENT_MODE_IMMEDIATE_KHR, VK_PRESENT_MODE_FIFO_KHR),
+    POWER_SAVING(VK_PRESENT_MODE_FIFO_KHR),
+    ADAPTIVE(VK_PRESENT_MODE_FIFO_RELAXED_KHR, VK_PRESENT_MODE_FIFO_KHR);
+
+    private final int[] presentModes;
+
+    PresentModePolicy(int... presentModes) {
+        this.presentModes = presentModes;
+    }
+
+    public int getNumPresentModes() {
+        return presentModes.length;
+    }
+
+    /*By index, the array itself is shared by every user of the policy.*/
+    public int getPresentMode(int index) {
+        return presentModes[index];
+    }
+
+    public static String getPresentModeName(int presentMode) {
+        return switch (presentMode) {
+            case VK_PRESENT_MODE_IMMEDIATE_KHR -> "IMMEDIATE";
+            case VK_PRESENT_MODE_MAILBOX_KHR -> "MAILBOX";
+            case VK_PRESENT_MODE_FIFO_KHR -> "FIFO";
+            case VK_PRESENT_MODE_FIFO_RELAXED_KHR -> "FIFO_RELAXED";
+            default -> String.valueOf(presentMode);
+        };
+    }
+
+}
@@ -5,26 +5,32 @@ import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.KHRSurface;
 import org.lwjgl.vulkan.VkQueue;
-import org.lwjgl.vulkan.VkQueueFamilyProperties;
 import org.lwjgl.vulkan.VkSubmitInfo;
+import org.lwjgl.vulkan.VkSubmitInfo2;
 import org.tinylog.Logger;
 
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 
 import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.vulkan.KHRSynchronization2.vkQueueSubmit2KHR;
 import static org.lwjgl.vulkan.VK11.*;
 
 @Getter
 public class Queue {
 
     private final int queueFamilyIndex;
+    private final int queueIndex;
     private final VkQueue vkQueue;
+    // VkQueue access must be externally synchronized, the lock is shared by all the Queue objects of the same VkQueue
+    private final Object queueLock;
 
     public Queue(Device device, int queueFamilyIndex, int queueIndex) {
-        Logger.debug("Creating queue");
+        Logger.debug("Creating queue [{}] of family [{}]", queueIndex, queueFamilyIndex);
 
         this.queueFamilyIndex = queueFamilyIndex;
+        this.queueIndex = queueIndex;
+        queueLock = device.getQueueLock(queueFamilyIndex, queueIndex);
         try (MemoryStack stack = MemoryStack.stackPush()) {
             PointerBuffer pQueue = stack.mallocPointer(1);
             vkGetDeviceQueue(device.getVkDevice(), queueFamilyIndex, queueIndex, pQueue);
@@ -35,7 +41,9 @@ public class Queue {
 
     public void waitIdle() {
 
-        vkQueueWaitIdle(vkQueue);
+        synchronized (queueLock) {
+            vkQueueWaitIdle(vkQueue);
+        }
 
     }
 
@@ -54,35 +62,46 @@ public class Queue {
             }
             long fenceHandle = fence != null ? fence.getVkFence() : VK_NULL_HANDLE;
 
-            vkCheck(vkQueueSubmit(vkQueue, submitInfo, fenceHandle),
-                    "Failed to submit command to queue");
+            synchronized (queueLock) {
+                vkCheck(vkQueueSubmit(vkQueue, submitInfo, fenceHandle),
+                        "Failed to submit command to queue");
+            }
         }
     }
 
-    public static class GraphicsQueue extends Queue {
+    /*Submits several batches in a single call, see SubmitBatch.*/
+    public void submit(VkSubmitInfo.Buffer submitInfos, Fence fence) {
+        long fenceHandle = fence != null ? fence.getVkFence() : VK_NULL_HANDLE;
+        synchronized (queueLock) {
+            vkCheck(vkQueueSubmit(vkQueue, submitInfos, fenceHandle), "Failed to submit command to queue");
+        }
+    }
 
-        public GraphicsQueue(Device device, int queueIndex) {
-            super(device, getGraphicsQueueFamilyIndex(device), queueIndex);
+    /*Synchronization2 flavour of the multi submit, only available if the device enabled the extension.*/
+    public void submit2(VkSubmitInfo2.Buffer submitInfos, Fence fence) {
+        long fenceHandle = fence != null ? fence.getVkFence() : VK_NULL_HANDLE;
+        synchronized (queueLock) {
+            vkCheck(vkQueueSubmit2KHR(vkQueue, submitInfos, fenceHandle), "Failed to submit command to queue");
         }
+    }
 
-        private static int getGraphicsQueueFamilyIndex(Device device) {
-            int index = -1;
-            PhysicalDevice physicalDevice = device.getPhysicalDevice();
-            VkQueueFamilyProperties.Buffer queuePropsBuff = physicalDevice.getVkQueueFamilyProps();
-            int numQueuesFamilies = queuePropsBuff.capacity();
-            for (int i = 0; i < numQueuesFamilies; i++) {
-                VkQueueFamilyProperties props = queuePropsBuff.get(i);
-                boolean graphicsQueue = (props.queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0;
-                if (graphicsQueue) {
-                    index = i;
-                    break;
-                }
-            }
+    /*Async compute queue. Uses a compute family without graphics when there is one.*/
+    public static class ComputeQueue extends Queue {
 
-            if (index < 0) {
-                throw new RuntimeException("Failed to get graphics Queue family index");
-            }
-            return index;
+        /*Hands out a queue of the family not used by other threads yet, if the family has any left.*/
+        public ComputeQueue(Device device) {
+            this(device, device.obtainQueueIndex(device.getQueueTopology().getComputeQueueFamilyIndex()));
+        }
+
+        public ComputeQueue(Device device, int queueIndex) {
+            super(device, device.getQueueTopology().getComputeQueueFamilyIndex(), queueIndex);
+        }
+    }
+
+    public static class GraphicsQueue extends Queue {
+
+        public GraphicsQueue(Device device, int queueIndex) {
+            super(device, device.getQueueTopology().getGraphicsQueueFamilyIndex(), queueIndex);
         }
     }
 
@@ -92,20 +111,20 @@ public class Queue {
             super(device, getPresentQueueFamilyIndex(device, surface), queueIndex);
         }
 
+        /*Prefers the graphics family so no ownership transfer is needed between rendering and presenting.*/
         private static int getPresentQueueFamilyIndex(Device device, Surface surface) {
             int index = -1;
             try (MemoryStack stack = MemoryStack.stackPush()) {
                 PhysicalDevice physicalDevice = device.getPhysicalDevice();
-                VkQueueFamilyProperties.Buffer queuePropsBuff = physicalDevice.getVkQueueFamilyProps();
-                int numQueuesFamilies = queuePropsBuff.capacity();
+                int graphicsQueueFamilyIndex = device.getQueueTopology().getGraphicsQueueFamilyIndex();
+                int numQueuesFamilies = device.getQueueTopology().getNumQueueFamilies();
                 IntBuffer intBuff = stack.mallocInt(1);
                 for (int i = 0; i < numQueuesFamilies; i++) {
                     KHRSurface.vkGetPhysicalDeviceSurfaceSupportKHR(physicalDevice.getVkPhysicalDevice(),
                             i, surface.getVkSurface(), intBuff);
                     boolean supportsPresentation = intBuff.get(0) == VK_TRUE;
-                    if (supportsPresentation) {
+                    if (supportsPresentation && (index < 0 || i == graphicsQueueFamilyIndex)) {
                         index = i;
-                        break;
                     }
                 }
             }
@@ -117,4 +136,18 @@ public class Queue {
         }
     }
 
+    /*Queue for copy work. Families that only support transfers are usually backed by the DMA engines, so uploads
+    * run alongside rendering.*/
+    public static class TransferQueue extends Queue {
+
+        /*Hands out a queue of the family not used by other threads yet, if the family has any left.*/
+        public TransferQueue(Device device) {
+            this(device, device.obtainQueueIndex(device.getQueueTopology().getTransferQueueFamilyIndex()));
+        }
+
+        public TransferQueue(Device device, int queueIndex) {
+            super(device, device.getQueueTopology().getTransferQueueFamilyIndex(), queueIndex);
+        }
+    }
+
 }
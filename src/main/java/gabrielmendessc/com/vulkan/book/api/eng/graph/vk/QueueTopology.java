@@ -0,0 +1,102 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+import org.lwjgl.vulkan.VkQueueFamilyProperties;
+import org.tinylog.Logger;
+
+import java.util.Arrays;
+
+import static org.lwjgl.vulkan.VK11.VK_QUEUE_COMPUTE_BIT;
+import static org.lwjgl.vulkan.VK11.VK_QUEUE_GRAPHICS_BIT;
+import static org.lwjgl.vulkan.VK11.VK_QUEUE_TRANSFER_BIT;
+
+/*Decides which queue family serves each kind of work and the priority of the queues created from each family.
+* Compute prefers a family without graphics (async compute) and transfer a family with only transfers (usually
+* the DMA engines), both fall back to the graphics family, which supports everything. A family shared by several
+* roles gets the highest of their priorities.*/
+public class QueueTopology {
+
+    public static final float DEFAULT_PRIORITY = 1.0f;
+
+    @Getter
+    private final int computeQueueFamilyIndex;
+    @Getter
+    private final int graphicsQueueFamilyIndex;
+    @Getter
+    private final int transferQueueFamilyIndex;
+    private final float[] familyPriorities;
+    private final int[] queueCounts;
+
+    public QueueTopology(PhysicalDevice physicalDevice) {
+        this(physicalDevice, DEFAULT_PRIORITY, DEFAULT_PRIORITY, DEFAULT_PRIORITY);
+    }
+
+    public QueueTopology(PhysicalDevice physicalDevice, float graphicsPriority, float computePriority, float transferPriority) {
+        VkQueueFamilyProperties.Buffer queuePropsBuff = physicalDevice.getVkQueueFamilyProps();
+        int numQueuesFamilies = queuePropsBuff.capacity();
+        int[] queueFlags = new int[numQueuesFamilies];
+        queueCounts = new int[numQueuesFamilies];
+        for (int i = 0; i < numQueuesFamilies; i++) {
+            queueFlags[i] = queuePropsBuff.get(i).queueFlags();
+            queueCounts[i] = queuePropsBuff.get(i).queueCount();
+        }
+
+        graphicsQueueFamilyIndex = findFamily(queueFlags, VK_QUEUE_GRAPHICS_BIT, 0);
+        if (graphicsQueueFamilyIndex < 0) {
+            throw new RuntimeException("Failed to get graphics Queue family index");
+        }
+        int computeIndex = findFamily(queueFlags, VK_QUEUE_COMPUTE_BIT, VK_QUEUE_GRAPHICS_BIT);
+        computeQueueFamilyIndex = computeIndex >= 0 ? computeIndex : graphicsQueueFamilyIndex;
+        int transferIndex = findFamily(queueFlags, VK_QUEUE_TRANSFER_BIT, VK_QUEUE_GRAPHICS_BIT | VK_QUEUE_COMPUTE_BIT);
+        if (transferIndex < 0) {
+            transferIndex = findFamily(queueFlags, VK_QUEUE_TRANSFER_BIT, VK_QUEUE_GRAPHICS_BIT);
+        }
+        transferQueueFamilyIndex = transferIndex >= 0 ? transferIndex : graphicsQueueFamilyIndex;
+
+        // Families with no role keep the lowest priority, they are still created so any family can be used
+        familyPriorities = new float[numQueuesFamilies];
+        raisePriority(graphicsQueueFamilyIndex, graphicsPriority);
+        raisePriority(computeQueueFamilyIndex, computePriority);
+        raisePriority(transferQueueFamilyIndex, transferPriority);
+
+        Logger.debug("Queue families: graphics [{}], compute [{}], transfer [{}], priorities {}", graphicsQueueFamilyIndex,
+                computeQueueFamilyIndex, transferQueueFamilyIndex, Arrays.toString(familyPriorities));
+    }
+
+    public int getNumQueueFamilies() {
+        return queueCounts.length;
+    }
+
+    public float getPriority(int queueFamilyIndex) {
+        return familyPriorities[queueFamilyIndex];
+    }
+
+    public int getQueueCount(int queueFamilyIndex) {
+        return queueCounts[queueFamilyIndex];
+    }
+
+    public boolean hasDedicatedCompute() {
+        return computeQueueFamilyIndex != graphicsQueueFamilyIndex;
+    }
+
+    public boolean hasDedicatedTransfer() {
+        return transferQueueFamilyIndex != graphicsQueueFamilyIndex;
+    }
+
+    /*Returns the first family that has all the required flags and none of the excluded ones, -1 if there is none.*/
+    private static int findFamily(int[] queueFlags, int requiredFlags, int excludedFlags) {
+        for (int i = 0; i < queueFlags.length; i++) {
+            if ((queueFlags[i] & requiredFlags) == requiredFlags && (queueFlags[i] & excludedFlags) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void raisePriority(int queueFamilyIndex, float priority) {
+        // Vulkan only accepts priorities in [0, 1]
+        float clampedPriority = Math.max(0.0f, Math.min(priority, 1.0f));
+        familyPriorities[queueFamilyIndex] = Math.max(familyPriorities[queueFamilyIndex], clampedPriority);
+    }
+
+}
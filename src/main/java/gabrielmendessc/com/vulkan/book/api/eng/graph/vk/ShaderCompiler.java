@@ -0,0 +1,243 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.util.shaderc.ShadercIncludeResolve;
+import org.lwjgl.util.shaderc.ShadercIncludeResult;
+import org.lwjgl.util.shaderc.ShadercIncludeResultRelease;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.lwjgl.util.shaderc.Shaderc.*;
+
+/*Compiles GLSL into SPIR-V with shaderc on a pool of worker threads and keeps the result in a cache directory. The
+* cache file is named after a hash of everything that changes the output: the source, the sources it includes, the
+* macros, the shader kind and the compiler options, so a hit never needs to check timestamps and a stale entry is
+* simply never looked up again. Only a cold cache pays for compilation.*/
+public class ShaderCompiler {
+
+    private static final Pattern INCLUDE_PATTERN = Pattern.compile("^\\s*#\\s*include\\s*[<\"]([^>\"]+)[>\"]", Pattern.MULTILINE);
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final String SPIRV_EXTENSION = ".spv";
+
+    private final Path cacheDir;
+    private final long compiler;
+    private final boolean debug;
+    private final ExecutorService executor;
+    private final ShadercIncludeResolve includeResolve;
+    private final ShadercIncludeResultRelease includeResultRelease;
+
+    /*Debug builds keep the debug info and skip optimization, so they are easier to inspect in a frame debugger.*/
+    public ShaderCompiler(Path cacheDir, int numThreads, boolean debug) {
+        Logger.debug("Creating shader compiler with [{}] threads, cache in [{}]", numThreads, cacheDir);
+        this.cacheDir = cacheDir;
+        this.debug = debug;
+        // The compiler object is thread safe, compile options are created per compilation
+        compiler = shaderc_compiler_initialize();
+        if (compiler == MemoryUtil.NULL) {
+            throw new RuntimeException("Failed to initialize shader compiler");
+        }
+        includeResolve = ShadercIncludeResolve.create((userData, requestedSource, type, requestingSource, includeDepth) ->
+                resolveInclude(MemoryUtil.memUTF8(requestedSource), MemoryUtil.memUTF8(requestingSource)));
+        includeResultRelease = ShadercIncludeResultRelease.create((userData, includeResult) -> releaseInclude(includeResult));
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(numThreads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "shader-compiler-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*Waits for the compilations already submitted, interrupting the workers would not stop them inside shaderc. If
+    * they do not finish in time the native compiler is leaked rather than released while still in use.*/
+    public void cleanUp() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.warn("Shader compilations did not finish, not releasing the shader compiler");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.warn("Interrupted waiting for shader compilations, not releasing the shader compiler");
+            return;
+        }
+        shaderc_compiler_release(compiler);
+        includeResolve.free();
+        includeResultRelease.free();
+    }
+
+    /*Returns the SPIR-V file of the shader, compiling it on a worker thread if it is not in the cache. The shader
+    * kind is a shaderc kind, such as shaderc_glsl_vertex_shader. The future fails with the compiler messages when
+    * the source does not compile.*/
+    public CompletableFuture<Path> compile(Path sourcePath, int shaderKind, Map<String, String> macros) {
+        return CompletableFuture.supplyAsync(() -> compileOrLoad(sourcePath, shaderKind, macros), executor);
+    }
+
+    /*The source and every file it includes, directly or not. Includes under preprocessor conditions are always listed.*/
+    public Set<Path> getDependencies(Path sourcePath) throws IOException {
+        Set<Path> dependencies = new LinkedHashSet<>();
+        dependencies.add(sourcePath.normalize());
+        appendIncludes(sourcePath, dependencies);
+        return dependencies;
+    }
+
+    private static void appendIncludes(Path sourcePath, Set<Path> includes) throws IOException {
+        Matcher matcher = INCLUDE_PATTERN.matcher(Files.readString(sourcePath));
+        while (matcher.find()) {
+            Path includePath = resolveIncludePath(sourcePath, matcher.group(1));
+            // Missing includes are reported by the compiler, the key just does not depend on them
+            if (Files.isRegularFile(includePath) && includes.add(includePath)) {
+                appendIncludes(includePath, includes);
+            }
+        }
+    }
+
+    private Path compileOrLoad(Path sourcePath, int shaderKind, Map<String, String> macros) {
+        try {
+            Path spirvPath = cacheDir.resolve(getCacheKey(sourcePath, shaderKind, macros) + SPIRV_EXTENSION);
+            if (Files.isRegularFile(spirvPath)) {
+                Logger.trace("Shader [{}] found in cache [{}]", sourcePath, spirvPath);
+                return spirvPath;
+            }
+            Logger.debug("Compiling shader [{}]", sourcePath);
+            writeAtomically(spirvPath, compileSource(sourcePath, shaderKind, macros));
+            return spirvPath;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not compile shader [" + sourcePath + "]", e);
+        }
+    }
+
+    private ByteBuffer compileSource(Path sourcePath, int shaderKind, Map<String, String> macros) throws IOException {
+        String source = Files.readString(sourcePath);
+        long options = shaderc_compile_options_initialize();
+        long result = MemoryUtil.NULL;
+        try {
+            shaderc_compile_options_set_target_env(options, shaderc_target_env_vulkan, shaderc_env_version_vulkan_1_1);
+            if (debug) {
+                shaderc_compile_options_set_generate_debug_info(options);
+                shaderc_compile_options_set_optimization_level(options, shaderc_optimization_level_zero);
+            } else {
+                shaderc_compile_options_set_optimization_level(options, shaderc_optimization_level_performance);
+            }
+            for (Map.Entry<String, String> macro : macros.entrySet()) {
+                shaderc_compile_options_add_macro_definition(options, macro.getKey(), macro.getValue());
+            }
+            shaderc_compile_options_set_include_callbacks(options, includeResolve, includeResultRelease, MemoryUtil.NULL);
+
+            result = shaderc_compile_into_spv(compiler, source, shaderKind, sourcePath.toString(), "main", options);
+            if (shaderc_result_get_compilation_status(result) != shaderc_compilation_status_success) {
+                throw new RuntimeException("Shader compilation failed: " + shaderc_result_get_error_message(result));
+            }
+            if (shaderc_result_get_num_warnings(result) > 0) {
+                Logger.warn("Shader [{}] compiled with warnings: {}", sourcePath, shaderc_result_get_error_message(result));
+            }
+            ByteBuffer bytes = shaderc_result_get_bytes(result);
+            // Copied to the heap, the result is released before writing the file
+            ByteBuffer spirv = ByteBuffer.allocate(bytes.remaining());
+            spirv.put(bytes).flip();
+            return spirv;
+        } finally {
+            if (result != MemoryUtil.NULL) {
+                shaderc_result_release(result);
+            }
+            shaderc_compile_options_release(options);
+        }
+    }
+
+    private String getCacheKey(Path sourcePath, int shaderKind, Map<String, String> macros) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+        StringBuilder header = new StringBuilder()
+                .append("kind=").append(shaderKind)
+                .append(";debug=").append(debug)
+                .append(";env=").append(shaderc_env_version_vulkan_1_1).append('\n');
+        // Sorted so the key does not depend on the iteration order of the map
+        for (Map.Entry<String, String> macro : new TreeMap<>(macros).entrySet()) {
+            header.append(macro.getKey()).append('=').append(macro.getValue()).append('\n');
+        }
+        digest.update(header.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(Files.readAllBytes(sourcePath));
+
+        Set<Path> includes = new LinkedHashSet<>();
+        appendIncludes(sourcePath, includes);
+        for (Path includePath : includes) {
+            digest.update(includePath.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(includePath));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void releaseInclude(long includeResultAddress) {
+        ShadercIncludeResult includeResult = ShadercIncludeResult.create(includeResultAddress);
+        MemoryUtil.memFree(includeResult.source_name());
+        MemoryUtil.memFree(includeResult.content());
+        includeResult.free();
+    }
+
+    /*Shaderc expects an empty source name and the error message as content when the include can not be resolved.*/
+    private static long resolveInclude(String requestedSource, String requestingSource) {
+        Path includePath = resolveIncludePath(Path.of(requestingSource), requestedSource);
+        String sourceName = includePath.toString();
+        String content;
+        try {
+            content = Files.readString(includePath);
+        } catch (IOException e) {
+            sourceName = "";
+            content = "Could not read include [" + includePath + "]";
+        }
+        return ShadercIncludeResult.calloc()
+                .source_name(MemoryUtil.memUTF8(sourceName, false))
+                .content(MemoryUtil.memUTF8(content, false))
+                .address();
+    }
+
+    private static Path resolveIncludePath(Path requestingPath, String requestedSource) {
+        Path parent = requestingPath.getParent();
+        return (parent != null ? parent.resolve(requestedSource) : Path.of(requestedSource)).normalize();
+    }
+
+    private static void writeAtomically(Path path, ByteBuffer data) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        // Unique per thread, two workers may compile the same shader at the same time
+        Path tmpPath = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().threadId() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        try {
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkShaderModuleCreateInfo;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Shader module created straight from a SPIR-V file of the shader cache: the file is memory mapped and handed to the
+* driver, the code is never copied to the heap.*/
+public class ShaderModule {
+
+    private final Device device;
+    @Getter
+    private final int shaderStage;
+    @Getter
+    private final long vkShaderModule;
+
+    public ShaderModule(Device device, Path spirvPath, int shaderStage) {
+        this.device = device;
+        this.shaderStage = shaderStage;
+        try (FileChannel channel = FileChannel.open(spirvPath, StandardOpenOption.READ);
+             MemoryStack stack = MemoryStack.stackPush()) {
+            MappedByteBuffer code = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            VkShaderModuleCreateInfo shaderModuleCreateInfo = VkShaderModuleCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SHADER_MODULE_CREATE_INFO)
+                    .pCode(code);
+
+            LongBuffer lp = stack.mallocLong(1);
+            vkCheck(vkCreateShaderModule(device.getVkDevice(), shaderModuleCreateInfo, null, lp),
+                    "Failed to create shader module");
+            vkShaderModule = lp.get(0);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read shader [" + spirvPath + "]", e);
+        }
+    }
+
+    public void cleanUp() {
+        vkDestroyShaderModule(device.getVkDevice(), vkShaderModule, null);
+    }
+
+}
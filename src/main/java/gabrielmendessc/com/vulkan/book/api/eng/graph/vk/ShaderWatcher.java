@@ -0,0 +1,208 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/*Recompiles shaders when their source or any of their includes change on disk, so they can be tuned without
+* restarting the engine. Changes are picked up by a watcher thread and compiled on the shader compiler workers, the
+* listener gets the new SPIR-V file on a worker thread too: it is expected to build its pipelines there and offer
+* them to a HotSwapSlot, the render thread never waits for any of it. A shader that fails to compile is logged and
+* the previous version is kept. Each shader compiles once at a time: changes made meanwhile queue a single rerun and
+* the result they make stale is dropped, so the listener always ends up with the latest version.*/
+public class ShaderWatcher {
+
+    // Editors usually save in several writes, events closer than this are handled as one change
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final Set<Path> directories;
+    private final ShaderCompiler shaderCompiler;
+    private final Thread thread;
+    private final WatchService watchService;
+    private final List<WatchedShader> watchedShaders;
+
+    public ShaderWatcher(ShaderCompiler shaderCompiler) {
+        this.shaderCompiler = shaderCompiler;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create shader watch service", e);
+        }
+        directories = ConcurrentHashMap.newKeySet();
+        watchedShaders = new CopyOnWriteArrayList<>();
+        thread = new Thread(this::run, "shader-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void cleanUp() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            Logger.warn("Could not close shader watch service", e);
+        }
+        thread.interrupt();
+    }
+
+    /*Recompiles the shader with the same kind and macros each time it changes, the listener is not called for the
+    * current version of the shader.*/
+    public void watch(Path sourcePath, int shaderKind, Map<String, String> macros, Consumer<Path> listener) {
+        WatchedShader watchedShader = new WatchedShader(sourcePath, shaderKind, Map.copyOf(macros), listener);
+        updateDependencies(watchedShader);
+        watchedShaders.add(watchedShader);
+    }
+
+    private void recompile(WatchedShader watchedShader) {
+        synchronized (watchedShader) {
+            if (watchedShader.compiling) {
+                watchedShader.rerunPending = true;
+                return;
+            }
+            watchedShader.compiling = true;
+        }
+        startCompile(watchedShader);
+    }
+
+    private void startCompile(WatchedShader watchedShader) {
+        Logger.info("Reloading shader [{}]", watchedShader.sourcePath);
+        try {
+            shaderCompiler.compile(watchedShader.sourcePath, watchedShader.shaderKind, watchedShader.macros)
+                    .whenComplete((spirvPath, e) -> compileCompleted(watchedShader, spirvPath, e));
+        } catch (RuntimeException e) {
+            // Shader compiler already cleaned up
+            Logger.debug("Could not reload shader [{}]", watchedShader.sourcePath, e);
+            synchronized (watchedShader) {
+                watchedShader.compiling = false;
+                watchedShader.rerunPending = false;
+            }
+        }
+    }
+
+    /*The listener runs before the next compile of the shader starts, so an older version is never offered last.*/
+    private void compileCompleted(WatchedShader watchedShader, Path spirvPath, Throwable e) {
+        // Includes may have been added or removed
+        updateDependencies(watchedShader);
+        boolean stale;
+        synchronized (watchedShader) {
+            stale = watchedShader.rerunPending;
+        }
+        if (stale) {
+            Logger.debug("Shader [{}] changed while compiling, dropping the result", watchedShader.sourcePath);
+        } else if (e != null) {
+            Logger.error("Could not reload shader [{}], keeping the previous version", watchedShader.sourcePath, e);
+        } else {
+            try {
+                watchedShader.listener.accept(spirvPath);
+            } catch (RuntimeException listenerException) {
+                Logger.error("Shader reload listener of [{}] failed", watchedShader.sourcePath, listenerException);
+            }
+        }
+
+        boolean rerun;
+        synchronized (watchedShader) {
+            rerun = watchedShader.rerunPending;
+            watchedShader.rerunPending = false;
+            watchedShader.compiling = rerun;
+        }
+        if (rerun) {
+            startCompile(watchedShader);
+        }
+    }
+
+    private void registerDirectory(Path directory) {
+        if (!directories.add(directory)) {
+            return;
+        }
+        try {
+            directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            directories.remove(directory);
+            Logger.warn("Could not watch shader directory [{}]", directory, e);
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Set<Path> changedPaths = new HashSet<>();
+                WatchKey watchKey = watchService.take();
+                while (watchKey != null) {
+                    Path directory = (Path) watchKey.watchable();
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        if (event.kind() != OVERFLOW) {
+                            changedPaths.add(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    watchKey.reset();
+                    watchKey = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                for (WatchedShader watchedShader : watchedShaders) {
+                    for (Path dependency : watchedShader.dependencies) {
+                        if (changedPaths.contains(dependency)) {
+                            recompile(watchedShader);
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Logger.debug("Shader watcher stopped");
+        }
+    }
+
+    private void updateDependencies(WatchedShader watchedShader) {
+        Set<Path> dependencies = new HashSet<>();
+        try {
+            for (Path dependency : shaderCompiler.getDependencies(watchedShader.sourcePath)) {
+                dependencies.add(dependency.toAbsolutePath().normalize());
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not read includes of shader [{}]", watchedShader.sourcePath, e);
+            dependencies.add(watchedShader.sourcePath.toAbsolutePath().normalize());
+        }
+        for (Path dependency : dependencies) {
+            registerDirectory(dependency.getParent());
+        }
+        watchedShader.dependencies = dependencies;
+    }
+
+    private static class WatchedShader {
+
+        private final Consumer<Path> listener;
+        private final Map<String, String> macros;
+        private final int shaderKind;
+        private final Path sourcePath;
+        // Guarded by the watched shader
+        private boolean compiling;
+        private volatile Set<Path> dependencies;
+        private boolean rerunPending;
+
+        private WatchedShader(Path sourcePath, int shaderKind, Map<String, String> macros, Consumer<Path> listener) {
+            this.sourcePath = sourcePath;
+            this.shaderKind = shaderKind;
+            this.macros = macros;
+            this.listener = listener;
+            dependencies = Set.of();
+        }
+
+    }
+
+}
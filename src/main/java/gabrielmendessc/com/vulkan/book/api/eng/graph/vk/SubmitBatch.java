@@ -0,0 +1,320 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferSubmitInfo;
+import org.lwjgl.vulkan.VkSemaphoreSubmitInfo;
+import org.lwjgl.vulkan.VkSubmitInfo;
+import org.lwjgl.vulkan.VkSubmitInfo2;
+import org.lwjgl.vulkan.VkTimelineSemaphoreSubmitInfo;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.vulkan.KHRSynchronization2.VK_STRUCTURE_TYPE_COMMAND_BUFFER_SUBMIT_INFO_KHR;
+import static org.lwjgl.vulkan.KHRSynchronization2.VK_STRUCTURE_TYPE_SEMAPHORE_SUBMIT_INFO_KHR;
+import static org.lwjgl.vulkan.KHRSynchronization2.VK_STRUCTURE_TYPE_SUBMIT_INFO_2_KHR;
+import static org.lwjgl.vulkan.KHRTimelineSemaphore.VK_STRUCTURE_TYPE_TIMELINE_SEMAPHORE_SUBMIT_INFO_KHR;
+import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_SUBMIT_INFO;
+
+/*Collects several submits, each with its own command buffers and wait / signal semaphores, and hands all of them to
+* the queue in a single vkQueueSubmit (or vkQueueSubmit2KHR when the device enabled synchronization2). The native
+* structs are allocated once and reused, growing if a frame needs more room than any previous one.
+*
+* Usage: nextSubmit() starts a submit, then add its command buffers and semaphores, repeat for the next one and
+* finish with submit(queue, fence), which also clears the batch. Timeline semaphores take the value to wait for or to
+* signal, when the device supports them. Stage masks use the synchronization2 values, which
+* match the legacy ones for all the stages that exist in both.*/
+public class SubmitBatch {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final boolean synchronization2;
+    private final boolean timelineSemaphore;
+    private VkCommandBuffer[] commandBuffers;
+    private int numCommandBuffers;
+    private int numSubmits;
+    private long[] signalSemaphores;
+    private long[] signalStageMasks;
+    private long[] signalValues;
+    private int numSignalSemaphores;
+    // Per submit, the index of its first command buffer, wait and signal semaphore, plus one extra entry for the end
+    private int[] submitCommandBuffers;
+    private int[] submitSignalSemaphores;
+    private int[] submitWaitSemaphores;
+    private long[] waitSemaphores;
+    private long[] waitStageMasks;
+    private long[] waitValues;
+    private int numWaitSemaphores;
+    // Native structs
+    private PointerBuffer pCommandBuffers;
+    private LongBuffer pSignalSemaphores;
+    private LongBuffer pSignalValues;
+    private LongBuffer pWaitSemaphores;
+    private IntBuffer pWaitStageMasks;
+    private LongBuffer pWaitValues;
+    private VkSubmitInfo.Buffer submitInfos;
+    private VkTimelineSemaphoreSubmitInfo.Buffer timelineSemaphoreSubmitInfos;
+    private VkCommandBufferSubmitInfo.Buffer commandBufferSubmitInfos;
+    private VkSemaphoreSubmitInfo.Buffer signalSemaphoreSubmitInfos;
+    private VkSubmitInfo2.Buffer submitInfos2;
+    private VkSemaphoreSubmitInfo.Buffer waitSemaphoreSubmitInfos;
+
+    public SubmitBatch(Device device) {
+        synchronization2 = device.isSynchronization2();
+        timelineSemaphore = device.isTimelineSemaphore();
+        commandBuffers = new VkCommandBuffer[INITIAL_CAPACITY];
+        waitSemaphores = new long[INITIAL_CAPACITY];
+        waitStageMasks = new long[INITIAL_CAPACITY];
+        waitValues = new long[INITIAL_CAPACITY];
+        signalSemaphores = new long[INITIAL_CAPACITY];
+        signalStageMasks = new long[INITIAL_CAPACITY];
+        signalValues = new long[INITIAL_CAPACITY];
+        submitCommandBuffers = new int[INITIAL_CAPACITY + 1];
+        submitWaitSemaphores = new int[INITIAL_CAPACITY + 1];
+        submitSignalSemaphores = new int[INITIAL_CAPACITY + 1];
+    }
+
+    public void cleanUp() {
+        MemoryUtil.memFree(pCommandBuffers);
+        MemoryUtil.memFree(pWaitSemaphores);
+        MemoryUtil.memFree(pWaitStageMasks);
+        MemoryUtil.memFree(pWaitValues);
+        MemoryUtil.memFree(pSignalSemaphores);
+        MemoryUtil.memFree(pSignalValues);
+        MemoryUtil.memFree(submitInfos);
+        MemoryUtil.memFree(timelineSemaphoreSubmitInfos);
+        MemoryUtil.memFree(submitInfos2);
+        MemoryUtil.memFree(commandBufferSubmitInfos);
+        MemoryUtil.memFree(waitSemaphoreSubmitInfos);
+        MemoryUtil.memFree(signalSemaphoreSubmitInfos);
+    }
+
+    public SubmitBatch addCommandBuffer(CommandBuffer commandBuffer) {
+        checkSubmitStarted();
+        if (numCommandBuffers == commandBuffers.length) {
+            commandBuffers = Arrays.copyOf(commandBuffers, numCommandBuffers * 2);
+        }
+        commandBuffers[numCommandBuffers++] = commandBuffer.getVkCommandBuffer();
+        return this;
+    }
+
+    /*The stage mask is ignored without synchronization2, the legacy submit signals once all the commands complete.*/
+    public SubmitBatch addSignalSemaphore(Semaphore semaphore, long stageMask) {
+        return addSignalSemaphore(semaphore.getVkSemaphore(), 0, stageMask);
+    }
+
+    public SubmitBatch addSignalSemaphore(TimelineSemaphore timelineSemaphore, long value, long stageMask) {
+        return addSignalSemaphore(timelineSemaphore.getVkSemaphore(), value, stageMask);
+    }
+
+    public SubmitBatch addWaitSemaphore(Semaphore semaphore, long stageMask) {
+        return addWaitSemaphore(semaphore.getVkSemaphore(), 0, stageMask);
+    }
+
+    public SubmitBatch addWaitSemaphore(TimelineSemaphore timelineSemaphore, long value, long stageMask) {
+        return addWaitSemaphore(timelineSemaphore.getVkSemaphore(), value, stageMask);
+    }
+
+    public boolean isEmpty() {
+        return numSubmits == 0;
+    }
+
+    public SubmitBatch nextSubmit() {
+        if (numSubmits + 1 == submitCommandBuffers.length) {
+            submitCommandBuffers = Arrays.copyOf(submitCommandBuffers, submitCommandBuffers.length * 2);
+            submitWaitSemaphores = Arrays.copyOf(submitWaitSemaphores, submitWaitSemaphores.length * 2);
+            submitSignalSemaphores = Arrays.copyOf(submitSignalSemaphores, submitSignalSemaphores.length * 2);
+        }
+        submitCommandBuffers[numSubmits] = numCommandBuffers;
+        submitWaitSemaphores[numSubmits] = numWaitSemaphores;
+        submitSignalSemaphores[numSubmits] = numSignalSemaphores;
+        numSubmits++;
+        return this;
+    }
+
+    public void reset() {
+        numSubmits = 0;
+        numCommandBuffers = 0;
+        numWaitSemaphores = 0;
+        numSignalSemaphores = 0;
+    }
+
+    /*Submits all the collected submits in order with a single call and resets the batch. The fence, which may be
+    * null, signals once all of them have completed.*/
+    public void submit(Queue queue, Fence fence) {
+        if (isEmpty() && fence == null) {
+            return;
+        }
+        submitCommandBuffers[numSubmits] = numCommandBuffers;
+        submitWaitSemaphores[numSubmits] = numWaitSemaphores;
+        submitSignalSemaphores[numSubmits] = numSignalSemaphores;
+
+        if (synchronization2) {
+            queue.submit2(fillSubmitInfos2(), fence);
+        } else {
+            queue.submit(fillSubmitInfos(), fence);
+        }
+        reset();
+    }
+
+    // Binary semaphores use a value of 0, which is ignored
+    private SubmitBatch addSignalSemaphore(long vkSemaphore, long value, long stageMask) {
+        checkSubmitStarted();
+        if (numSignalSemaphores == signalSemaphores.length) {
+            signalSemaphores = Arrays.copyOf(signalSemaphores, numSignalSemaphores * 2);
+            signalStageMasks = Arrays.copyOf(signalStageMasks, numSignalSemaphores * 2);
+            signalValues = Arrays.copyOf(signalValues, numSignalSemaphores * 2);
+        }
+        signalSemaphores[numSignalSemaphores] = vkSemaphore;
+        signalStageMasks[numSignalSemaphores] = stageMask;
+        signalValues[numSignalSemaphores++] = value;
+        return this;
+    }
+
+    private SubmitBatch addWaitSemaphore(long vkSemaphore, long value, long stageMask) {
+        checkSubmitStarted();
+        if (numWaitSemaphores == waitSemaphores.length) {
+            waitSemaphores = Arrays.copyOf(waitSemaphores, numWaitSemaphores * 2);
+            waitStageMasks = Arrays.copyOf(waitStageMasks, numWaitSemaphores * 2);
+            waitValues = Arrays.copyOf(waitValues, numWaitSemaphores * 2);
+        }
+        waitSemaphores[numWaitSemaphores] = vkSemaphore;
+        waitStageMasks[numWaitSemaphores] = stageMask;
+        waitValues[numWaitSemaphores++] = value;
+        return this;
+    }
+
+    private void checkSubmitStarted() {
+        if (numSubmits == 0) {
+            throw new RuntimeException("nextSubmit must be called before adding to a submit batch");
+        }
+    }
+
+    private VkSubmitInfo.Buffer fillSubmitInfos() {
+        if (submitInfos == null || submitInfos.capacity() < numSubmits) {
+            MemoryUtil.memFree(submitInfos);
+            submitInfos = VkSubmitInfo.calloc(submitCommandBuffers.length);
+        }
+        submitInfos.clear();
+        pCommandBuffers = ensureCapacity(pCommandBuffers, numCommandBuffers);
+        pWaitSemaphores = ensureCapacity(pWaitSemaphores, numWaitSemaphores);
+        pSignalSemaphores = ensureCapacity(pSignalSemaphores, numSignalSemaphores);
+        pWaitValues = ensureCapacity(pWaitValues, numWaitSemaphores);
+        pSignalValues = ensureCapacity(pSignalValues, numSignalSemaphores);
+        if (timelineSemaphore && (timelineSemaphoreSubmitInfos == null || timelineSemaphoreSubmitInfos.capacity() < numSubmits)) {
+            MemoryUtil.memFree(timelineSemaphoreSubmitInfos);
+            timelineSemaphoreSubmitInfos = VkTimelineSemaphoreSubmitInfo.calloc(submitCommandBuffers.length);
+        }
+        if (pWaitStageMasks == null || pWaitStageMasks.capacity() < numWaitSemaphores) {
+            MemoryUtil.memFree(pWaitStageMasks);
+            pWaitStageMasks = MemoryUtil.memAllocInt(waitSemaphores.length);
+        }
+        for (int i = 0; i < numCommandBuffers; i++) {
+            pCommandBuffers.put(i, commandBuffers[i]);
+        }
+        for (int i = 0; i < numWaitSemaphores; i++) {
+            pWaitSemaphores.put(i, waitSemaphores[i]);
+            pWaitStageMasks.put(i, (int) waitStageMasks[i]);
+            pWaitValues.put(i, waitValues[i]);
+        }
+        for (int i = 0; i < numSignalSemaphores; i++) {
+            pSignalSemaphores.put(i, signalSemaphores[i]);
+            pSignalValues.put(i, signalValues[i]);
+        }
+
+        for (int i = 0; i < numSubmits; i++) {
+            int firstWait = submitWaitSemaphores[i];
+            int numWaits = submitWaitSemaphores[i + 1] - firstWait;
+            int firstSignal = submitSignalSemaphores[i];
+            int numSignals = submitSignalSemaphores[i + 1] - firstSignal;
+            int firstCommandBuffer = submitCommandBuffers[i];
+            VkSubmitInfo submitInfo = submitInfos.get(i)
+                    .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                    .pCommandBuffers(pCommandBuffers.slice(firstCommandBuffer, submitCommandBuffers[i + 1] - firstCommandBuffer))
+                    .waitSemaphoreCount(numWaits)
+                    .pWaitSemaphores(pWaitSemaphores.slice(firstWait, numWaits))
+                    .pWaitDstStageMask(pWaitStageMasks.slice(firstWait, numWaits))
+                    .pSignalSemaphores(pSignalSemaphores.slice(firstSignal, numSignals));
+            if (timelineSemaphore) {
+                // Values of the timeline semaphores, the ones of the binary semaphores are ignored
+                VkTimelineSemaphoreSubmitInfo timelineSemaphoreSubmitInfo = timelineSemaphoreSubmitInfos.get(i)
+                        .sType(VK_STRUCTURE_TYPE_TIMELINE_SEMAPHORE_SUBMIT_INFO_KHR)
+                        .waitSemaphoreValueCount(numWaits)
+                        .pWaitSemaphoreValues(pWaitValues.slice(firstWait, numWaits))
+                        .signalSemaphoreValueCount(numSignals)
+                        .pSignalSemaphoreValues(pSignalValues.slice(firstSignal, numSignals));
+                submitInfo.pNext(timelineSemaphoreSubmitInfo);
+            }
+        }
+
+        return submitInfos.limit(numSubmits);
+    }
+
+    private VkSubmitInfo2.Buffer fillSubmitInfos2() {
+        if (submitInfos2 == null || submitInfos2.capacity() < numSubmits) {
+            MemoryUtil.memFree(submitInfos2);
+            submitInfos2 = VkSubmitInfo2.calloc(submitCommandBuffers.length);
+        }
+        submitInfos2.clear();
+        if (commandBufferSubmitInfos == null || commandBufferSubmitInfos.capacity() < numCommandBuffers) {
+            MemoryUtil.memFree(commandBufferSubmitInfos);
+            commandBufferSubmitInfos = VkCommandBufferSubmitInfo.calloc(commandBuffers.length);
+        }
+        waitSemaphoreSubmitInfos = fillSemaphoreSubmitInfos(waitSemaphoreSubmitInfos, waitSemaphores, waitValues, waitStageMasks, numWaitSemaphores);
+        signalSemaphoreSubmitInfos = fillSemaphoreSubmitInfos(signalSemaphoreSubmitInfos, signalSemaphores, signalValues, signalStageMasks, numSignalSemaphores);
+        for (int i = 0; i < numCommandBuffers; i++) {
+            commandBufferSubmitInfos.get(i)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_SUBMIT_INFO_KHR)
+                    .commandBuffer(commandBuffers[i]);
+        }
+
+        for (int i = 0; i < numSubmits; i++) {
+            int firstWait = submitWaitSemaphores[i];
+            int firstSignal = submitSignalSemaphores[i];
+            int firstCommandBuffer = submitCommandBuffers[i];
+            submitInfos2.get(i)
+                    .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO_2_KHR)
+                    .pCommandBufferInfos(commandBufferSubmitInfos.slice(firstCommandBuffer, submitCommandBuffers[i + 1] - firstCommandBuffer))
+                    .pWaitSemaphoreInfos(waitSemaphoreSubmitInfos.slice(firstWait, submitWaitSemaphores[i + 1] - firstWait))
+                    .pSignalSemaphoreInfos(signalSemaphoreSubmitInfos.slice(firstSignal, submitSignalSemaphores[i + 1] - firstSignal));
+        }
+
+        return submitInfos2.limit(numSubmits);
+    }
+
+    private static PointerBuffer ensureCapacity(PointerBuffer buffer, int capacity) {
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        MemoryUtil.memFree(buffer);
+        return MemoryUtil.memAllocPointer(Math.max(capacity, INITIAL_CAPACITY) * 2);
+    }
+
+    private static LongBuffer ensureCapacity(LongBuffer buffer, int capacity) {
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        MemoryUtil.memFree(buffer);
+        return MemoryUtil.memAllocLong(Math.max(capacity, INITIAL_CAPACITY) * 2);
+    }
+
+    private static VkSemaphoreSubmitInfo.Buffer fillSemaphoreSubmitInfos(VkSemaphoreSubmitInfo.Buffer semaphoreSubmitInfos,
+                                                                        long[] semaphores, long[] values, long[] stageMasks, int count) {
+        if (semaphoreSubmitInfos == null || semaphoreSubmitInfos.capacity() < count) {
+            MemoryUtil.memFree(semaphoreSubmitInfos);
+            semaphoreSubmitInfos = VkSemaphoreSubmitInfo.calloc(semaphores.length);
+        }
+        for (int i = 0; i < count; i++) {
+            semaphoreSubmitInfos.get(i)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_SUBMIT_INFO_KHR)
+                    .semaphore(semaphores[i])
+                    .value(values[i])
+                    .stageMask(stageMasks[i]);
+        }
+        return semaphoreSubmitInfos;
+    }
+
+}
@@ -3,7 +3,9 @@ package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
 import lombok.Getter;
 import org.lwjgl.glfw.GLFWVulkan;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.EXTHeadlessSurface;
 import org.lwjgl.vulkan.KHRSurface;
+import org.lwjgl.vulkan.VkHeadlessSurfaceCreateInfoEXT;
 import org.tinylog.Logger;
 
 import java.nio.LongBuffer;
@@ -29,6 +31,26 @@ public class Surface {
 
     }
 
+    /*Surface with no display behind it, from VK_EXT_headless_surface. Swap chains on it acquire and present like
+    * windowed ones, the presented images are just dropped. The instance must support it.*/
+    public Surface(PhysicalDevice physicalDevice) {
+
+        Logger.debug("Creating headless Vulkan Surface for device [{}]", physicalDevice.getDeviceName());
+        this.physicalDevice = physicalDevice;
+
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VkHeadlessSurfaceCreateInfoEXT createInfo = VkHeadlessSurfaceCreateInfoEXT.calloc(memoryStack)
+                    .sType(EXTHeadlessSurface.VK_STRUCTURE_TYPE_HEADLESS_SURFACE_CREATE_INFO_EXT);
+            LongBuffer pSurface = memoryStack.mallocLong(1);
+            VKUtils.vkCheck(EXTHeadlessSurface.vkCreateHeadlessSurfaceEXT(this.physicalDevice.getVkPhysicalDevice().getInstance(),
+                    createInfo, null, pSurface), "Failed to create headless surface");
+            vkSurface = pSurface.get(0);
+
+        }
+
+    }
+
     public void cleanUp() {
 
         Logger.debug("Destroying Vulkan Surface [{}]", vkSurface);
@@ -23,6 +23,8 @@ import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
 import static org.lwjgl.vulkan.VK11.VK_FORMAT_B8G8R8A8_SRGB;
 import static org.lwjgl.vulkan.VK11.VK_IMAGE_ASPECT_COLOR_BIT;
 import static org.lwjgl.vulkan.VK11.VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT;
+import static org.lwjgl.vulkan.VK11.VK_IMAGE_USAGE_TRANSFER_SRC_BIT;
+import static org.lwjgl.vulkan.VK11.VK_NULL_HANDLE;
 import static org.lwjgl.vulkan.VK11.VK_SHARING_MODE_CONCURRENT;
 import static org.lwjgl.vulkan.VK11.VK_SHARING_MODE_EXCLUSIVE;
 import static org.lwjgl.vulkan.VK11.VK_SUCCESS;
@@ -31,18 +33,37 @@ import static org.lwjgl.vulkan.VK11.VK_SUCCESS;
 public class SwapChain {
 
     private final Device device;
+    private final boolean headless;
     private final ImageView[] imageViews;
+    private final VulkanImage[] offscreenImages;
     private final SurfaceFormat surfaceFormat;
+    private final int presentMode;
     private final VkExtent2D swapChainExtent;
-    private final SyncSemaphores[] syncSemaphoresList;
+    private final Semaphore[] renderCompleteSemaphores;
     private final long vkSwapChain;
 
-    private int currentFrame;
+    private int currentImage;
 
-    public SwapChain(Device device, Surface surface, Window window, int requestedImages, boolean vsync, Queue.PresentQueue presentationQueue,
+    public SwapChain(Device device, Surface surface, Window window, int requestedImages, PresentModePolicy presentModePolicy, Queue.PresentQueue presentationQueue,
                      Queue[] concurrentQueues) {
+        this(device, surface, window, requestedImages, presentModePolicy, presentationQueue, concurrentQueues, null);
+    }
+
+    /*When an old swap chain is provided, it is handed to the driver so it can reuse its resources and
+    * keep presenting its already acquired images. The caller is still in charge of destroying it once
+    * the frames that use it have completed.*/
+    public SwapChain(Device device, Surface surface, Window window, int requestedImages, PresentModePolicy presentModePolicy, Queue.PresentQueue presentationQueue,
+                     Queue[] concurrentQueues, SwapChain oldSwapChain) {
+        this(device, surface, window.getWidth(), window.getHeight(), requestedImages, presentModePolicy, presentationQueue, concurrentQueues, oldSwapChain);
+    }
+
+    /*Width and height are only used when the surface does not define its size, as headless surfaces.*/
+    public SwapChain(Device device, Surface surface, int width, int height, int requestedImages, PresentModePolicy presentModePolicy,
+                     Queue.PresentQueue presentationQueue, Queue[] concurrentQueues, SwapChain oldSwapChain) {
         Logger.debug("Creating Vulkan SwapChain");
         this.device = device;
+        this.headless = false;
+        this.offscreenImages = null;
         try (MemoryStack stack = MemoryStack.stackPush()) {
 
             PhysicalDevice physicalDevice = device.getPhysicalDevice();
@@ -52,11 +73,13 @@ public class SwapChain {
             vkCheck(KHRSurface.vkGetPhysicalDeviceSurfaceCapabilitiesKHR(device.getPhysicalDevice().getVkPhysicalDevice(),
                     surface.getVkSurface(), surfCapabilities), "Failed to get surface capabilities");
 
-            int numImages = calcNumImages(surfCapabilities, requestedImages);
+            presentMode = calcPresentMode(physicalDevice, surface, presentModePolicy);
+
+            int numImages = calcNumImages(surfCapabilities, requestedImages, presentMode);
 
             surfaceFormat = calcSurfaceFormat(physicalDevice, surface);
 
-            swapChainExtent = calcSwapChainExtent(window, surfCapabilities);
+            swapChainExtent = calcSwapChainExtent(width, height, surfCapabilities);
 
             VkSwapchainCreateInfoKHR vkSwapchainCreateInfo = VkSwapchainCreateInfoKHR.calloc(stack)
                     .sType(KHRSwapchain.VK_STRUCTURE_TYPE_SWAPCHAIN_CREATE_INFO_KHR)
@@ -69,12 +92,9 @@ public class SwapChain {
                     .imageUsage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT)
                     .preTransform(surfCapabilities.currentTransform())
                     .compositeAlpha(KHRSurface.VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR)
-                    .clipped(true);
-            if (vsync) {
-                vkSwapchainCreateInfo.presentMode(KHRSurface.VK_PRESENT_MODE_FIFO_KHR);
-            } else {
-                vkSwapchainCreateInfo.presentMode(KHRSurface.VK_PRESENT_MODE_IMMEDIATE_KHR);
-            }
+                    .clipped(true)
+                    .presentMode(presentMode)
+                    .oldSwapchain(oldSwapChain != null ? oldSwapChain.getVkSwapChain() : VK_NULL_HANDLE);
 
             int numQueues = concurrentQueues != null ? concurrentQueues.length : 0;
             List<Integer> indices = new ArrayList<>();
@@ -102,24 +122,47 @@ public class SwapChain {
 
             imageViews = createImageViews(stack, device, vkSwapChain, surfaceFormat.imageFormat);
             numImages = imageViews.length;
-            syncSemaphoresList = new SyncSemaphores[numImages];
-            Arrays.setAll(syncSemaphoresList, i -> new SyncSemaphores(device));
-            currentFrame = 0;
+            // Presentation of an image is not fenced, so its semaphore is tied to the image and not to the frame in flight
+            renderCompleteSemaphores = new Semaphore[numImages];
+            Arrays.setAll(renderCompleteSemaphores, i -> new Semaphore(device));
+            currentImage = 0;
         }
     }
 
-    public record SurfaceFormat(int imageFormat, int colorSpace) {}
-
-    public record SyncSemaphores(Semaphore imgAcquisitionSemaphore, Semaphore renderCompleteSemaphore) {
-
-        public SyncSemaphores(Device device) {
-            this(new Semaphore(device), new Semaphore(device));
+    /*Headless swap chain. Instead of asking a surface for its images it renders into plain offscreen
+    * images, so the same render path can run without a window (e.g. benchmarks or render farms).
+    * Images are handed out in round-robin order and presenting is a no-op.*/
+    public SwapChain(Device device, MemoryAllocator memoryAllocator, int width, int height, int requestedImages) {
+        Logger.debug("Creating headless Vulkan SwapChain [{}x{}]", width, height);
+        this.device = device;
+        this.headless = true;
+        vkSwapChain = VK_NULL_HANDLE;
+        presentMode = KHRSurface.VK_PRESENT_MODE_IMMEDIATE_KHR;
+        surfaceFormat = new SurfaceFormat(VK_FORMAT_B8G8R8A8_SRGB, KHRSurface.VK_COLOR_SPACE_SRGB_NONLINEAR_KHR);
+        swapChainExtent = VkExtent2D.calloc().set(width, height);
+
+        int numImages = Math.max(requestedImages, 1);
+        offscreenImages = new VulkanImage[numImages];
+        imageViews = new ImageView[numImages];
+        VulkanImage.ImageData imageData = new VulkanImage.ImageData()
+                .width(width)
+                .height(height)
+                .format(surfaceFormat.imageFormat())
+                .usage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT);
+        ImageView.ImageViewData imageViewData = new ImageView.ImageViewData().format(surfaceFormat.imageFormat()).aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+        for (int i = 0; i < numImages; i++) {
+            offscreenImages[i] = new VulkanImage(memoryAllocator, imageData);
+            imageViews[i] = new ImageView(device, offscreenImages[i].getVkImage(), imageViewData);
         }
+        // Nothing is acquired nor presented, so there is nothing to synchronize with
+        renderCompleteSemaphores = new Semaphore[0];
+        currentImage = 0;
+    }
 
-        public void cleanUp() {
-            imgAcquisitionSemaphore.cleanUp();
-            renderCompleteSemaphore.cleanUp();
-        }
+    public record SurfaceFormat(int imageFormat, int colorSpace) {}
+
+    public Semaphore getRenderCompleteSemaphore() {
+        return headless ? null : renderCompleteSemaphores[currentImage];
     }
 
     public void cleanUp() {
@@ -129,19 +172,29 @@ public class SwapChain {
         for (ImageView imageView : imageViews) {
             imageView.cleanUp();
         }
-        for (SyncSemaphores syncSemaphore : syncSemaphoresList) {
-            syncSemaphore.cleanUp();
+        for (Semaphore semaphore : renderCompleteSemaphores) {
+            semaphore.cleanUp();
+        }
+        if (headless) {
+            for (VulkanImage image : offscreenImages) {
+                image.cleanUp();
+            }
+        } else {
+            KHRSwapchain.vkDestroySwapchainKHR(device.getVkDevice(), vkSwapChain, null);
         }
-        KHRSwapchain.vkDestroySwapchainKHR(device.getVkDevice(), vkSwapChain, null);
 
     }
 
-    public boolean acquireNextImage() {
+    public boolean acquireNextImage(Semaphore imgAcquisitionSemaphore) {
+        if (headless) {
+            currentImage = (currentImage + 1) % imageViews.length;
+            return false;
+        }
         boolean resize = false;
         try (MemoryStack stack = MemoryStack.stackPush()) {
             IntBuffer ip = stack.mallocInt(1);
             int err = KHRSwapchain.vkAcquireNextImageKHR(device.getVkDevice(), vkSwapChain, ~0L,
-                    syncSemaphoresList[currentFrame].imgAcquisitionSemaphore().getVkSemaphore(), MemoryUtil.NULL, ip);
+                    imgAcquisitionSemaphore.getVkSemaphore(), MemoryUtil.NULL, ip);
             if (err == KHRSwapchain.VK_ERROR_OUT_OF_DATE_KHR) {
                 resize = true;
             } else if (err == KHRSwapchain.VK_SUBOPTIMAL_KHR) {
@@ -149,22 +202,25 @@ public class SwapChain {
             } else if (err != VK_SUCCESS) {
                 throw new RuntimeException("Failed to acquire image: " + err);
             }
-            currentFrame = ip.get(0);
+            currentImage = ip.get(0);
         }
 
         return resize;
     }
 
     public boolean presentImage(Queue queue) {
+        if (headless) {
+            return false;
+        }
         boolean resize = false;
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkPresentInfoKHR present = VkPresentInfoKHR.calloc(stack)
                     .sType(KHRSwapchain.VK_STRUCTURE_TYPE_PRESENT_INFO_KHR)
                     .pWaitSemaphores(stack.longs(
-                            syncSemaphoresList[currentFrame].renderCompleteSemaphore().getVkSemaphore()))
+                            renderCompleteSemaphores[currentImage].getVkSemaphore()))
                     .swapchainCount(1)
                     .pSwapchains(stack.longs(vkSwapChain))
-                    .pImageIndices(stack.ints(currentFrame));
+                    .pImageIndices(stack.ints(currentImage));
 
             int err = KHRSwapchain.vkQueuePresentKHR(queue.getVkQueue(), present);
             if (err == KHRSwapchain.VK_ERROR_OUT_OF_DATE_KHR) {
@@ -175,17 +231,24 @@ public class SwapChain {
                 throw new RuntimeException("Failed to present KHR: " + err);
             }
         }
-        currentFrame = (currentFrame + 1) % imageViews.length;
         return resize;
     }
 
-    private int calcNumImages(VkSurfaceCapabilitiesKHR surfCapabilities, int requestedImages) {
+    /*The number of images depends on the present mode:
+    *   MAILBOX needs a spare image so the newest frame can replace the queued one without blocking;
+    *   IMMEDIATE never queues, so the minimum is enough;
+    *   FIFO modes queue frames, every extra image adds a frame of latency, so the requested images are honored.*/
+    private int calcNumImages(VkSurfaceCapabilitiesKHR surfCapabilities, int requestedImages, int presentMode) {
 
         int maxImages = surfCapabilities.maxImageCount();
         int minImages = surfCapabilities.minImageCount();
-        int result = minImages;
+        int result = switch (presentMode) {
+            case KHRSurface.VK_PRESENT_MODE_MAILBOX_KHR -> Math.max(minImages + 1, 3);
+            case KHRSurface.VK_PRESENT_MODE_IMMEDIATE_KHR -> minImages;
+            default -> requestedImages;
+        };
         if (maxImages != 0) {
-            result = Math.min(requestedImages, maxImages);
+            result = Math.min(result, maxImages);
         }
         result = Math.max(result, minImages);
         Logger.debug("Requested [{}] images, got [{}] images. Surface capabilities, maxImages: [{}], minImages: [{}]", requestedImages, result, maxImages, minImages);
@@ -194,6 +257,35 @@ public class SwapChain {
 
     }
 
+    private int calcPresentMode(PhysicalDevice physicalDevice, Surface surface, PresentModePolicy presentModePolicy) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+
+            IntBuffer ip = stack.mallocInt(1);
+            vkCheck(KHRSurface.vkGetPhysicalDeviceSurfacePresentModesKHR(physicalDevice.getVkPhysicalDevice(),
+                    surface.getVkSurface(), ip, null), "Failed to get the number of present modes");
+            int numPresentModes = ip.get(0);
+
+            IntBuffer presentModes = stack.mallocInt(numPresentModes);
+            vkCheck(KHRSurface.vkGetPhysicalDeviceSurfacePresentModesKHR(physicalDevice.getVkPhysicalDevice(),
+                    surface.getVkSurface(), ip, presentModes), "Failed to get present modes");
+
+            for (int j = 0; j < presentModePolicy.getNumPresentModes(); j++) {
+                int candidate = presentModePolicy.getPresentMode(j);
+                for (int i = 0; i < numPresentModes; i++) {
+                    if (presentModes.get(i) == candidate) {
+                        Logger.info("Present mode policy [{}], selected present mode [{}]", presentModePolicy,
+                                PresentModePolicy.getPresentModeName(candidate));
+                        return candidate;
+                    }
+                }
+                Logger.debug("Present mode [{}] not supported by surface", PresentModePolicy.getPresentModeName(candidate));
+            }
+        }
+
+        Logger.info("Present mode policy [{}], falling back to present mode [FIFO]", presentModePolicy);
+        return KHRSurface.VK_PRESENT_MODE_FIFO_KHR;
+    }
+
     private SurfaceFormat calcSurfaceFormat(PhysicalDevice physicalDevice, Surface surface) {
         int imageFormat;
         int colorSpace;
@@ -226,14 +318,14 @@ public class SwapChain {
         return new SurfaceFormat(imageFormat, colorSpace);
     }
 
-    private VkExtent2D calcSwapChainExtent(Window window, VkSurfaceCapabilitiesKHR surfCapabilities) {
+    private VkExtent2D calcSwapChainExtent(int width, int height, VkSurfaceCapabilitiesKHR surfCapabilities) {
         VkExtent2D result = VkExtent2D.calloc();
         if (surfCapabilities.currentExtent().width() == 0xFFFFFFFF) {
             // Surface size undefined. Set to the window size if within bounds
-            int width = Math.min(window.getWidth(), surfCapabilities.maxImageExtent().width());
+            width = Math.min(width, surfCapabilities.maxImageExtent().width());
             width = Math.max(width, surfCapabilities.minImageExtent().width());
 
-            int height = Math.min(window.getHeight(), surfCapabilities.maxImageExtent().height());
+            height = Math.min(height, surfCapabilities.maxImageExtent().height());
             height = Math.max(height, surfCapabilities.minImageExtent().height());
 
             result.width(width);
@@ -0,0 +1,96 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.KHRTimelineSemaphore;
+import org.lwjgl.vulkan.VK12;
+import org.lwjgl.vulkan.VkSemaphoreCreateInfo;
+import org.lwjgl.vulkan.VkSemaphoreTypeCreateInfo;
+import org.lwjgl.vulkan.VkSemaphoreWaitInfo;
+
+import java.nio.LongBuffer;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.vulkan.KHRTimelineSemaphore.VK_SEMAPHORE_TYPE_TIMELINE_KHR;
+import static org.lwjgl.vulkan.KHRTimelineSemaphore.VK_STRUCTURE_TYPE_SEMAPHORE_TYPE_CREATE_INFO_KHR;
+import static org.lwjgl.vulkan.KHRTimelineSemaphore.VK_STRUCTURE_TYPE_SEMAPHORE_WAIT_INFO_KHR;
+import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO;
+import static org.lwjgl.vulkan.VK11.vkCreateSemaphore;
+import static org.lwjgl.vulkan.VK11.vkDestroySemaphore;
+
+/*A GPU counter that only grows. Each submit that signals it gets the next value, so the progress of all of them is
+* tracked with a single object: the CPU can poll how far the GPU got or wait for a value, without resetting anything
+* as fences require. Values must be signaled in increasing order, so all the signaling submits should go to the same
+* queue, from the same thread.*/
+public class TimelineSemaphore {
+
+    private final Device device;
+    private final boolean core;
+    @Getter
+    private final long vkSemaphore;
+    @Getter
+    private long lastSubmittedValue;
+
+    public TimelineSemaphore(Device device) {
+        if (!device.isTimelineSemaphore()) {
+            throw new RuntimeException("Device does not support timeline semaphores");
+        }
+        this.device = device;
+        core = device.getVkDevice().getCapabilities().Vulkan12;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkSemaphoreTypeCreateInfo semaphoreTypeCreateInfo = VkSemaphoreTypeCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_TYPE_CREATE_INFO_KHR)
+                    .semaphoreType(VK_SEMAPHORE_TYPE_TIMELINE_KHR)
+                    .initialValue(0);
+            VkSemaphoreCreateInfo semaphoreCreateInfo = VkSemaphoreCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO)
+                    .pNext(semaphoreTypeCreateInfo);
+
+            LongBuffer lp = stack.mallocLong(1);
+            vkCheck(vkCreateSemaphore(device.getVkDevice(), semaphoreCreateInfo, null, lp), "Failed to create timeline semaphore");
+            vkSemaphore = lp.get(0);
+        }
+        lastSubmittedValue = 0;
+    }
+
+    public void cleanUp() {
+        vkDestroySemaphore(device.getVkDevice(), vkSemaphore, null);
+    }
+
+    /*Value the GPU has already reached. Never blocks.*/
+    public long getCompletedValue() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            LongBuffer value = stack.mallocLong(1);
+            int result = core ? VK12.vkGetSemaphoreCounterValue(device.getVkDevice(), vkSemaphore, value) :
+                    KHRTimelineSemaphore.vkGetSemaphoreCounterValueKHR(device.getVkDevice(), vkSemaphore, value);
+            vkCheck(result, "Failed to get timeline semaphore value");
+            return value.get(0);
+        }
+    }
+
+    public boolean isReached(long value) {
+        return getCompletedValue() >= value;
+    }
+
+    /*Reserves the value the next signaling submit must use.*/
+    public long nextValue() {
+        return ++lastSubmittedValue;
+    }
+
+    public void waitValue(long value) {
+        if (value <= 0) {
+            return;
+        }
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkSemaphoreWaitInfo semaphoreWaitInfo = VkSemaphoreWaitInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_WAIT_INFO_KHR)
+                    .semaphoreCount(1)
+                    .pSemaphores(stack.longs(vkSemaphore))
+                    .pValues(stack.longs(value));
+            int result = core ? VK12.vkWaitSemaphores(device.getVkDevice(), semaphoreWaitInfo, Long.MAX_VALUE) :
+                    KHRTimelineSemaphore.vkWaitSemaphoresKHR(device.getVkDevice(), semaphoreWaitInfo, Long.MAX_VALUE);
+            vkCheck(result, "Failed to wait for timeline semaphore");
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkBufferMemoryBarrier;
+import org.tinylog.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK11.*;
+
+/*Uploads data to device local buffers through a persistently mapped staging ring buffer. Uploads are only queued
+* when requested, flush copies all of them in a single submission, so many small uploads cost one vkQueueSubmit.
+* The ring space of a batch is reclaimed once it completes, nothing ever waits for the queue to be idle.
+*
+* When the transfer queue is not the graphics queue the copies run there and the written ranges are released to the
+* graphics queue, the matching acquire is submitted to the graphics queue waiting on a semaphore, so later frames see
+* the data. Queue family ownership is only transferred if the families differ. Must be used from the render thread.*/
+public class UploadManager {
+
+    private static final long ALIGNMENT = 16;
+
+    private final Deque<UploadBatch> freeBatches;
+    private final Device device;
+    private final Queue.GraphicsQueue graphicsQueue;
+    private final Deque<UploadBatch> inFlightBatches;
+    private final List<PendingCopy> pendingCopies;
+    private final SubmitBatch submitBatch;
+    private final TimelineSemaphore timeline;
+    private final VulkanBuffer ringBuffer;
+    private final long ringSize;
+    private final Queue.TransferQueue transferQueue;
+    private final boolean ownershipTransfer;
+    private final boolean separateQueues;
+    private long completedSerial;
+    private long head;
+    private long submittedSerial;
+    private long tail;
+
+    /*The timeline is optional. If set, it must be the one signaled by the graphics queue, batches then signal one of
+    * its values instead of a fence.*/
+    public UploadManager(Device device, MemoryAllocator memoryAllocator, Queue.TransferQueue transferQueue,
+                         Queue.GraphicsQueue graphicsQueue, long ringSize, TimelineSemaphore timeline) {
+        Logger.debug("Creating upload manager with a staging ring of [{}] bytes", ringSize);
+        this.device = device;
+        this.timeline = timeline;
+        this.graphicsQueue = graphicsQueue;
+        this.transferQueue = transferQueue;
+        this.ringSize = ringSize;
+        ownershipTransfer = transferQueue.getQueueFamilyIndex() != graphicsQueue.getQueueFamilyIndex();
+        separateQueues = transferQueue.getVkQueue().address() != graphicsQueue.getVkQueue().address();
+        ringBuffer = new VulkanBuffer(memoryAllocator, ringSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, MemoryUsage.CPU_TO_GPU);
+        freeBatches = new ArrayDeque<>();
+        inFlightBatches = new ArrayDeque<>();
+        pendingCopies = new ArrayList<>();
+        submitBatch = new SubmitBatch(device);
+    }
+
+    private record PendingCopy(VulkanBuffer dstBuffer, long srcOffset, long dstOffset, long size) {}
+
+    public void cleanUp() {
+        while (!inFlightBatches.isEmpty()) {
+            waitForBatch(inFlightBatches.peek());
+            reclaim();
+        }
+        for (UploadBatch uploadBatch : freeBatches) {
+            uploadBatch.cleanUp();
+        }
+        submitBatch.cleanUp();
+        ringBuffer.cleanUp();
+    }
+
+    /*Submits all the queued uploads and returns the serial of the batch, 0 if there was nothing to upload.
+    * Commands submitted to the graphics queue afterwards see the uploaded data.*/
+    public long flush() {
+        reclaim();
+        if (pendingCopies.isEmpty()) {
+            return 0;
+        }
+
+        ringBuffer.flush();
+        UploadBatch uploadBatch = obtainBatch();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            CommandBuffer transferCommandBuffer = uploadBatch.transferCommandPool.obtainCommandBuffer(true);
+            transferCommandBuffer.beginRecording();
+            VkBufferCopy.Buffer copyRegion = VkBufferCopy.calloc(1, stack);
+            for (PendingCopy pendingCopy : pendingCopies) {
+                copyRegion.get(0)
+                        .srcOffset(pendingCopy.srcOffset)
+                        .dstOffset(pendingCopy.dstOffset)
+                        .size(pendingCopy.size);
+                vkCmdCopyBuffer(transferCommandBuffer.getVkCommandBuffer(), ringBuffer.getBuffer(), pendingCopy.dstBuffer.getBuffer(), copyRegion);
+            }
+
+            if (!separateQueues) {
+                recordBarriers(stack, transferCommandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT,
+                        VK_ACCESS_TRANSFER_WRITE_BIT, VK_ACCESS_MEMORY_READ_BIT);
+                transferCommandBuffer.endRecording();
+                submitBatch.nextSubmit().addCommandBuffer(transferCommandBuffer);
+            } else {
+                // Release on the transfer queue, the destination access mask is ignored
+                recordBarriers(stack, transferCommandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT,
+                        VK_ACCESS_TRANSFER_WRITE_BIT, 0);
+                transferCommandBuffer.endRecording();
+                submitBatch.nextSubmit()
+                        .addCommandBuffer(transferCommandBuffer)
+                        .addSignalSemaphore(uploadBatch.semaphore, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT);
+                submitBatch.submit(transferQueue, null);
+
+                // Acquire on the graphics queue, the source access mask is ignored
+                CommandBuffer acquireCommandBuffer = uploadBatch.graphicsCommandPool.obtainCommandBuffer(true);
+                acquireCommandBuffer.beginRecording();
+                recordBarriers(stack, acquireCommandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT,
+                        0, VK_ACCESS_MEMORY_READ_BIT);
+                acquireCommandBuffer.endRecording();
+                submitBatch.nextSubmit()
+                        .addCommandBuffer(acquireCommandBuffer)
+                        .addWaitSemaphore(uploadBatch.semaphore, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT);
+            }
+            // Either way the last submit goes to the graphics queue, which is the one that signals the timeline
+            if (timeline != null) {
+                uploadBatch.timelineValue = timeline.nextValue();
+                submitBatch.addSignalSemaphore(timeline, uploadBatch.timelineValue, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT);
+                submitBatch.submit(separateQueues ? graphicsQueue : transferQueue, null);
+            } else {
+                submitBatch.submit(separateQueues ? graphicsQueue : transferQueue, uploadBatch.fence);
+            }
+        }
+
+        pendingCopies.clear();
+        uploadBatch.ringEnd = head;
+        uploadBatch.serial = ++submittedSerial;
+        inFlightBatches.add(uploadBatch);
+
+        return uploadBatch.serial;
+    }
+
+    /*Largest upload that fits in the staging ring.*/
+    public long getRingSize() {
+        return ringSize;
+    }
+
+    public boolean isComplete(long serial) {
+        reclaim();
+        return serial <= completedSerial;
+    }
+
+    /*Queues a copy of the remaining bytes of data into the buffer. The data is copied to the staging ring right away,
+    * so the source can be reused as soon as this returns.*/
+    public void upload(VulkanBuffer dstBuffer, long dstOffset, ByteBuffer data) {
+        long size = data.remaining();
+        if (size == 0) {
+            return;
+        }
+        long srcOffset = allocate(size);
+        MemoryUtil.memCopy(MemoryUtil.memAddress(data), ringBuffer.getMappedMemory() + srcOffset, size);
+        pendingCopies.add(new PendingCopy(dstBuffer, srcOffset, dstOffset, size));
+    }
+
+    /*Reserves size bytes of the ring and returns their offset. Head and tail only grow, their difference is the space
+    * in use. If the ring is full the oldest batch is waited for, flushing the queued uploads first if they are the
+    * ones holding the space.*/
+    private long allocate(long size) {
+        if (size > ringSize) {
+            throw new RuntimeException("Upload of [" + size + "] bytes does not fit in the staging ring of [" + ringSize + "] bytes");
+        }
+
+        long start = (head + ALIGNMENT - 1) & -ALIGNMENT;
+        if (start % ringSize + size > ringSize) {
+            // Does not fit before the end of the ring, wrap around
+            start = (start / ringSize + 1) * ringSize;
+        }
+        while (start + size - tail > ringSize) {
+            reclaim();
+            if (start + size - tail <= ringSize) {
+                break;
+            }
+            if (inFlightBatches.isEmpty()) {
+                flush();
+            }
+            if (inFlightBatches.isEmpty()) {
+                break;
+            }
+            waitForBatch(inFlightBatches.peek());
+        }
+        if (inFlightBatches.isEmpty() && pendingCopies.isEmpty()) {
+            // Nothing references the ring, start over from the beginning
+            head = 0;
+            tail = 0;
+            start = 0;
+        }
+
+        head = start + size;
+        return start % ringSize;
+    }
+
+    private UploadBatch obtainBatch() {
+        UploadBatch uploadBatch = freeBatches.poll();
+        if (uploadBatch == null) {
+            uploadBatch = new UploadBatch();
+        } else {
+            if (uploadBatch.fence != null) {
+                uploadBatch.fence.reset();
+            }
+            uploadBatch.transferCommandPool.reset();
+            if (uploadBatch.graphicsCommandPool != null) {
+                uploadBatch.graphicsCommandPool.reset();
+            }
+        }
+        return uploadBatch;
+    }
+
+    /*Releases the ring space of the batches that have completed.*/
+    private void reclaim() {
+        long completedValue = timeline != null && !inFlightBatches.isEmpty() ? timeline.getCompletedValue() : 0;
+        while (!inFlightBatches.isEmpty() && isBatchComplete(inFlightBatches.peek(), completedValue)) {
+            UploadBatch uploadBatch = inFlightBatches.poll();
+            tail = uploadBatch.ringEnd;
+            completedSerial = uploadBatch.serial;
+            freeBatches.add(uploadBatch);
+        }
+    }
+
+    private boolean isBatchComplete(UploadBatch uploadBatch, long completedTimelineValue) {
+        return timeline != null ? uploadBatch.timelineValue <= completedTimelineValue : uploadBatch.fence.isSignaled();
+    }
+
+    private void waitForBatch(UploadBatch uploadBatch) {
+        if (timeline != null) {
+            timeline.waitValue(uploadBatch.timelineValue);
+        } else {
+            uploadBatch.fence.fenceWait();
+        }
+    }
+
+    private void recordBarriers(MemoryStack stack, CommandBuffer commandBuffer, int srcStageMask, int dstStageMask,
+                                int srcAccessMask, int dstAccessMask) {
+        int srcQueueFamilyIndex = ownershipTransfer ? transferQueue.getQueueFamilyIndex() : VK_QUEUE_FAMILY_IGNORED;
+        int dstQueueFamilyIndex = ownershipTransfer ? graphicsQueue.getQueueFamilyIndex() : VK_QUEUE_FAMILY_IGNORED;
+        VkBufferMemoryBarrier.Buffer barriers = VkBufferMemoryBarrier.calloc(pendingCopies.size(), stack);
+        for (int i = 0; i < pendingCopies.size(); i++) {
+            PendingCopy pendingCopy = pendingCopies.get(i);
+            barriers.get(i)
+                    .sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+                    .srcAccessMask(srcAccessMask)
+                    .dstAccessMask(dstAccessMask)
+                    .srcQueueFamilyIndex(srcQueueFamilyIndex)
+                    .dstQueueFamilyIndex(dstQueueFamilyIndex)
+                    .buffer(pendingCopy.dstBuffer.getBuffer())
+                    .offset(pendingCopy.dstOffset)
+                    .size(pendingCopy.size);
+        }
+        vkCmdPipelineBarrier(commandBuffer.getVkCommandBuffer(), srcStageMask, dstStageMask, 0, null, barriers, null);
+    }
+
+    /*Everything a submitted batch owns until it completes.*/
+    private class UploadBatch {
+
+        private final Fence fence;
+        private final CommandPool graphicsCommandPool;
+        private final Semaphore semaphore;
+        private final CommandPool transferCommandPool;
+        private long ringEnd;
+        private long serial;
+        private long timelineValue;
+
+        private UploadBatch() {
+            fence = timeline == null ? new Fence(device, false) : null;
+            transferCommandPool = new CommandPool(device, transferQueue.getQueueFamilyIndex(), true);
+            graphicsCommandPool = separateQueues ? new CommandPool(device, graphicsQueue.getQueueFamilyIndex(), true) : null;
+            semaphore = separateQueues ? new Semaphore(device) : null;
+        }
+
+        private void cleanUp() {
+            if (fence != null) {
+                fence.cleanUp();
+            }
+            transferCommandPool.cleanUp();
+            if (graphicsCommandPool != null) {
+                graphicsCommandPool.cleanUp();
+            }
+            if (semaphore != null) {
+                semaphore.cleanUp();
+            }
+        }
+
+    }
+
+}
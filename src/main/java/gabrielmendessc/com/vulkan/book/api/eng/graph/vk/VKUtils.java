@@ -1,7 +1,10 @@
 package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
 
+import org.lwjgl.vulkan.VkMemoryType;
+
 import java.util.Locale;
 
+import static org.lwjgl.vulkan.VK11.VK_MAX_MEMORY_TYPES;
 import static org.lwjgl.vulkan.VK11.VK_SUCCESS;
 
 public class VKUtils {
@@ -24,6 +27,20 @@ public class VKUtils {
 
     }
 
+    public static int memoryTypeFromProperties(PhysicalDevice physicalDevice, int typeBits, int reqsMask) {
+
+        VkMemoryType.Buffer memoryTypes = physicalDevice.getVkMemoryProperties().memoryTypes();
+        for (int i = 0; i < VK_MAX_MEMORY_TYPES; i++) {
+            if ((typeBits & 1) == 1 && (memoryTypes.get(i).propertyFlags() & reqsMask) == reqsMask) {
+                return i;
+            }
+            typeBits >>= 1;
+        }
+
+        throw new RuntimeException("Failed to find memoryType");
+
+    }
+
     public static void vkCheck(int err, String errMsg) {
         if (err != VK_SUCCESS) {
             throw new RuntimeException(errMsg + ": " + err);
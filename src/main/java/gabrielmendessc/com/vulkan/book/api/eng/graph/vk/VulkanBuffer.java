@@ -0,0 +1,83 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.vma.VmaAllocationCreateInfo;
+import org.lwjgl.util.vma.VmaAllocationInfo;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+
+import java.nio.LongBuffer;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.util.vma.Vma.vmaCreateBuffer;
+import static org.lwjgl.util.vma.Vma.vmaDestroyBuffer;
+import static org.lwjgl.util.vma.Vma.vmaFlushAllocation;
+import static org.lwjgl.util.vma.Vma.vmaInvalidateAllocation;
+import static org.lwjgl.vulkan.VK11.VK_SHARING_MODE_EXCLUSIVE;
+import static org.lwjgl.vulkan.VK11.VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO;
+import static org.lwjgl.vulkan.VK11.VK_WHOLE_SIZE;
+
+@Getter
+public class VulkanBuffer {
+
+    private final long allocation;
+    private final long buffer;
+    private final MemoryAllocator memoryAllocator;
+    private final MemoryUsage memoryUsage;
+    private final long mappedMemory;
+    private final long requestedSize;
+
+    public VulkanBuffer(MemoryAllocator memoryAllocator, long size, int bufferUsage, MemoryUsage memoryUsage) {
+
+        this.memoryAllocator = memoryAllocator;
+        this.memoryUsage = memoryUsage;
+        this.requestedSize = size;
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.calloc(memoryStack)
+                    .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+                    .size(size)
+                    .usage(bufferUsage)
+                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+            VmaAllocationCreateInfo allocationCreateInfo = VmaAllocationCreateInfo.calloc(memoryStack)
+                    .usage(memoryUsage.getVmaMemoryUsage())
+                    .flags(memoryUsage.getAllocationFlags());
+
+            LongBuffer pBuffer = memoryStack.mallocLong(1);
+            PointerBuffer pAllocation = memoryStack.mallocPointer(1);
+            VmaAllocationInfo allocationInfo = VmaAllocationInfo.calloc(memoryStack);
+            vkCheck(vmaCreateBuffer(memoryAllocator.getVmaAllocator(), bufferCreateInfo, allocationCreateInfo, pBuffer,
+                    pAllocation, allocationInfo), "Failed to create buffer");
+            buffer = pBuffer.get(0);
+            allocation = pAllocation.get(0);
+            mappedMemory = allocationInfo.pMappedData();
+
+        }
+
+    }
+
+    public void cleanUp() {
+        vmaDestroyBuffer(memoryAllocator.getVmaAllocator(), buffer, allocation);
+    }
+
+    /*Makes CPU writes visible to the device. Only needed if the memory is not host coherent, otherwise it is a no-op.*/
+    public void flush(long offset, long size) {
+        vmaFlushAllocation(memoryAllocator.getVmaAllocator(), allocation, offset, size);
+    }
+
+    public void flush() {
+        flush(0, VK_WHOLE_SIZE);
+    }
+
+    /*Makes device writes visible to the CPU before reading back mapped memory.*/
+    public void invalidate() {
+        vmaInvalidateAllocation(memoryAllocator.getVmaAllocator(), allocation, 0, VK_WHOLE_SIZE);
+    }
+
+    public boolean isMapped() {
+        return mappedMemory != 0;
+    }
+
+}
@@ -0,0 +1,129 @@
+package gabrielmendessc.com.vulkan.book.api.eng.graph.vk;
+
+import lombok.Getter;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.vma.VmaAllocationCreateInfo;
+import org.lwjgl.vulkan.VkImageCreateInfo;
+
+import java.nio.LongBuffer;
+
+import static gabrielmendessc.com.vulkan.book.api.eng.graph.vk.VKUtils.vkCheck;
+import static org.lwjgl.util.vma.Vma.vmaCreateImage;
+import static org.lwjgl.util.vma.Vma.vmaDestroyImage;
+import static org.lwjgl.vulkan.VK11.*;
+
+@Getter
+public class VulkanImage {
+
+    private final long allocation;
+    private final int format;
+    private final MemoryAllocator memoryAllocator;
+    private final int mipLevels;
+    private final long vkImage;
+
+    public VulkanImage(MemoryAllocator memoryAllocator, ImageData imageData) {
+
+        this.memoryAllocator = memoryAllocator;
+        this.format = imageData.format;
+        this.mipLevels = imageData.mipLevels;
+        try (MemoryStack memoryStack = MemoryStack.stackPush()) {
+
+            VkImageCreateInfo imageCreateInfo = VkImageCreateInfo.calloc(memoryStack)
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+                    .imageType(VK_IMAGE_TYPE_2D)
+                    .format(format)
+                    .extent(it -> it
+                            .width(imageData.width)
+                            .height(imageData.height)
+                            .depth(1))
+                    .mipLevels(mipLevels)
+                    .arrayLayers(imageData.arrayLayers)
+                    .samples(imageData.sampleCount)
+                    .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+                    .tiling(VK_IMAGE_TILING_OPTIMAL)
+                    .usage(imageData.usage);
+
+            VmaAllocationCreateInfo allocationCreateInfo = VmaAllocationCreateInfo.calloc(memoryStack)
+                    .usage(imageData.memoryUsage.getVmaMemoryUsage())
+                    .flags(imageData.memoryUsage.getAllocationFlags());
+
+            LongBuffer pImage = memoryStack.mallocLong(1);
+            PointerBuffer pAllocation = memoryStack.mallocPointer(1);
+            vkCheck(vmaCreateImage(memoryAllocator.getVmaAllocator(), imageCreateInfo, allocationCreateInfo, pImage,
+                    pAllocation, null), "Failed to create image");
+            vkImage = pImage.get(0);
+            allocation = pAllocation.get(0);
+
+        }
+
+    }
+
+    public void cleanUp() {
+
+        vmaDestroyImage(memoryAllocator.getVmaAllocator(), vkImage, allocation);
+
+    }
+
+    public static class ImageData {
+        private int arrayLayers;
+        private int format;
+        private int height;
+        private MemoryUsage memoryUsage;
+        private int mipLevels;
+        private int sampleCount;
+        private int usage;
+        private int width;
+
+        public ImageData() {
+            this.format = VK_FORMAT_R8G8B8A8_SRGB;
+            this.memoryUsage = MemoryUsage.GPU_ONLY;
+            this.mipLevels = 1;
+            this.sampleCount = 1;
+            this.arrayLayers = 1;
+        }
+
+        public VulkanImage.ImageData arrayLayers(int arrayLayers) {
+            this.arrayLayers = arrayLayers;
+            return this;
+        }
+
+        public VulkanImage.ImageData format(int format) {
+            this.format = format;
+            return this;
+        }
+
+        public VulkanImage.ImageData height(int height) {
+            this.height = height;
+            return this;
+        }
+
+        public VulkanImage.ImageData memoryUsage(MemoryUsage memoryUsage) {
+            this.memoryUsage = memoryUsage;
+            return this;
+        }
+
+        public VulkanImage.ImageData mipLevels(int mipLevels) {
+            this.mipLevels = mipLevels;
+            return this;
+        }
+
+        public VulkanImage.ImageData sampleCount(int sampleCount) {
+            this.sampleCount = sampleCount;
+            return this;
+        }
+
+        public VulkanImage.ImageData usage(int usage) {
+            this.usage = usage;
+            return this;
+        }
+
+        public VulkanImage.ImageData width(int width) {
+            this.width = width;
+            return this;
+        }
+
+    }
+
+}
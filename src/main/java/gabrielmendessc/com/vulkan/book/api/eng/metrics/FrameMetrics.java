@@ -0,0 +1,114 @@
+package gabrielmendessc.com.vulkan.book.api.eng.metrics;
+
+import jdk.jfr.EventType;
+import org.tinylog.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*CPU time of each phase of the frame. Recording does not allocate nor lock, so it can be done from the render and
+* the update threads at the same time. Percentiles are read through JMX, and while a JFR recording has the frame
+* phase event enabled, each recorded duration is also emitted as an event, to line up spikes with GC and the rest
+* of the recording.*/
+public class FrameMetrics implements FrameMetricsMXBean {
+
+    private static final String OBJECT_NAME = "gabrielmendessc.com.vulkan.book:type=FrameMetrics";
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final EventType PHASE_EVENT_TYPE = EventType.getEventType(FramePhaseEvent.class);
+    private static final FramePhase[] PHASES = FramePhase.values();
+
+    private final PhaseHistogram[] histograms;
+    private ObjectName objectName;
+
+    public FrameMetrics() {
+        histograms = new PhaseHistogram[PHASES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new PhaseHistogram();
+        }
+    }
+
+    public void cleanUp() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            Logger.warn("Could not unregister frame metrics MBean", e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return histograms[FramePhase.FRAME.ordinal()].getCount();
+    }
+
+    public PhaseHistogram getHistogram(FramePhase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (FramePhase phase : PHASES) {
+            result.put(phase.name(), histograms[phase.ordinal()].getMax() / NANOS_PER_MILLI);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return getPercentileMillis(50.0);
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return getPercentileMillis(99.0);
+    }
+
+    public void record(FramePhase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+        if (PHASE_EVENT_TYPE.isEnabled()) {
+            FramePhaseEvent event = new FramePhaseEvent();
+            event.phase = phase.name();
+            event.phaseDuration = nanos;
+            event.commit();
+        }
+    }
+
+    /*Exposes the metrics in the platform MBean server. Failing to do so is not fatal, metrics are still recorded.*/
+    public void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            Logger.warn("Could not register frame metrics MBean", e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (PhaseHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    private Map<String, Double> getPercentileMillis(double percentile) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (FramePhase phase : PHASES) {
+            result.put(phase.name(), histograms[phase.ordinal()].getPercentile(percentile) / NANOS_PER_MILLI);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,18 @@
+package gabrielmendessc.com.vulkan.book.api.eng.metrics;
+
+import java.util.Map;
+
+/*Frame phase timings in milliseconds, keyed by phase name.*/
+public interface FrameMetricsMXBean {
+
+    long getFrameCount();
+
+    Map<String, Double> getMaxMillis();
+
+    Map<String, Double> getP50Millis();
+
+    Map<String, Double> getP99Millis();
+
+    void reset();
+
+}
@@ -0,0 +1,16 @@
+package gabrielmendessc.com.vulkan.book.api.eng.metrics;
+
+/*Parts of a frame that are timed. FRAME is a whole iteration of the loop, limiter wait included.*/
+public enum FramePhase {
+
+    POLL_EVENTS,
+    INPUT,
+    UPDATE,
+    WAIT_FRAME,
+    ACQUIRE,
+    RECORD,
+    SUBMIT,
+    PRESENT,
+    FRAME
+
+}
@@ -0,0 +1,26 @@
+package gabrielmendessc.com.vulkan.book.api.eng.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*Committed when the phase ends, the duration is measured by the engine so it is carried in its own field.*/
+@Name("vulkanbook.FramePhase")
+@Label("Frame Phase")
+@Category({"Vulkan Book", "Engine"})
+@Description("Time spent in one phase of a frame")
+@StackTrace(false)
+public class FramePhaseEvent extends Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Phase Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    public long phaseDuration;
+
+}
@@ -0,0 +1,87 @@
+package gabrielmendessc.com.vulkan.book.api.eng.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*Lock free, allocation free histogram of durations in nanoseconds. Buckets are log-linear: each power of two is split
+* in 16 linear buckets, so any value is reported with less than 1/16 of relative error, from nanoseconds to hours, in
+* a fixed array. Recording is one atomic increment, reading is done while recording and so is only approximate.*/
+public class PhaseHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong max;
+
+    public PhaseHistogram() {
+        buckets = new AtomicLongArray(NUM_BUCKETS);
+        count = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /*Upper bound of the bucket holding the given percentile, between 0 and 100. 0 when nothing was recorded.*/
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(total * percentile / 100.0), 1);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        buckets.incrementAndGet(getBucketIndex(value));
+        count.incrementAndGet();
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        max.set(0);
+    }
+
+    private static int getBucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket) << shift) + (1L << shift) - 1;
+    }
+
+}
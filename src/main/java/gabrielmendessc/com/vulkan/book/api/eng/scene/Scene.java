@@ -1,11 +1,340 @@
 package gabrielmendessc.com.vulkan.book.api.eng.scene;
 
 import gabrielmendessc.com.vulkan.book.api.eng.Window;
+import lombok.Getter;
 
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/*Entities are stored as structure of arrays: each component lives in its own primitive array, packed so the entities
+* alive are always the first entityCount slots. Systems and draws loop over the slots and touch only the arrays they
+* need, there is no object per entity. Removing an entity moves the last one into its slot, so slots are not stable:
+* entities are referred to by ids, which pack the index of the entity with a generation that changes once it is
+* destroyed, so stale ids are detected instead of silently pointing to a new entity.
+* The component arrays are replaced when they grow, they must be fetched again after creating entities.
+* Positions and rotations are also kept as they were before the last simulation step, so the render can blend both
+* states when it runs between steps.*/
 public class Scene {
 
+    public static final int BOUNDS_SIZE = 6;
+    public static final int MATRIX_SIZE = 16;
+    public static final long NO_ENTITY = 0;
+    public static final int POSITION_SIZE = 3;
+    public static final int ROTATION_SIZE = 4;
+    public static final int SCALE_SIZE = 3;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    // Local axis aligned bounds of each slot: min x, y, z and max x, y, z
+    @Getter
+    private float[] bounds;
+    @Getter
+    private int entityCount;
+    @Getter
+    private int[] materialIds;
+    @Getter
+    private int[] meshIds;
+    @Getter
+    private float[] positions;
+    @Getter
+    private float[] previousPositions;
+    @Getter
+    private float[] previousRotations;
+    // Quaternions, x, y, z, w
+    @Getter
+    private float[] rotations;
+    @Getter
+    private float[] scales;
+    // Index of the entity stored in each slot
+    private int[] slotEntities;
+    // Slot of each entity index, -1 when the index is free
+    private int[] entitySlots;
+    private int[] freeIndices;
+    private int[] generations;
+    private int numEntityIndices;
+    private int numFreeIndices;
+
     public Scene(Window window) {
+        this(window, DEFAULT_CAPACITY);
+    }
+
+    public Scene(Window window, int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        bounds = new float[capacity * BOUNDS_SIZE];
+        materialIds = new int[capacity];
+        meshIds = new int[capacity];
+        positions = new float[capacity * POSITION_SIZE];
+        previousPositions = new float[capacity * POSITION_SIZE];
+        previousRotations = new float[capacity * ROTATION_SIZE];
+        rotations = new float[capacity * ROTATION_SIZE];
+        scales = new float[capacity * SCALE_SIZE];
+        slotEntities = new int[capacity];
+        entitySlots = new int[capacity];
+        freeIndices = new int[capacity];
+        generations = new int[capacity];
+    }
+
+    public static int getGeneration(long entity) {
+        return (int) (entity >>> 32);
+    }
+
+    public static int getIndex(long entity) {
+        return (int) entity;
+    }
+
+    /*Copies the state needed for rendering into the target scene. Used to publish snapshots of the scene
+    * when the update runs on its own thread. Ids stay valid in the copy, which only allocates when it grows.*/
+    public void copyTo(Scene target) {
+        target.ensureSlotCapacity(entityCount);
+        target.ensureIndexCapacity(numEntityIndices);
+        System.arraycopy(bounds, 0, target.bounds, 0, entityCount * BOUNDS_SIZE);
+        System.arraycopy(materialIds, 0, target.materialIds, 0, entityCount);
+        System.arraycopy(meshIds, 0, target.meshIds, 0, entityCount);
+        System.arraycopy(positions, 0, target.positions, 0, entityCount * POSITION_SIZE);
+        System.arraycopy(previousPositions, 0, target.previousPositions, 0, entityCount * POSITION_SIZE);
+        System.arraycopy(previousRotations, 0, target.previousRotations, 0, entityCount * ROTATION_SIZE);
+        System.arraycopy(rotations, 0, target.rotations, 0, entityCount * ROTATION_SIZE);
+        System.arraycopy(scales, 0, target.scales, 0, entityCount * SCALE_SIZE);
+        System.arraycopy(slotEntities, 0, target.slotEntities, 0, entityCount);
+        System.arraycopy(entitySlots, 0, target.entitySlots, 0, numEntityIndices);
+        System.arraycopy(freeIndices, 0, target.freeIndices, 0, numFreeIndices);
+        System.arraycopy(generations, 0, target.generations, 0, numEntityIndices);
+        target.entityCount = entityCount;
+        target.numEntityIndices = numEntityIndices;
+        target.numFreeIndices = numFreeIndices;
+    }
+
+    /*New entities are at the origin, not rotated, with unit scale and empty bounds.*/
+    public long createEntity(int meshId, int materialId) {
+        int index;
+        if (numFreeIndices > 0) {
+            index = freeIndices[--numFreeIndices];
+        } else {
+            ensureIndexCapacity(numEntityIndices + 1);
+            index = numEntityIndices++;
+            // Generation zero is never handed out, so NO_ENTITY is never a valid id
+            generations[index] = 1;
+        }
+        ensureSlotCapacity(entityCount + 1);
+        int slot = entityCount++;
+        entitySlots[index] = slot;
+        slotEntities[slot] = index;
+
+        meshIds[slot] = meshId;
+        materialIds[slot] = materialId;
+        Arrays.fill(bounds, slot * BOUNDS_SIZE, (slot + 1) * BOUNDS_SIZE, 0);
+        Arrays.fill(positions, slot * POSITION_SIZE, (slot + 1) * POSITION_SIZE, 0);
+        Arrays.fill(rotations, slot * ROTATION_SIZE, (slot + 1) * ROTATION_SIZE - 1, 0);
+        rotations[slot * ROTATION_SIZE + 3] = 1;
+        Arrays.fill(scales, slot * SCALE_SIZE, (slot + 1) * SCALE_SIZE, 1);
+        snapSlot(slot);
+        return (long) generations[index] << 32 | index;
+    }
+
+    /*Returns false if the entity was already destroyed.*/
+    public boolean destroyEntity(long entity) {
+        int slot = getSlot(entity);
+        if (slot < 0) {
+            return false;
+        }
+        int index = getIndex(entity);
+        int last = --entityCount;
+        if (slot != last) {
+            moveSlot(last, slot);
+        }
+        entitySlots[index] = -1;
+        generations[index] = generations[index] == Integer.MAX_VALUE ? 1 : generations[index] + 1;
+        freeIndices[numFreeIndices++] = index;
+        return true;
+    }
+
+    public long getEntity(int slot) {
+        int index = slotEntities[slot];
+        return (long) generations[index] << 32 | index;
+    }
+
+    /*Returns -1 if the entity does not exist anymore.*/
+    public int getSlot(long entity) {
+        int index = getIndex(entity);
+        if (index < 0 || index >= numEntityIndices || generations[index] != getGeneration(entity)) {
+            return -1;
+        }
+        return entitySlots[index];
+    }
+
+    public boolean isAlive(long entity) {
+        return getSlot(entity) >= 0;
+    }
+
+    /*Copies the positions and rotations of every entity as the state before the next simulation step. Called before
+    * each step.*/
+    public void savePreviousTransforms() {
+        System.arraycopy(positions, 0, previousPositions, 0, entityCount * POSITION_SIZE);
+        System.arraycopy(rotations, 0, previousRotations, 0, entityCount * ROTATION_SIZE);
+    }
+
+    public void setBounds(long entity, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int offset = requireSlot(entity) * BOUNDS_SIZE;
+        bounds[offset] = minX;
+        bounds[offset + 1] = minY;
+        bounds[offset + 2] = minZ;
+        bounds[offset + 3] = maxX;
+        bounds[offset + 4] = maxY;
+        bounds[offset + 5] = maxZ;
+    }
+
+    public void setMaterialId(long entity, int materialId) {
+        materialIds[requireSlot(entity)] = materialId;
+    }
+
+    public void setMeshId(long entity, int meshId) {
+        meshIds[requireSlot(entity)] = meshId;
+    }
+
+    public void setPosition(long entity, float x, float y, float z) {
+        int offset = requireSlot(entity) * POSITION_SIZE;
+        positions[offset] = x;
+        positions[offset + 1] = y;
+        positions[offset + 2] = z;
+    }
+
+    public void setRotation(long entity, float x, float y, float z, float w) {
+        int offset = requireSlot(entity) * ROTATION_SIZE;
+        rotations[offset] = x;
+        rotations[offset + 1] = y;
+        rotations[offset + 2] = z;
+        rotations[offset + 3] = w;
+    }
+
+    public void setScale(long entity, float x, float y, float z) {
+        int offset = requireSlot(entity) * SCALE_SIZE;
+        scales[offset] = x;
+        scales[offset + 1] = y;
+        scales[offset + 2] = z;
+    }
+
+    /*Makes the previous transform of the entity its current one, so it is not blended from where it was before the
+    * step. Meant for entities placed during a step, such as new or teleported ones.*/
+    public void snapTransform(long entity) {
+        snapSlot(requireSlot(entity));
+    }
+
+    /*Writes the column major model matrices of the slots in [first, last) to the buffer, MATRIX_SIZE floats per slot
+    * starting at its current position, which is left unchanged. Meant to fill mapped buffers straight from the
+    * component arrays, it can be called concurrently for disjoint ranges.*/
+    public void writeModelMatrices(FloatBuffer dst, int first, int last) {
+        writeModelMatrices(dst, first, last, 1.0f);
+    }
+
+    /*Same as above, blending the previous transforms into the current ones by alpha, 0 being the previous state and
+    * 1 the current one. Positions are interpolated linearly and rotations normalized after it, through the shortest
+    * path.*/
+    public void writeModelMatrices(FloatBuffer dst, int first, int last, float alpha) {
+        int base = dst.position();
+        for (int slot = first; slot < last; slot++) {
+            int p = slot * POSITION_SIZE;
+            int r = slot * ROTATION_SIZE;
+            int s = slot * SCALE_SIZE;
+            float qx = rotations[r];
+            float qy = rotations[r + 1];
+            float qz = rotations[r + 2];
+            float qw = rotations[r + 3];
+            if (alpha < 1.0f) {
+                float px = previousRotations[r];
+                float py = previousRotations[r + 1];
+                float pz = previousRotations[r + 2];
+                float pw = previousRotations[r + 3];
+                // q and -q are the same rotation, take the closest one
+                float sign = px * qx + py * qy + pz * qz + pw * qw < 0 ? -1 : 1;
+                qx = px + (qx * sign - px) * alpha;
+                qy = py + (qy * sign - py) * alpha;
+                qz = pz + (qz * sign - pz) * alpha;
+                qw = pw + (qw * sign - pw) * alpha;
+                float invLength = 1.0f / (float) Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+                qx *= invLength;
+                qy *= invLength;
+                qz *= invLength;
+                qw *= invLength;
+            }
+            float xx = qx * qx, yy = qy * qy, zz = qz * qz;
+            float xy = qx * qy, xz = qx * qz, yz = qy * qz;
+            float xw = qx * qw, yw = qy * qw, zw = qz * qw;
+            float sx = scales[s], sy = scales[s + 1], sz = scales[s + 2];
+            float tx = previousPositions[p] + (positions[p] - previousPositions[p]) * alpha;
+            float ty = previousPositions[p + 1] + (positions[p + 1] - previousPositions[p + 1]) * alpha;
+            float tz = previousPositions[p + 2] + (positions[p + 2] - previousPositions[p + 2]) * alpha;
+
+            int offset = base + (slot - first) * MATRIX_SIZE;
+            dst.put(offset, (1 - 2 * (yy + zz)) * sx);
+            dst.put(offset + 1, 2 * (xy + zw) * sx);
+            dst.put(offset + 2, 2 * (xz - yw) * sx);
+            dst.put(offset + 3, 0);
+            dst.put(offset + 4, 2 * (xy - zw) * sy);
+            dst.put(offset + 5, (1 - 2 * (xx + zz)) * sy);
+            dst.put(offset + 6, 2 * (yz + xw) * sy);
+            dst.put(offset + 7, 0);
+            dst.put(offset + 8, 2 * (xz + yw) * sz);
+            dst.put(offset + 9, 2 * (yz - xw) * sz);
+            dst.put(offset + 10, (1 - 2 * (xx + yy)) * sz);
+            dst.put(offset + 11, 0);
+            dst.put(offset + 12, tx);
+            dst.put(offset + 13, ty);
+            dst.put(offset + 14, tz);
+            dst.put(offset + 15, 1);
+        }
+    }
+
+    private void ensureIndexCapacity(int capacity) {
+        if (capacity <= generations.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, generations.length * 2);
+        entitySlots = Arrays.copyOf(entitySlots, newCapacity);
+        freeIndices = Arrays.copyOf(freeIndices, newCapacity);
+        generations = Arrays.copyOf(generations, newCapacity);
+    }
+
+    private void ensureSlotCapacity(int capacity) {
+        if (capacity <= meshIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, meshIds.length * 2);
+        bounds = Arrays.copyOf(bounds, newCapacity * BOUNDS_SIZE);
+        materialIds = Arrays.copyOf(materialIds, newCapacity);
+        meshIds = Arrays.copyOf(meshIds, newCapacity);
+        positions = Arrays.copyOf(positions, newCapacity * POSITION_SIZE);
+        previousPositions = Arrays.copyOf(previousPositions, newCapacity * POSITION_SIZE);
+        previousRotations = Arrays.copyOf(previousRotations, newCapacity * ROTATION_SIZE);
+        rotations = Arrays.copyOf(rotations, newCapacity * ROTATION_SIZE);
+        scales = Arrays.copyOf(scales, newCapacity * SCALE_SIZE);
+        slotEntities = Arrays.copyOf(slotEntities, newCapacity);
+    }
+
+    private void moveSlot(int from, int to) {
+        System.arraycopy(bounds, from * BOUNDS_SIZE, bounds, to * BOUNDS_SIZE, BOUNDS_SIZE);
+        System.arraycopy(positions, from * POSITION_SIZE, positions, to * POSITION_SIZE, POSITION_SIZE);
+        System.arraycopy(previousPositions, from * POSITION_SIZE, previousPositions, to * POSITION_SIZE, POSITION_SIZE);
+        System.arraycopy(previousRotations, from * ROTATION_SIZE, previousRotations, to * ROTATION_SIZE, ROTATION_SIZE);
+        System.arraycopy(rotations, from * ROTATION_SIZE, rotations, to * ROTATION_SIZE, ROTATION_SIZE);
+        System.arraycopy(scales, from * SCALE_SIZE, scales, to * SCALE_SIZE, SCALE_SIZE);
+        materialIds[to] = materialIds[from];
+        meshIds[to] = meshIds[from];
+        int index = slotEntities[from];
+        slotEntities[to] = index;
+        entitySlots[index] = to;
+    }
+
+    private void snapSlot(int slot) {
+        System.arraycopy(positions, slot * POSITION_SIZE, previousPositions, slot * POSITION_SIZE, POSITION_SIZE);
+        System.arraycopy(rotations, slot * ROTATION_SIZE, previousRotations, slot * ROTATION_SIZE, ROTATION_SIZE);
+    }
 
+    private int requireSlot(long entity) {
+        int slot = getSlot(entity);
+        if (slot < 0) {
+            throw new RuntimeException("Entity [" + getIndex(entity) + ":" + getGeneration(entity) + "] does not exist");
+        }
+        return slot;
     }
 
 }